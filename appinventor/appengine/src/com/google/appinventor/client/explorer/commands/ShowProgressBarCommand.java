@@ -42,6 +42,7 @@ public class ShowProgressBarCommand extends ChainableCommand {
   private String target;
   private ChainableCommand nextCommand;
   private final String buildRequestTime;
+  // How long to wait before asking for the build result again, unless the server says otherwise.
   private static final int WAIT_INTERVAL_MILLIS = 5000;
   private ProjectNode projectNode;
   private ProgressBarDialogBox minPB;
@@ -96,7 +97,7 @@ public class ShowProgressBarCommand extends ChainableCommand {
                 execute(node); }
             };
           // TODO(user): Maybe do an exponential backoff here.
-          timer.schedule(WAIT_INTERVAL_MILLIS);
+          timer.schedule(getWaitIntervalMillis(result));
         }
       }
       @Override
@@ -107,6 +108,22 @@ public class ShowProgressBarCommand extends ChainableCommand {
     ode.getProjectService().getBuildResult(node.getProjectId(), target, callback);
   }
 
+  /*
+   * Returns how long to wait before asking again for the result of a build that is not done. The
+   * server asks for a short wait once the build server has reported the progress of the build.
+   */
+  private static int getWaitIntervalMillis(RpcResult result) {
+    String extraString = result.getExtra();
+    if (extraString != null) {
+      try {
+        return Integer.parseInt(extraString);
+      } catch (NumberFormatException e) {
+        // Fall through to the default interval.
+      }
+    }
+    return WAIT_INTERVAL_MILLIS;
+  }
+
   class ProgressBarDialogBox extends DialogBox{
     public ClickHandler buttonHandler;
     public Button dismissButton = new Button(MESSAGES.dismissButton());
@@ -37,6 +37,7 @@ import static com.google.appinventor.client.Ode.MESSAGES;
 public class WaitForBuildResultCommand extends ChainableCommand {
   // The build target
   private final String target;
+  // How long to wait before asking for the build result again, unless the server says otherwise.
   private static final int WAIT_INTERVAL_MILLIS = 10000;
   private final MessagesOutput messagesOutput;
   private final String buildRequestTime;
@@ -120,7 +121,7 @@ public class WaitForBuildResultCommand extends ChainableCommand {
             }
           };
           // TODO(user): Maybe do an exponential backoff here.
-          timer.schedule(WAIT_INTERVAL_MILLIS);
+          timer.schedule(getWaitIntervalMillis(result));
         }
       }
 
@@ -148,6 +149,22 @@ public class WaitForBuildResultCommand extends ChainableCommand {
     return null;
   }
 
+  /*
+   * Returns how long to wait before asking again for the result of a build that is not done. The
+   * server asks for a short wait once the build server has reported the progress of the build.
+   */
+  private static int getWaitIntervalMillis(RpcResult result) {
+    String extraString = result.getExtra();
+    if (extraString != null) {
+      try {
+        return Integer.parseInt(extraString);
+      } catch (NumberFormatException e) {
+        // Fall through to the default interval.
+      }
+    }
+    return WAIT_INTERVAL_MILLIS;
+  }
+
   private static String extractFormName(RpcResult result) {
     String extraString = result.getExtra();
     if (extraString != null) {
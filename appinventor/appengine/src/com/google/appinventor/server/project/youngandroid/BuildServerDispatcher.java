@@ -0,0 +1,382 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the build server that each build is sent to, from a list of build server nodes.
+ *
+ * <p>The status of each node is polled from its /buildserver/health and /buildserver/vars.json
+ * pages when a build needs it and the last poll is older than the refresh interval, since App
+ * Engine requests can not leave background threads running. All the polls of one build share a
+ * deadline of one poll timeout, so unreachable nodes do not hold the build up for long. A node
+ * that another request is already polling is not polled again, and its last known status is used
+ * instead. No lock is held while polling. A node is healthy if its health page
+ * answers OK, which it does not do while it is warming up or shutting down. The load of a node is
+ * the number of its active and queued build tasks, relative to the number of build tasks it can
+ * run at the same time, plus the builds sent to it since it was last polled.
+ *
+ * <p>{@link #getCandidates} lists the healthy nodes from the least to the most loaded, followed
+ * by the unhealthy nodes, so a build is still attempted if every node looks unhealthy. A node
+ * that refuses a build is reported with {@link #reportUnavailable}, and is considered unhealthy
+ * until it is polled again.
+ *
+ * <p>With a single node, nothing is polled and the node is always the only candidate.
+ *
+ * <p>The dispatcher also asks the build servers for the progress of their builds, with
+ * {@link #awaitProgress}.
+ */
+final class BuildServerDispatcher {
+  private static final String HEALTH_PATH = "/buildserver/health";
+  private static final String VARS_PATH = "/buildserver/vars.json";
+  private static final String PROGRESS_PATH = "/buildserver/progress";
+  // How many projects to remember the node of, for progress requests.
+  private static final int MAX_REMEMBERED_PROJECTS = 10000;
+
+  private static final Logger LOG = Logger.getLogger(BuildServerDispatcher.class.getName());
+
+  /*
+   * The last known status of a build server node.
+   */
+  private static final class Node {
+    private final String host;
+    private boolean healthy = true;
+    private int activeTasks;
+    private int queuedTasks;
+    private int maxActiveTasks;
+    // Builds sent since the node was last polled, which its load does not include yet.
+    private int dispatchedTasks;
+    // When the node was last polled, or 0 if it has not been polled.
+    private long polledAt;
+    // Whether a request is polling the node.
+    private boolean polling;
+
+    Node(String host) {
+      this.host = host;
+    }
+
+    String getHost() {
+      return host;
+    }
+
+    synchronized Status getStatus() {
+      return new Status(host, healthy,
+          (activeTasks + queuedTasks + dispatchedTasks) / (double) Math.max(1, maxActiveTasks));
+    }
+  }
+
+  /*
+   * What a poll of a node found.
+   */
+  private static final class PollResult {
+    private boolean healthy;
+    private int activeTasks;
+    private int queuedTasks;
+    private int maxActiveTasks;
+  }
+
+  /*
+   * The status of a node at one point in time.
+   */
+  private static final class Status {
+    private final String host;
+    private final boolean healthy;
+    private final double load;
+
+    Status(String host, boolean healthy, double load) {
+      this.host = host;
+      this.healthy = healthy;
+      this.load = load;
+    }
+  }
+
+  // Healthy nodes first, then the least loaded.
+  private static final Comparator<Status> STATUS_ORDER = new Comparator<Status>() {
+    @Override
+    public int compare(Status a, Status b) {
+      if (a.healthy != b.healthy) {
+        return a.healthy ? -1 : 1;
+      }
+      return Double.compare(a.load, b.load);
+    }
+  };
+
+  /**
+   * The progress of a build, as reported by the build server that is building it.
+   */
+  static final class BuildStatus {
+    private final int progress;
+    private final boolean finished;
+
+    BuildStatus(int progress, boolean finished) {
+      this.progress = progress;
+      this.finished = finished;
+    }
+
+    /**
+     * Returns the progress of the build, as a percentage.
+     */
+    int getProgress() {
+      return progress;
+    }
+
+    /**
+     * Returns whether the build has finished and its result has been sent back.
+     */
+    boolean isFinished() {
+      return finished;
+    }
+  }
+
+  private final ImmutableList<Node> nodes;
+  private final long refreshIntervalMillis;
+  private final int timeoutMillis;
+  private final Cache<String, String> hostsByProject = CacheBuilder.newBuilder()
+      .maximumSize(MAX_REMEMBERED_PROJECTS)
+      .build();
+
+  /**
+   * Creates a dispatcher for the given nodes.
+   *
+   * @param hosts  comma separated host[:port] of each build server
+   * @param refreshIntervalMillis  how long the status of a node is used before it is polled again
+   * @param timeoutMillis  connect and read timeout when polling a node, which is also how long
+   *     the polls of one build may take altogether
+   */
+  BuildServerDispatcher(String hosts, long refreshIntervalMillis, int timeoutMillis) {
+    ImmutableList.Builder<Node> builder = ImmutableList.builder();
+    for (String host : Splitter.on(',').trimResults().omitEmptyStrings().split(hosts)) {
+      builder.add(new Node(host));
+    }
+    nodes = builder.build();
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("No build server hosts in \"" + hosts + "\"");
+    }
+    this.refreshIntervalMillis = refreshIntervalMillis;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns the hosts of the nodes, in the order that a build should try them.
+   */
+  List<String> getCandidates() {
+    if (nodes.size() == 1) {
+      return ImmutableList.of(nodes.get(0).getHost());
+    }
+    long now = System.currentTimeMillis();
+    long deadline = now + timeoutMillis;
+    for (Node node : nodes) {
+      refreshIfStale(node, now, deadline);
+    }
+    // Each node's status is read once, so that polls by other requests do not change the order
+    // while it is being sorted.
+    List<Status> statuses = new ArrayList<Status>();
+    for (Node node : nodes) {
+      statuses.add(node.getStatus());
+    }
+    Collections.sort(statuses, STATUS_ORDER);
+    ImmutableList.Builder<String> hosts = ImmutableList.builder();
+    for (Status status : statuses) {
+      hosts.add(status.host);
+    }
+    return hosts.build();
+  }
+
+  /**
+   * Returns the host that the last build of the given project was sent to, or the first candidate
+   * if there is none.
+   */
+  String getHostForProject(String userId, long projectId) {
+    String host = hostsByProject.getIfPresent(projectKey(userId, projectId));
+    return host != null ? host : getCandidates().get(0);
+  }
+
+  /**
+   * Records that the given node accepted a build of the given project.
+   */
+  void reportDispatched(String host, String userId, long projectId) {
+    hostsByProject.put(projectKey(userId, projectId), host);
+    Node node = getNode(host);
+    if (node != null) {
+      synchronized (node) {
+        node.dispatchedTasks++;
+      }
+    }
+  }
+
+  /**
+   * Records that the given node refused a build or could not be reached. It is not chosen before
+   * the healthy nodes until it is polled again.
+   */
+  void reportUnavailable(String host) {
+    Node node = getNode(host);
+    if (node != null) {
+      synchronized (node) {
+        node.healthy = false;
+      }
+      LOG.info("Build server " + host + " is unavailable");
+    }
+  }
+
+  /**
+   * Asks the given build server for the progress of the given build, waiting until the progress
+   * is no longer the given percentage or the build finishes, for up to the given time.
+   *
+   * @return  the status of the build, or {@code null} if the build server can not be reached or
+   *     does not know the build, for example because it was restarted
+   */
+  BuildStatus awaitProgress(String host, String buildId, int seenProgress, int waitMillis) {
+    try {
+      HttpURLConnection connection = open(host, PROGRESS_PATH
+          + "?buildId=" + URLEncoder.encode(buildId, "UTF-8")
+          + "&seenProgress=" + seenProgress
+          + "&waitMillis=" + waitMillis);
+      connection.setReadTimeout(waitMillis + timeoutMillis);
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        connection.disconnect();
+        return null;
+      }
+      JSONObject status = new JSONObject(readContent(connection.getInputStream()));
+      return new BuildStatus(status.getInt("progress"), status.getBoolean("finished"));
+    } catch (IOException e) {
+      LOG.info("Unable to get the progress of build " + buildId + " from " + host + ": " + e);
+      return null;
+    } catch (JSONException e) {
+      LOG.info("Unable to parse the progress of build " + buildId + " from " + host + ": " + e);
+      return null;
+    }
+  }
+
+  private Node getNode(String host) {
+    for (Node node : nodes) {
+      if (node.getHost().equals(host)) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  private static String projectKey(String userId, long projectId) {
+    return userId + "/" + projectId;
+  }
+
+  private void refreshIfStale(Node node, long now, long deadline) {
+    synchronized (node) {
+      if (node.polling || (node.polledAt != 0 && now - node.polledAt < refreshIntervalMillis)) {
+        return;
+      }
+      node.polling = true;
+    }
+    PollResult result = null;
+    try {
+      result = poll(node.getHost(), deadline);
+    } finally {
+      synchronized (node) {
+        node.polling = false;
+        // A node that was not polled before the deadline is polled by the next build.
+        if (result != null) {
+          node.healthy = result.healthy;
+          node.activeTasks = result.activeTasks;
+          node.queuedTasks = result.queuedTasks;
+          node.maxActiveTasks = result.maxActiveTasks;
+          node.dispatchedTasks = 0;
+          node.polledAt = System.currentTimeMillis();
+        }
+      }
+    }
+  }
+
+  /*
+   * Polls the given node, or returns null if the deadline has passed.
+   */
+  private PollResult poll(String host, long deadline) {
+    PollResult result = new PollResult();
+    try {
+      HttpURLConnection connection = open(host, HEALTH_PATH, deadline);
+      if (connection == null) {
+        return null;
+      }
+      int responseCode = connection.getResponseCode();
+      connection.disconnect();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        // The node is warming up (SERVICE_UNAVAILABLE) or shutting down (FORBIDDEN).
+        return result;
+      }
+      connection = open(host, VARS_PATH, deadline);
+      if (connection == null) {
+        return null;
+      }
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        connection.disconnect();
+        return result;
+      }
+      JSONObject vars = new JSONObject(readContent(connection.getInputStream()));
+      result.activeTasks = vars.optInt("active-build-tasks", 0);
+      result.queuedTasks = vars.optInt("queued-build-tasks", 0);
+      // "unlimited" if the build server does not limit its build tasks.
+      result.maxActiveTasks = vars.optInt("maximum-simultaneous-build-tasks-allowed", 0);
+      result.healthy = true;
+    } catch (IOException e) {
+      LOG.info("Unable to poll build server " + host + ": " + e);
+    } catch (JSONException e) {
+      LOG.info("Unable to parse the vars of build server " + host + ": " + e);
+    }
+    return result;
+  }
+
+  /*
+   * Opens a connection whose timeouts end at the given deadline, or returns null if the deadline
+   * has passed.
+   */
+  private HttpURLConnection open(String host, String path, long deadline) throws IOException {
+    long remainingMillis = deadline - System.currentTimeMillis();
+    if (remainingMillis <= 0) {
+      return null;
+    }
+    HttpURLConnection connection = open(host, path);
+    int timeout = (int) Math.min(timeoutMillis, remainingMillis);
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    return connection;
+  }
+
+  private HttpURLConnection open(String host, String path) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://" + host + path).openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    return connection;
+  }
+
+  private static String readContent(InputStream stream) throws IOException {
+    InputStreamReader reader = new InputStreamReader(stream, "UTF-8");
+    try {
+      return CharStreams.toString(reader);
+    } finally {
+      reader.close();
+    }
+  }
+}
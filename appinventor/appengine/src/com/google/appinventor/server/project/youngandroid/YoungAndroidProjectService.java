@@ -6,6 +6,9 @@
 
 package com.google.appinventor.server.project.youngandroid;
 
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
@@ -59,12 +62,16 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Serializable;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.text.DecimalFormat;
 import java.util.List;
 import java.util.Map;
@@ -79,7 +86,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -111,9 +117,50 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // host[:port] to use for connecting to the build server. Several build servers can be given,
+  // separated by commas, and each build is sent to the least loaded one.
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
+  // How long the load of each build server is used before it is polled again, when there are
+  // several build servers
+  private static final Flag<Integer> buildServerRefreshMillis =
+      Flag.createFlag("build.server.status.refresh.ms", 5000);
+  // Connect and read timeout when polling the status of a build server
+  private static final int BUILD_SERVER_POLL_TIMEOUT_MILLIS = 2000;
+
+  private static BuildServerDispatcher buildServerDispatcher;
+
+  // How long a getBuildResult request waits for the progress of the build to change.
+  private static final int BUILD_PROGRESS_WAIT_MILLIS = 20000;
+  // How long the client waits before asking again after the build server reported the progress.
+  // The next request waits on the build server again, so the client learns about every change,
+  // and about the end of the build, without a long timer. When the build server could not be
+  // asked, getBuildResult answers right away, and the client waits as long as it always has.
+  private static final int BUILD_PROGRESS_RETRY_MILLIS = 1000;
+  // How long the build server and id of a build are remembered.
+  private static final int BUILD_RECORD_EXPIRATION_SECONDS = 60 * 60;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  /*
+   * The build server and id of the latest build of a project, and what is known of its progress.
+   * Kept in memcache, so that any instance can answer getBuildResult.
+   */
+  private static final class BuildRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String host;
+    final String buildId;
+    final int progress;
+    final boolean finished;
+
+    BuildRecord(String host, String buildId, int progress, boolean finished) {
+      this.host = host;
+      this.buildId = buildId;
+      this.progress = progress;
+      this.finished = finished;
+    }
+  }
   // host[:port] to tell build server app host url
   private static final Flag<String> appengineHost =
       Flag.createFlag("appengine.host", "");
@@ -552,27 +599,62 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     URL buildServerUrl = null;
     ProjectSourceZip zipFile = null;
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
-          user.getUserEmail(),
-          userId,
-          projectId,
-          outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
       FileExporter fileExporter = new FileExporterImpl();
       zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
           /* includeAndroidKeystore */ true,
           projectName + ".aia", true, true);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = 0;
-      responseCode = connection.getResponseCode();
-      if (responseCode != HttpURLConnection.HTTP_OK) {
+      BuildServerDispatcher dispatcher = getBuildServerDispatcher();
+      List<String> hosts = dispatcher.getCandidates();
+      for (int i = 0; i < hosts.size(); i++) {
+        String host = hosts.get(i);
+        boolean lastHost = i == hosts.size() - 1;
+        buildServerUrl = new URL(getBuildServerUrlStr(
+            host,
+            user.getUserEmail(),
+            userId,
+            projectId,
+            outputFileDir));
+        int responseCode;
+        HttpURLConnection connection;
+        boolean connected = false;
+        try {
+          connection = (HttpURLConnection) buildServerUrl.openConnection();
+          connection.setDoOutput(true);
+          connection.setRequestMethod("POST");
+          connection.connect();
+          connected = true;
+
+          BufferedOutputStream bufferedOutputStream =
+              new BufferedOutputStream(connection.getOutputStream());
+          bufferedOutputStream.write(zipFile.getContent());
+          bufferedOutputStream.flush();
+          bufferedOutputStream.close();
+
+          responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+          // Once the build is sent, the build server may have accepted it even though no response
+          // came back. Sending it to another build server could build the project twice.
+          if (lastHost || (connected && !isConnectFailure(e))) {
+            throw e;
+          }
+          // The build server is down or unreachable. Try the next one.
+          LOG.warning("Unable to send build to " + host + ": " + e);
+          dispatcher.reportUnavailable(host);
+          continue;
+        }
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          dispatcher.reportDispatched(host, userId, projectId);
+          // Build servers that do not report the progress of each build have no build id.
+          String buildId = connection.getHeaderField("X-Build-Id");
+          String buildKey = getBuildRecordKey(userId, projectId, target);
+          if (buildId != null) {
+            memcache.put(buildKey, new BuildRecord(host, buildId, 0, false),
+                Expiration.byDeltaSeconds(BUILD_RECORD_EXPIRATION_SECONDS));
+          } else {
+            memcache.delete(buildKey);
+          }
+          break;
+        }
         // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
         // can provide an appropriate error message to the user.
         // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
@@ -597,6 +679,13 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         } catch (IOException e) {
           // No error content. That's ok.
         }
+        if (!lastHost && (responseCode == HttpURLConnection.HTTP_UNAVAILABLE
+            || responseCode == HttpURLConnection.HTTP_FORBIDDEN)) {
+          // The build server is full, warming up or shutting down. Try the next one.
+          LOG.info("Build server " + host + " refused build: " + error);
+          dispatcher.reportUnavailable(host);
+          continue;
+        }
         if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
           // The build server is not compatible with this App Inventor instance. Log this as severe
           // so the owner of the app engine instance will know about it.
@@ -612,7 +701,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile.getContent().length;
+      int zipFileLength = zipFile != null ? zipFile.getContent().length : 0;
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -649,19 +738,28 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     return new RpcResult(true, "Building " + projectName, "");
   }
 
+  /*
+   * Returns whether the given exception means that no connection could be made, so nothing was
+   * sent. Some HttpURLConnection implementations only connect when the response is read.
+   */
+  private static boolean isConnectFailure(IOException e) {
+    return e instanceof ConnectException || e instanceof UnknownHostException
+        || e instanceof NoRouteToHostException;
+  }
+
   private String buildErrorMsg(String exceptionName, URL buildURL, String userId, long projectId) {
     return "Request to build failed with " + exceptionName + ", user=" + userId
         + ", project=" + projectId + ", build URL is " + buildURL
-        + " [" + buildURL.toString().length() + "]";
+        + (buildURL != null ? " [" + buildURL.toString().length() + "]" : "");
   }
 
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
+  private String getBuildServerUrlStr(String host, String userName, String userId,
                                       long projectId, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "http://" + host + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
@@ -675,6 +773,14 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  private static synchronized BuildServerDispatcher getBuildServerDispatcher() {
+    if (buildServerDispatcher == null) {
+      buildServerDispatcher = new BuildServerDispatcher(buildServerHost.get(),
+          buildServerRefreshMillis.get(), BUILD_SERVER_POLL_TIMEOUT_MILLIS);
+    }
+    return buildServerDispatcher;
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       if (appengineHost.get()=="") {
@@ -708,6 +814,10 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   /**
    * Check if there are any build results available for the given user's project
    *
+   * <p>While the build is running, this waits for up to BUILD_PROGRESS_WAIT_MILLIS for the build
+   * server to report a change in its progress, and only reads the build output once the build
+   * server reports that the build has finished.
+   *
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
@@ -721,10 +831,37 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   @Override
   public RpcResult getBuildResult(User user, long projectId, String target) {
     String userId = user.getUserId();
+    String buildKey = getBuildRecordKey(userId, projectId, target);
+    BuildRecord record = (BuildRecord) memcache.get(buildKey);
+    int progress;
+    if (record != null) {
+      if (!record.finished) {
+        // Wait for the build server to report a change, instead of reading the build output
+        // files while the build is running.
+        BuildServerDispatcher.BuildStatus status = getBuildServerDispatcher().awaitProgress(
+            record.host, record.buildId, record.progress, BUILD_PROGRESS_WAIT_MILLIS);
+        if (status != null) {
+          record = new BuildRecord(record.host, record.buildId, status.getProgress(),
+              status.isFinished());
+          memcache.put(buildKey, record,
+              Expiration.byDeltaSeconds(BUILD_RECORD_EXPIRATION_SECONDS));
+          if (!status.isFinished()) {
+            // Build not finished
+            return new RpcResult(-1, "" + status.getProgress(), "",
+                "" + BUILD_PROGRESS_RETRY_MILLIS);
+          }
+        }
+        // Otherwise the build server no longer knows the build. Its output files are the only
+        // way to learn how it ended.
+      }
+      progress = record.progress;
+    } else {
+      progress = getCurrentProgress(user, projectId, target);
+    }
+
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
-    RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
+    RpcResult buildResult = new RpcResult(-1, "" + progress, ""); // Build not finished
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
         String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
@@ -743,22 +880,28 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     return buildResult;
   }
 
-  /**
-   * Check if there are any build progress available for the given user's project
+  private static String getBuildRecordKey(String userId, long projectId, String target) {
+    return "build:" + userId + ":" + projectId + ":" + target;
+  }
+
+  /*
+   * Asks the build server of a build that has no build id for its progress. Such build servers
+   * only know the progress of their latest build.
    *
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @return the progress, or 0 if it is not known
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  private int getCurrentProgress(User user, long projectId, String target) {
+    int progress = 0;
     try {
       String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
       String outputFileDir = BUILD_FOLDER + '/' + target;
-      URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
 
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
+      // Ask the build server that is building the project.
+      String host = getBuildServerDispatcher().getHostForProject(userId, projectId);
+      URL buildServerUrl = new URL(getBuildServerUrlStr(host, user.getUserEmail(),
         userId, projectId, outputFileDir));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
@@ -770,7 +913,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
             String content = readContent(connection.getInputStream());
             if (content != null && !content.isEmpty()) {
               LOG.info("The current progress is " + content + "%.");
-              currentProgress = Integer.parseInt(content);
+              progress = Integer.parseInt(content);
             }
           } catch (IOException e) {
             // No content. That's ok.
@@ -785,6 +928,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       } catch (RuntimeException e) {
         // that's ok, nothing to do
       }
+    return progress;
   }
 
   // Nicely format floating number using only two decimal places
@@ -273,6 +273,8 @@ public interface ProjectService extends RemoteService {
    *            0: Build is done and was successful
    *            1: Build is done and was unsuccessful
    *           -1: Build is not yet done.
+   *          While the build is not done, RpcResult.extra may hold how many milliseconds to
+   *          wait before asking again. If it is null, the client waits as long as it always has.
    */
   RpcResult getBuildResult(long projectId, String target);
 
@@ -0,0 +1,236 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BuildServerDispatcher}.
+ *
+ */
+public class BuildServerDispatcherTest extends TestCase {
+  /*
+   * A build server that only answers the health, vars.json and progress pages.
+   */
+  private static class FakeBuildServer {
+    private final HttpServer server;
+    volatile int healthCode = 200;
+    volatile int activeTasks;
+    volatile int queuedTasks;
+    volatile int polls;
+    volatile String progressQuery;
+    // The health page does not answer until this is released.
+    final CountDownLatch healthLatch = new CountDownLatch(1);
+    volatile boolean hang;
+
+    FakeBuildServer() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/buildserver/health", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          polls++;
+          if (hang) {
+            try {
+              healthLatch.await();
+            } catch (InterruptedException e) {
+              // Answer now.
+            }
+          }
+          respond(exchange, healthCode, "OK");
+        }
+      });
+      server.createContext("/buildserver/vars.json", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          respond(exchange, 200, "{\"active-build-tasks\":" + activeTasks
+              + ",\"queued-build-tasks\":" + queuedTasks
+              + ",\"maximum-simultaneous-build-tasks-allowed\":2}");
+        }
+      });
+      server.createContext("/buildserver/progress", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          progressQuery = exchange.getRequestURI().getQuery();
+          if (progressQuery.startsWith("buildId=build-1&")) {
+            respond(exchange, 200, "{\"buildId\":\"build-1\",\"progress\":35,"
+                + "\"finished\":false}");
+          } else {
+            respond(exchange, 404, "Unknown build");
+          }
+        }
+      });
+      server.start();
+    }
+
+    String getHost() {
+      return "localhost:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+      healthLatch.countDown();
+      server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+      byte[] bytes = body.getBytes(Charsets.UTF_8);
+      exchange.sendResponseHeaders(code, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+  }
+
+  private FakeBuildServer node1;
+  private FakeBuildServer node2;
+
+  @Override
+  protected void setUp() throws Exception {
+    node1 = new FakeBuildServer();
+    node2 = new FakeBuildServer();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    node1.stop();
+    node2.stop();
+  }
+
+  private BuildServerDispatcher newDispatcher(long refreshIntervalMillis) {
+    return new BuildServerDispatcher(node1.getHost() + ", " + node2.getHost(),
+        refreshIntervalMillis, 2000);
+  }
+
+  public void testSingleHostIsNotPolled() throws Exception {
+    BuildServerDispatcher dispatcher = new BuildServerDispatcher(node1.getHost(), 0, 2000);
+    assertEquals(ImmutableList.of(node1.getHost()), dispatcher.getCandidates());
+    assertEquals(0, node1.polls);
+  }
+
+  public void testLeastLoadedNodeIsFirst() throws Exception {
+    node1.activeTasks = 2;
+    node1.queuedTasks = 1;
+    node2.activeTasks = 1;
+    BuildServerDispatcher dispatcher = newDispatcher(0);
+    assertEquals(ImmutableList.of(node2.getHost(), node1.getHost()), dispatcher.getCandidates());
+
+    node2.activeTasks = 2;
+    node2.queuedTasks = 3;
+    assertEquals(ImmutableList.of(node1.getHost(), node2.getHost()), dispatcher.getCandidates());
+  }
+
+  public void testUnhealthyNodeIsLast() throws Exception {
+    node2.healthCode = 503;  // Warming up
+    BuildServerDispatcher dispatcher = newDispatcher(0);
+    assertEquals(ImmutableList.of(node1.getHost(), node2.getHost()), dispatcher.getCandidates());
+
+    node1.healthCode = 403;  // Shutting down
+    node2.healthCode = 200;
+    assertEquals(ImmutableList.of(node2.getHost(), node1.getHost()), dispatcher.getCandidates());
+  }
+
+  public void testUnreachableNodeIsLast() throws Exception {
+    node1.stop();
+    BuildServerDispatcher dispatcher = newDispatcher(0);
+    assertEquals(ImmutableList.of(node2.getHost(), node1.getHost()), dispatcher.getCandidates());
+  }
+
+  public void testHangingNodesShareOneTimeout() throws Exception {
+    node1.hang = true;
+    node2.hang = true;
+    BuildServerDispatcher dispatcher = new BuildServerDispatcher(
+        node1.getHost() + ", " + node2.getHost(), 0, 500);
+    long start = System.currentTimeMillis();
+    assertEquals(2, dispatcher.getCandidates().size());
+    // Polling both nodes one after the other would take 1000 ms or more.
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  public void testNodeBeingPolledIsNotPolledAgain() throws Exception {
+    node1.hang = true;
+    final BuildServerDispatcher dispatcher = newDispatcher(0);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<String>> polling = executor.submit(new Callable<List<String>>() {
+        @Override
+        public List<String> call() {
+          return dispatcher.getCandidates();
+        }
+      });
+      while (node1.polls == 0) {
+        Thread.sleep(10);
+      }
+      // The other request is polling node1, so this one does not wait for it.
+      long start = System.currentTimeMillis();
+      assertEquals(2, dispatcher.getCandidates().size());
+      assertTrue(System.currentTimeMillis() - start < 1000);
+      assertEquals(1, node1.polls);
+
+      node1.healthLatch.countDown();
+      assertEquals(2, polling.get(10, TimeUnit.SECONDS).size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testStatusIsReusedUntilRefresh() throws Exception {
+    BuildServerDispatcher dispatcher = newDispatcher(60000);
+    dispatcher.getCandidates();
+    dispatcher.getCandidates();
+    assertEquals(1, node1.polls);
+    assertEquals(1, node2.polls);
+  }
+
+  public void testDispatchedBuildsCountUntilRefresh() throws Exception {
+    BuildServerDispatcher dispatcher = newDispatcher(60000);
+    String first = dispatcher.getCandidates().get(0);
+    dispatcher.reportDispatched(first, "user", 1);
+    // The other node now has less load.
+    String second = dispatcher.getCandidates().get(0);
+    assertFalse(first.equals(second));
+    dispatcher.reportDispatched(second, "user", 2);
+
+    assertEquals(first, dispatcher.getHostForProject("user", 1));
+    assertEquals(second, dispatcher.getHostForProject("user", 2));
+  }
+
+  public void testRefusingNodeIsLastUntilRefresh() throws Exception {
+    BuildServerDispatcher dispatcher = newDispatcher(60000);
+    String first = dispatcher.getCandidates().get(0);
+    dispatcher.reportUnavailable(first);
+    assertEquals(first, dispatcher.getCandidates().get(1));
+  }
+
+  public void testAwaitProgress() throws Exception {
+    BuildServerDispatcher dispatcher = newDispatcher(0);
+    BuildServerDispatcher.BuildStatus status =
+        dispatcher.awaitProgress(node1.getHost(), "build-1", 10, 100);
+    assertEquals("buildId=build-1&seenProgress=10&waitMillis=100", node1.progressQuery);
+    assertEquals(35, status.getProgress());
+    assertFalse(status.isFinished());
+
+    assertNull(dispatcher.awaitProgress(node1.getHost(), "build-2", 10, 100));
+    node2.stop();
+    assertNull(dispatcher.awaitProgress(node2.getHost(), "build-1", 10, 100));
+  }
+}
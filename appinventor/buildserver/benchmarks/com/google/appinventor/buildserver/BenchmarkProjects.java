@@ -0,0 +1,140 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The corpus of projects that the benchmarks build, generated rather than checked in so that the
+ * benchmarks run offline and the projects always match the components of this build server.
+ *
+ * <p>Each screen has a few common components, and blocks that handle the events of its button.
+ * Assets are random bytes, which do not compress, like the images and sounds of real projects.
+ */
+final class BenchmarkProjects {
+  // The names of the generated projects' package and project.
+  private static final String USER_PACKAGE = "appinventor.ai_benchmark";
+  private static final String PROJECT_NAME = "Benchmark";
+
+  /**
+   * The assets of a generated project.
+   */
+  enum Assets {
+    // Two small images.
+    SMALL(2, 10 * 1024),
+    // Ten large images or sounds.
+    LARGE(10, 1024 * 1024);
+
+    private final int count;
+    private final int size;
+
+    Assets(int count, int size) {
+      this.count = count;
+      this.size = size;
+    }
+  }
+
+  private BenchmarkProjects() {
+  }
+
+  /**
+   * Writes a project with the given number of screens and assets to a new zip file in the given
+   * directory, as the App Inventor server sends projects to the build server. A project is the
+   * same every time it is generated.
+   */
+  static File write(File directory, int screens, Assets assets) throws IOException {
+    File zipFile = new File(directory, PROJECT_NAME + "-" + screens + "-" + assets + ".aia");
+    String sourceDir = "src/" + USER_PACKAGE.replace('.', '/') + "/" + PROJECT_NAME + "/";
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      addEntry(zip, "youngandroidproject/project.properties", (
+          "main=" + USER_PACKAGE + "." + PROJECT_NAME + ".Screen1\n"
+          + "name=" + PROJECT_NAME + "\n"
+          + "assets=../assets\n"
+          + "source=../src\n"
+          + "build=../build\n"
+          + "versioncode=1\n"
+          + "versionname=1.0\n"
+          + "useslocation=False\n").getBytes(Charsets.UTF_8));
+      for (int i = 1; i <= screens; i++) {
+        String screenName = "Screen" + i;
+        addEntry(zip, sourceDir + screenName + ".scm",
+            getFormSource(screenName).getBytes(Charsets.UTF_8));
+        addEntry(zip, sourceDir + screenName + ".bky",
+            getBlocksSource().getBytes(Charsets.UTF_8));
+      }
+      Random random = new Random(screens);
+      for (int i = 1; i <= assets.count; i++) {
+        byte[] contents = new byte[assets.size];
+        random.nextBytes(contents);
+        addEntry(zip, "assets/asset" + i + ".png", contents);
+      }
+    } finally {
+      zip.close();
+    }
+    return zipFile;
+  }
+
+  private static void addEntry(ZipOutputStream zip, String name, byte[] contents)
+      throws IOException {
+    zip.putNextEntry(new ZipEntry(name));
+    zip.write(contents);
+    zip.closeEntry();
+  }
+
+  /**
+   * Returns the source of a screen with a few common components, as stored in its .scm file.
+   */
+  static String getFormSource(String screenName) {
+    return "#|\n$JSON\n"
+        + "{\"YaVersion\":\"148\",\"Source\":\"Form\",\"Properties\":{\"$Name\":\"" + screenName
+        + "\",\"$Type\":\"Form\",\"$Version\":\"20\",\"Uuid\":\"0\",\"Title\":\"" + screenName
+        + "\",\"$Components\":["
+        + "{\"$Name\":\"VerticalArrangement1\",\"$Type\":\"VerticalArrangement\","
+        + "\"$Version\":\"3\",\"Uuid\":\"1\",\"$Components\":["
+        + "{\"$Name\":\"Label1\",\"$Type\":\"Label\",\"$Version\":\"3\",\"Uuid\":\"2\","
+        + "\"Text\":\"Hello\"},"
+        + "{\"$Name\":\"TextBox1\",\"$Type\":\"TextBox\",\"$Version\":\"5\",\"Uuid\":\"3\"},"
+        + "{\"$Name\":\"Button1\",\"$Type\":\"Button\",\"$Version\":\"6\",\"Uuid\":\"4\","
+        + "\"Text\":\"Go\"}]},"
+        + "{\"$Name\":\"Clock1\",\"$Type\":\"Clock\",\"$Version\":\"2\",\"Uuid\":\"5\"},"
+        + "{\"$Name\":\"Notifier1\",\"$Type\":\"Notifier\",\"$Version\":\"4\",\"Uuid\":\"6\"}"
+        + "]}}\n|#\n";
+  }
+
+  /*
+   * Returns blocks that copy the text box to the label when the button is clicked.
+   */
+  private static String getBlocksSource() {
+    return "<xml xmlns=\"http://www.w3.org/1999/xhtml\">"
+        + "<block type=\"component_event\" id=\"1\" x=\"0\" y=\"0\">"
+        + "<mutation component_type=\"Button\" instance_name=\"Button1\""
+        + " event_name=\"Click\"></mutation>"
+        + "<field name=\"COMPONENT_SELECTOR\">Button1</field>"
+        + "<statement name=\"DO\">"
+        + "<block type=\"component_set_get\" id=\"2\">"
+        + "<mutation component_type=\"Label\" set_or_get=\"set\" property_name=\"Text\""
+        + " is_generic=\"false\" instance_name=\"Label1\"></mutation>"
+        + "<field name=\"COMPONENT_SELECTOR\">Label1</field>"
+        + "<field name=\"PROP\">Text</field>"
+        + "<value name=\"VALUE\">"
+        + "<block type=\"component_set_get\" id=\"3\">"
+        + "<mutation component_type=\"TextBox\" set_or_get=\"get\" property_name=\"Text\""
+        + " is_generic=\"false\" instance_name=\"TextBox1\"></mutation>"
+        + "<field name=\"COMPONENT_SELECTOR\">TextBox1</field>"
+        + "<field name=\"PROP\">Text</field>"
+        + "</block></value></block></statement></block>"
+        + "<yacodeblocks ya-version=\"148\" language-version=\"20\"></yacodeblocks>"
+        + "</xml>\n";
+  }
+}
@@ -0,0 +1,73 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks turning the output of the build tools into the HTML messages sent back with every
+ * build result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompilerOutputBenchmark {
+  // The temporary source directory that the output refers to.
+  private static final String SRC_PATH = "/tmp/1466111111111_0.123-0/youngandroidproject/../src";
+
+  // The number of screens whose compilation the output reports.
+  @Param({"1", "20"})
+  public int screens;
+
+  private String output;
+
+  @Setup(Level.Trial)
+  public void createOutput() {
+    // Like the output of a build with Kawa warnings in every screen and in runtime.scm.
+    StringBuilder builder = new StringBuilder();
+    builder.append("________Preparing application icon\n")
+        .append("________Creating animation xml\n")
+        .append("________Determining permissions\n")
+        .append("________Compiling source files\n");
+    for (int i = 1; i <= screens; i++) {
+      String yail = SRC_PATH + "/appinventor/ai_benchmark/Benchmark/Screen" + i + ".yail";
+      builder.append("(compiling " + yail + " to appinventor.ai_benchmark.Benchmark.Screen" + i
+          + ")\n");
+      builder.append(yail + ":" + (100 + i) + ":7: warning: no known slot 'Text' in "
+          + "java.lang.Object\n");
+      builder.append("  (set-and-coerce-property! 'Label1 'Text <value>)\n");
+      builder.append(yail + ":" + (200 + i) + ":12: warning - unreachable code\n");
+      builder.append("runtime.scm:" + (1000 + i) + ":3: warning: variable 'x' is unused\n");
+      builder.append("  (define x 1)\n");
+    }
+    builder.append("________Invoking DX\n")
+        .append("DX time: 12.5 seconds\n")
+        .append("________Invoking AAPT\n")
+        .append("________Invoking ApkBuilder\n");
+    output = builder.toString();
+  }
+
+  @Benchmark
+  public String processCompilerOutput() {
+    return ProjectBuilder.processCompilerOutput(output, SRC_PATH);
+  }
+}
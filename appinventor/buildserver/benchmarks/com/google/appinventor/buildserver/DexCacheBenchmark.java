@@ -0,0 +1,105 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmarks how DexExecTask finds the pre-dexed version of a library in the dex cache, which
+ * it does for every library of every build. The library is hashed again when it has changed,
+ * and its hash is reused otherwise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DexCacheBenchmark {
+  // The size of the library, in MB. The App Inventor runtime is a few MB.
+  @Param({"1", "8"})
+  public int libraryMb;
+
+  private File directory;
+  private File library;
+  private DexCache dexCache;
+  private long lastModified;
+
+  // Writes an empty dex file, since only the cache lookups are measured.
+  private final DexCache.Dexer dexer = new DexCache.Dexer() {
+    @Override
+    public boolean dex(File input, File output) {
+      try {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(output));
+        try {
+          zip.putNextEntry(new ZipEntry("classes.dex"));
+          zip.closeEntry();
+        } finally {
+          zip.close();
+        }
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  };
+
+  @Setup(Level.Trial)
+  public void writeLibrary() throws IOException {
+    directory = Files.createTempDir();
+    library = new File(directory, "library.jar");
+    byte[] contents = new byte[libraryMb * 1024 * 1024];
+    new Random(libraryMb).nextBytes(contents);
+    Files.write(contents, library);
+    lastModified = library.lastModified();
+    dexCache = DexCache.getInstance(new File(directory, "dexCache"));
+    if (dexCache.get(library, dexer) == null) {
+      throw new IllegalStateException("Unable to add the library to the dex cache");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteLibrary() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public File unchangedLibrary() throws IOException {
+    return dexCache.get(library, dexer);
+  }
+
+  @Benchmark
+  public File changedLibrary() throws IOException {
+    // A new modification time makes the cache hash the library again. The contents are the
+    // same, so it still finds the pre-dexed library.
+    lastModified += 1000;
+    library.setLastModified(lastModified);
+    return dexCache.get(library, dexer);
+  }
+}
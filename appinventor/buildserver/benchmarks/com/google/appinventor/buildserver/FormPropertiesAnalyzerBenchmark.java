@@ -0,0 +1,65 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing the .scm file of a screen, which every build does for every screen to find
+ * the components that the project uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormPropertiesAnalyzerBenchmark {
+  // How many times the components of the benchmark screen are repeated in it.
+  @Param({"1", "20"})
+  public int copies;
+
+  private String source;
+
+  @Setup(Level.Trial)
+  public void createSource() {
+    // Repeats the components of the benchmark screen, which all have different names.
+    String screen = BenchmarkProjects.getFormSource("Screen1");
+    int start = screen.indexOf("\"$Components\":[") + "\"$Components\":[".length();
+    int end = screen.lastIndexOf("]}}");
+    String components = screen.substring(start, end);
+    StringBuilder allComponents = new StringBuilder(components);
+    for (int i = 1; i < copies; i++) {
+      allComponents.append(',').append(components.replaceAll("1\"", (i + 1) + "\""));
+    }
+    source = screen.substring(0, start) + allComponents + screen.substring(end);
+  }
+
+  @Benchmark
+  public JSONObject parseSourceFile() {
+    return FormPropertiesAnalyzer.parseSourceFile(source);
+  }
+
+  @Benchmark
+  public Set<String> getComponentTypes() {
+    return FormPropertiesAnalyzer.getComponentTypesFromFormFile(source);
+  }
+}
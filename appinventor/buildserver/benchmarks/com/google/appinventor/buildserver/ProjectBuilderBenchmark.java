@@ -0,0 +1,91 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks ProjectBuilder.build from the input zip to the signed APK, on projects of
+ * different sizes.
+ *
+ * <p>The dex cache is kept across builds, as on a build server, and the result and companion
+ * caches are not set, so that every build compiles and dexes its project.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProjectBuilderBenchmark {
+  // Maximum ram that can be used by a child process, in MB, as on a build server.
+  private static final int CHILD_PROCESS_RAM_MB = 2048;
+
+  @Param({"1", "5", "20"})
+  public int screens;
+
+  @Param({"SMALL", "LARGE"})
+  public BenchmarkProjects.Assets assets;
+
+  private File directory;
+  private File inputZip;
+  private File dexCacheDir;
+
+  @Setup(Level.Trial)
+  public void writeProject() throws IOException {
+    directory = Files.createTempDir();
+    inputZip = BenchmarkProjects.write(directory, screens, assets);
+    dexCacheDir = new File(directory, "dexCache");
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteProject() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public File build() throws IOException {
+    File workDir = new File(directory, "work");
+    File outputDir = new File(directory, "output");
+    FileUtils.deleteDirectory(workDir);
+    FileUtils.deleteDirectory(outputDir);
+    workDir.mkdir();
+    outputDir.mkdir();
+
+    ProjectBuilder projectBuilder = new ProjectBuilder(workDir);
+    NioZipFile zipFile = new NioZipFile(inputZip);
+    try {
+      Result result = projectBuilder.build("benchmark", zipFile, outputDir, false,
+          CHILD_PROCESS_RAM_MB, dexCacheDir.getAbsolutePath(), new BuildTimings(), null);
+      if (!result.succeeded()) {
+        throw new IllegalStateException("Build failed: " + result.getOutput() + " "
+            + result.getError());
+      }
+    } finally {
+      zipFile.close();
+    }
+    return projectBuilder.getOutputApk();
+  }
+}
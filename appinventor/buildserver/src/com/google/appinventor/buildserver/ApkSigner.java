@@ -0,0 +1,386 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Signs and aligns an APK in a single step, in place of running jarsigner and then zipalign.
+ *
+ * <p>The entries of the unsigned APK are copied as they are stored, without being inflated and
+ * compressed again: their data is transferred from the input file to the output file by the
+ * channels, and uncompressed entries are padded so that their data starts on a 4 byte boundary,
+ * as {@code zipalign 4} does. Only the digests need the uncompressed data. They are computed in
+ * a first pass, so that the manifest, signature file and signature block can be written before
+ * the other entries, with the manifest first, as jarsigner does. Readers such as
+ * {@link java.util.jar.JarInputStream} only find a manifest that comes first.
+ *
+ * <p>The signature is the same as the one made by
+ * {@code jarsigner -digestalg SHA1 -sigalg MD5withRSA}.
+ */
+final class ApkSigner {
+  private static final int ALIGNMENT = 4;
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String SIGNATURE_ALGORITHM = "MD5withRSA";
+  private static final String CREATED_BY = "1.0 (App Inventor)";
+  private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  // Maximum length of a manifest line, in bytes, not counting the line break.
+  private static final int MAX_LINE_LENGTH = 72;
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  // Size of a zip local file header, not counting the name and the extra field.
+  private static final int LOCAL_HEADER_SIZE = 30;
+
+  private final PrivateKey privateKey;
+  private final X509Certificate certificate;
+  private final String signerName;
+
+  /**
+   * Creates an ApkSigner that signs with the given key.
+   *
+   * @param privateKey  the RSA private key
+   * @param certificate  the certificate of the key
+   * @param alias  the alias of the key, which names the signature files as in jarsigner
+   */
+  ApkSigner(PrivateKey privateKey, X509Certificate certificate, String alias) {
+    this.privateKey = privateKey;
+    this.certificate = certificate;
+    // jarsigner names the signature files after the first 8 characters of the alias.
+    String name = alias.toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9_-]", "_");
+    this.signerName = name.length() > 8 ? name.substring(0, 8) : name;
+  }
+
+  /**
+   * Creates an ApkSigner that signs with a key from the given keystore.
+   *
+   * @param keystoreFile  the keystore
+   * @param alias  the alias of the key
+   * @param password  the password of the keystore and of the key
+   */
+  static ApkSigner fromKeyStore(File keystoreFile, String alias, String password)
+      throws IOException, GeneralSecurityException {
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, password.toCharArray());
+    } finally {
+      in.close();
+    }
+    PrivateKey key = (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+    if (key == null || !"RSA".equals(key.getAlgorithm())) {
+      throw new GeneralSecurityException("No RSA key named " + alias + " in " + keystoreFile);
+    }
+    return new ApkSigner(key, (X509Certificate) keyStore.getCertificate(alias), alias);
+  }
+
+  /**
+   * Writes a signed and aligned copy of the given APK. Any signature the APK already has is
+   * replaced.
+   *
+   * @param inputApk  the unsigned APK
+   * @param outputApk  the file to write the signed APK to
+   */
+  void signAndAlign(File inputApk, File outputApk) throws IOException, GeneralSecurityException {
+    NioZipFile input = new NioZipFile(inputApk);
+    try {
+      MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+      writeLine(manifest, "Manifest-Version: 1.0");
+      writeLine(manifest, "Created-By: " + CREATED_BY);
+      manifest.write(CRLF);
+      ByteArrayOutputStream signatureFileEntries = new ByteArrayOutputStream();
+      List<NioZipFile.Entry> entries = new ArrayList<NioZipFile.Entry>();
+
+      for (NioZipFile.Entry entry : input.getEntries()) {
+        String name = entry.getName();
+        if (isSignatureFile(name)) {
+          continue;
+        }
+        entries.add(entry);
+        if (!entry.isDirectory()) {
+          // The manifest has the digest of the entry, and the signature file has the digest of
+          // the manifest section.
+          input.digest(entry, digest);
+          ByteArrayOutputStream section = new ByteArrayOutputStream();
+          writeLine(section, "Name: " + name);
+          writeLine(section, DIGEST_ALGORITHM + "-Digest: " + base64(digest.digest()));
+          section.write(CRLF);
+          section.writeTo(manifest);
+          writeLine(signatureFileEntries, "Name: " + name);
+          writeLine(signatureFileEntries, DIGEST_ALGORITHM + "-Digest: "
+              + base64(digest.digest(section.toByteArray())));
+          signatureFileEntries.write(CRLF);
+        }
+      }
+
+      byte[] manifestBytes = manifest.toByteArray();
+      ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+      writeLine(signatureFile, "Signature-Version: 1.0");
+      writeLine(signatureFile, "Created-By: " + CREATED_BY);
+      writeLine(signatureFile, DIGEST_ALGORITHM + "-Digest-Manifest: "
+          + base64(digest.digest(manifestBytes)));
+      signatureFile.write(CRLF);
+      signatureFileEntries.writeTo(signatureFile);
+      byte[] signatureFileBytes = signatureFile.toByteArray();
+      byte[] signatureBlock = sign(signatureFileBytes);
+
+      FileOutputStream out = new FileOutputStream(outputApk);
+      try {
+        AlignedZipWriter output = new AlignedZipWriter(out.getChannel());
+        output.writeEntry(MANIFEST_NAME, manifestBytes);
+        output.writeEntry("META-INF/" + signerName + ".SF", signatureFileBytes);
+        output.writeEntry("META-INF/" + signerName + ".RSA", signatureBlock);
+        for (NioZipFile.Entry entry : entries) {
+          output.copyEntry(input, entry);
+        }
+        output.finish();
+      } finally {
+        out.close();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  /*
+   * Returns whether the given entry is part of a jar signature.
+   */
+  private static boolean isSignatureFile(String name) {
+    if (name.equals(MANIFEST_NAME)) {
+      return true;
+    }
+    if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+      return false;
+    }
+    String upperCaseName = name.toUpperCase(Locale.ENGLISH);
+    return upperCaseName.endsWith(".SF") || upperCaseName.endsWith(".RSA")
+        || upperCaseName.endsWith(".DSA") || upperCaseName.endsWith(".EC");
+  }
+
+  /*
+   * Returns a PKCS #7 signature block of the given signature file, as jarsigner writes it.
+   */
+  private byte[] sign(byte[] signatureFile) throws IOException, GeneralSecurityException {
+    try {
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+          .setDirectSignature(true)
+          .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey), certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData =
+          generator.generate(new CMSProcessableByteArray(signatureFile), false);
+      return signedData.toASN1Structure().getEncoded(ASN1Encoding.DER);
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    } catch (CMSException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  /*
+   * Writes a manifest line, breaking it into continuation lines as java.util.jar.Manifest does.
+   */
+  private static void writeLine(ByteArrayOutputStream out, String line) throws IOException {
+    byte[] bytes = line.getBytes(Charsets.UTF_8);
+    int offset = Math.min(bytes.length, MAX_LINE_LENGTH);
+    out.write(bytes, 0, offset);
+    out.write(CRLF);
+    while (offset < bytes.length) {
+      int length = Math.min(bytes.length - offset, MAX_LINE_LENGTH - 1);
+      out.write(' ');
+      out.write(bytes, offset, length);
+      out.write(CRLF);
+      offset += length;
+    }
+  }
+
+  private static String base64(byte[] bytes) {
+    return BaseEncoding.base64().encode(bytes);
+  }
+
+  /*
+   * Writes a zip file to a channel. Entries copied from another zip keep their compressed data,
+   * which is transferred from channel to channel, and uncompressed entries are padded with an
+   * extra field so that their data starts on a 4 byte boundary.
+   */
+  private static final class AlignedZipWriter {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int UTF8_FLAG = 0x800;
+
+    private final FileChannel channel;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private long position;
+    private int entryCount;
+
+    AlignedZipWriter(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.position = channel.position();
+    }
+
+    void copyEntry(NioZipFile input, NioZipFile.Entry entry) throws IOException {
+      writeLocalHeader(entry.getName(), entry.getMethod(), entry.getDosTime(), entry.getCrc(),
+          entry.getCompressedSize(), entry.getSize());
+      input.transferRawData(entry, channel);
+      position += entry.getCompressedSize();
+    }
+
+    void writeEntry(String name, byte[] contents) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+        out.write(contents);
+        out.close();
+      } finally {
+        deflater.end();
+      }
+      byte[] data = compressed.toByteArray();
+      writeLocalHeader(name, ZipEntry.DEFLATED, toDosTime(System.currentTimeMillis()),
+          crc.getValue(), data.length, contents.length);
+      write(ByteBuffer.wrap(data));
+    }
+
+    private void writeLocalHeader(String name, int method, int dosTime, long crc,
+        long compressedSize, long size) throws IOException {
+      if (entryCount == 0xffff || position + compressedSize >= 0xffffffffL) {
+        throw new IOException("The APK is too large for a zip file without ZIP64");
+      }
+      byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+      int flags = nameBytes.length == name.length() ? 0 : UTF8_FLAG;
+      int version = method == ZipEntry.STORED ? 10 : 20;
+      int padding = 0;
+      if (method == ZipEntry.STORED) {
+        long dataOffset = position + LOCAL_HEADER_SIZE + nameBytes.length;
+        padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + nameBytes.length + padding)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(LOCAL_HEADER_SIGNATURE)
+          .putShort((short) version)
+          .putShort((short) flags)
+          .putShort((short) method)
+          .putInt(dosTime)
+          .putInt((int) crc)
+          .putInt((int) compressedSize)
+          .putInt((int) size)
+          .putShort((short) nameBytes.length)
+          .putShort((short) padding)
+          .put(nameBytes);
+      header.position(0);
+
+      ByteBuffer centralHeader = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + nameBytes.length)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      centralHeader.putInt(CENTRAL_HEADER_SIGNATURE)
+          .putShort((short) 20)
+          .putShort((short) version)
+          .putShort((short) flags)
+          .putShort((short) method)
+          .putInt(dosTime)
+          .putInt((int) crc)
+          .putInt((int) compressedSize)
+          .putInt((int) size)
+          .putShort((short) nameBytes.length)
+          // Extra field, comment, disk number, and internal and external attributes.
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putInt(0)
+          .putInt((int) position)
+          .put(nameBytes);
+      centralDirectory.write(centralHeader.array());
+      entryCount++;
+
+      write(header);
+      if (method == ZipEntry.STORED && position % ALIGNMENT != 0) {
+        throw new IOException("Unable to align " + name);
+      }
+    }
+
+    /*
+     * Writes the central directory and the end of central directory record.
+     */
+    void finish() throws IOException {
+      long directoryOffset = position;
+      int directorySize = centralDirectory.size();
+      write(ByteBuffer.wrap(centralDirectory.toByteArray()));
+      ByteBuffer end = ByteBuffer.allocate(END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      end.putInt(END_SIGNATURE)
+          .putShort((short) 0)
+          .putShort((short) 0)
+          .putShort((short) entryCount)
+          .putShort((short) entryCount)
+          .putInt(directorySize)
+          .putInt((int) directoryOffset)
+          .putShort((short) 0);
+      end.position(0);
+      write(end);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer);
+      }
+    }
+
+    private static int toDosTime(long millis) {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(millis);
+      int year = calendar.get(Calendar.YEAR);
+      if (year < 1980) {
+        return (1 << 21) | (1 << 16);
+      }
+      return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21)
+          | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+          | (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+          | (calendar.get(Calendar.SECOND) >> 1);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single build request and the files that belong to it.
+ *
+ * <p>Each job gets its own directory beneath the work directory. The project is extracted and
+ * built there, and the APK, the keystore and any other output are written there.
+ * {@link #cleanUp} deletes the job's directory and its input zip, so nothing is shared between
+ * builds running at the same time.
+ *
+ * <p>If the build server is killed, or a job is never cleaned up, its directory is left behind.
+ * {@link #reapOrphanedJobDirectories} deletes the directories of jobs that are no longer running.
+ */
+final class BuildJob {
+  private static final String JOB_DIRECTORY_PREFIX = "job-";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildJob.class.getName());
+
+  private static final AtomicInteger jobCount = new AtomicInteger(0);
+
+  // The directories of the jobs that have not been cleaned up.
+  private static final Set<File> activeJobDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  private static volatile File workDirectory =
+      new File(System.getProperty("java.io.tmpdir"), "appinventor-buildserver");
+
+  private final int id;
+  private final File inputZip;
+  private final File jobDirectory;
+  private final File outputDirectory;
+  private final ProjectBuilder projectBuilder;
+  private final BuildTimings timings = new BuildTimings();
+  private final BuildProgress progress = new BuildProgress();
+  private File outputApk;
+  private File outputKeystore;
+
+  /**
+   * Creates a job, taking ownership of the given input zip file.
+   *
+   * @param inputZip  the zip file representing the App Inventor source code
+   */
+  BuildJob(File inputZip) throws IOException {
+    this.id = jobCount.incrementAndGet();
+    this.inputZip = inputZip;
+    inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
+    File workDir = workDirectory;
+    workDir.mkdirs();
+    jobDirectory = new File(workDir, JOB_DIRECTORY_PREFIX + id + "-" + System.currentTimeMillis());
+    activeJobDirectories.add(jobDirectory);
+    outputDirectory = new File(jobDirectory, "output");
+    if (!outputDirectory.mkdirs()) {
+      activeJobDirectories.remove(jobDirectory);
+      throw new IOException("Unable to create " + outputDirectory);
+    }
+    projectBuilder = new ProjectBuilder(jobDirectory);
+  }
+
+  /**
+   * Sets the directory in which job directories are created.
+   */
+  static void setWorkDirectory(File directory) {
+    workDirectory = directory;
+  }
+
+  static File getWorkDirectory() {
+    return workDirectory;
+  }
+
+  static int getActiveJobCount() {
+    return activeJobDirectories.size();
+  }
+
+  /**
+   * Builds the project.
+   *
+   * @param userName  the user name to be used in making the CN entry in a generated keystore
+   * @param isForCompanion  whether to build the companion
+   * @param childProcessRamMb  maximum ram that can be used by a child process, in MB
+   * @param dexCacheDir  the directory of the dex cache, or {@code null}
+   */
+  Result build(String userName, boolean isForCompanion, int childProcessRamMb,
+      String dexCacheDir) throws IOException {
+    long start = System.nanoTime();
+    NioZipFile zipFile = new NioZipFile(inputZip);
+    try {
+      Result buildResult = projectBuilder.build(userName, zipFile, outputDirectory,
+          isForCompanion, childProcessRamMb, dexCacheDir, timings, progress);
+      outputApk = projectBuilder.getOutputApk();
+      outputKeystore = projectBuilder.getOutputKeystore();
+      if (buildResult.succeeded()) {
+        timings.record(BuildTimings.Phase.BUILD, start);
+      }
+      return buildResult;
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  int getId() {
+    return id;
+  }
+
+  File getInputZip() {
+    return inputZip;
+  }
+
+  /**
+   * Returns how long each phase of the job took.
+   */
+  BuildTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * Returns the progress of the job, which is finished once the job is cleaned up.
+   */
+  BuildProgress getProgress() {
+    return progress;
+  }
+
+  /**
+   * Returns the directory in which the job can create files. It is deleted by {@link #cleanUp}.
+   */
+  File getOutputDirectory() {
+    return outputDirectory;
+  }
+
+  /**
+   * Returns the built APK file, or {@code null} if the build failed.
+   */
+  File getOutputApk() {
+    return outputApk;
+  }
+
+  /**
+   * Returns the generated android.keystore file, or {@code null} if the project had one.
+   */
+  File getOutputKeystore() {
+    return outputKeystore;
+  }
+
+  /**
+   * Moves the given output file out of the job directory, so that it is not deleted by
+   * {@link #cleanUp}. The caller becomes responsible for deleting it.
+   *
+   * @param outputFile  a file in the output directory
+   * @return  the new location of the file
+   */
+  File detach(File outputFile) throws IOException {
+    File detached = File.createTempFile("detached", outputFile.getName());
+    detached.deleteOnExit();  // In case build server is killed before it is deleted.
+    Files.move(outputFile, detached);
+    return detached;
+  }
+
+  /**
+   * Deletes the input zip file and the job directory, and marks the job finished.
+   */
+  void cleanUp() {
+    LOG.info("Job " + id + " phase times: " + timings);
+    inputZip.delete();
+    try {
+      FileUtils.deleteDirectory(jobDirectory);
+    } catch (IOException e) {
+      // The reaper will try again later.
+      LOG.log(Level.WARNING, "Unable to delete " + jobDirectory, e);
+    }
+    activeJobDirectories.remove(jobDirectory);
+    progress.finish();
+  }
+
+  /**
+   * Deletes the job directories in the work directory that do not belong to a job that is still
+   * running and that were last modified more than the given time ago.
+   *
+   * @param minimumAgeMillis  the minimum age of a directory that is deleted
+   * @return  the number of directories deleted
+   */
+  static int reapOrphanedJobDirectories(long minimumAgeMillis) {
+    File[] files = workDirectory.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (File file : files) {
+      if (file.isDirectory() && file.getName().startsWith(JOB_DIRECTORY_PREFIX)
+          && !activeJobDirectories.contains(file)
+          && now - file.lastModified() >= minimumAgeMillis) {
+        try {
+          FileUtils.deleteDirectory(file);
+          count++;
+          LOG.info("Deleted orphaned job directory " + file);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete orphaned job directory " + file, e);
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,189 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The progress of one build, as a percentage, and whether the build has finished.
+ *
+ * <p>Builds that clients ask about are registered by their id, which is random so that it can
+ * not be guessed. A client can wait for the progress of a build to change with
+ * {@link #awaitChange}, instead of asking again and again. A build is finished once its result
+ * has been sent, and it is forgotten some time after that by {@link #removeFinished}.
+ *
+ * <p>Each waiting client holds an HTTP worker thread, so only a limited number of clients can
+ * wait at the same time. The others are answered right away, as if their wait had timed out.
+ */
+final class BuildProgress {
+  // The progress of a build that has just started.
+  static final int INITIAL_PERCENT = 10;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildProgress.class.getName());
+
+  private static final ConcurrentMap<String, BuildProgress> registeredBuilds =
+      new ConcurrentHashMap<String, BuildProgress>();
+  // The build that was registered last, for clients that do not know the id of their build.
+  private static volatile BuildProgress latest;
+
+  // The most clients that can wait for progress at the same time, across all builds.
+  private static volatile int maxWaiters = Integer.MAX_VALUE;
+  private static final AtomicInteger waiterCount = new AtomicInteger(0);
+
+  private final String id = UUID.randomUUID().toString();
+  private int percent = INITIAL_PERCENT;
+  private boolean finished;
+  // When the build finished, in System.currentTimeMillis() time.
+  private long finishedAt;
+
+  /**
+   * Registers the given build, so that its progress can be looked up by its id.
+   */
+  static synchronized void register(BuildProgress progress) {
+    registeredBuilds.put(progress.getId(), progress);
+    latest = progress;
+  }
+
+  /**
+   * Forgets the given build, which was registered but will not run after all. If it was the latest
+   * build, there is no latest build until the next one is registered.
+   */
+  static synchronized void unregister(BuildProgress progress) {
+    registeredBuilds.remove(progress.getId());
+    if (latest == progress) {
+      latest = null;
+    }
+  }
+
+  /**
+   * Returns the registered build with the given id, or {@code null} if there is none.
+   */
+  static BuildProgress get(String id) {
+    return registeredBuilds.get(id);
+  }
+
+  /**
+   * Returns the build that was registered last, or {@code null} if there is none.
+   */
+  static BuildProgress getLatest() {
+    return latest;
+  }
+
+  /**
+   * Returns the number of registered builds, including finished builds that have not been
+   * removed yet.
+   */
+  static int getRegisteredCount() {
+    return registeredBuilds.size();
+  }
+
+  /**
+   * Removes the registered builds that finished more than the given time ago.
+   *
+   * @return  the number of builds removed
+   */
+  static int removeFinished(long minimumAgeMillis) {
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (Iterator<BuildProgress> i = registeredBuilds.values().iterator(); i.hasNext(); ) {
+      BuildProgress progress = i.next();
+      synchronized (progress) {
+        if (progress.finished && now - progress.finishedAt >= minimumAgeMillis) {
+          i.remove();
+          count++;
+        }
+      }
+    }
+    if (count > 0) {
+      LOG.info("Removed the progress of " + count + " finished builds");
+    }
+    return count;
+  }
+
+  /**
+   * Sets the most clients that can wait for progress at the same time, across all builds.
+   */
+  static void setMaxWaiters(int max) {
+    maxWaiters = max;
+  }
+
+  /**
+   * Returns the number of clients waiting for progress.
+   */
+  static int getWaiterCount() {
+    return waiterCount.get();
+  }
+
+  String getId() {
+    return id;
+  }
+
+  /**
+   * Sets the progress of the build, and wakes up the clients waiting for it to change.
+   */
+  synchronized void set(int percent) {
+    this.percent = percent;
+    notifyAll();
+  }
+
+  /**
+   * Returns the progress of the build, as a percentage.
+   */
+  synchronized int get() {
+    return percent;
+  }
+
+  /**
+   * Marks the build finished, and wakes up the clients waiting for it. Does nothing if the
+   * build is already finished.
+   */
+  synchronized void finish() {
+    if (!finished) {
+      finished = true;
+      finishedAt = System.currentTimeMillis();
+      notifyAll();
+    }
+  }
+
+  synchronized boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Waits until the progress of the build is no longer the given percentage, the build finishes,
+   * or the given time has passed. Does not wait if too many clients are already waiting.
+   *
+   * @param seenPercent  the progress the client already knows about
+   * @param timeoutMillis  the maximum time to wait
+   * @return  {@code true} if the progress changed or the build finished
+   */
+  synchronized boolean awaitChange(int seenPercent, long timeoutMillis)
+      throws InterruptedException {
+    if (waiterCount.incrementAndGet() > maxWaiters) {
+      waiterCount.decrementAndGet();
+      return percent != seenPercent || finished;
+    }
+    try {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (percent == seenPercent && !finished) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+      return true;
+    } finally {
+      waiterCount.decrementAndGet();
+    }
+  }
+}
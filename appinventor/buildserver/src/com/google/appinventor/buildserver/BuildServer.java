@@ -6,12 +6,15 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
-import com.sun.jersey.api.container.grizzly.GrizzlyServerFactory;
+import com.sun.grizzly.standalone.StaticStreamAlgorithm;
+import com.sun.grizzly.tcp.Adapter;
+import com.sun.grizzly.tcp.http11.GrizzlyAdapter;
+import com.sun.jersey.api.container.ContainerFactory;
 
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -20,12 +23,12 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -34,18 +37,25 @@ import java.lang.management.RuntimeMXBean;
 import java.lang.Math;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.URI;
 import java.net.URL;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -64,8 +74,6 @@ import javax.ws.rs.core.Response;
 // The Java class will be hosted at the URI path "/buildserver"
 @Path("/buildserver")
 public class BuildServer {
-  private ProjectBuilder projectBuilder = new ProjectBuilder();
-
   static class CommandLineOptions {
     @Option(name = "--shutdownToken",
       usage = "Token needed to shutdown the server remotely.")
@@ -79,10 +87,20 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for a free build slot when " +
+      "--maxSimultaneousBuilds builds are already running. 0 means additional builds are rejected.")
+    int maxQueuedBuilds = 0;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
 
+    @Option(name = "--httpThreads",
+      usage = "Number of threads that handle HTTP requests. Up to half of them can be waiting " +
+      "for the progress of a build; other progress requests are answered right away.")
+    int httpThreads = 32;
+
     @Option(name = "--requiredHosts",
       usage = "If specified, a list of hosts which are permitted to use this BuildServer, other the server is open to all.",
       handler = StringArrayOptionHandler.class)
@@ -92,9 +110,111 @@ public class BuildServer {
       usage = "Turn on debugging, which enables the non-async calls of the buildserver.")
     boolean debug = false;
     @Option(name = "--dexCacheDir",
-            usage = "the directory to cache the pre-dexed libraries")
+            usage = "the directory to cache the pre-dexed libraries. Several build servers " +
+            "can share the same directory.")
     String dexCacheDir = null;
 
+    @Option(name = "--dexCacheMaxMb",
+      usage = "Maximum size of the dex cache directory, in MB. Least recently used libraries " +
+      "are deleted when it grows larger. 0 means unlimited.")
+    int dexCacheMaxMb = 1024;
+
+    @Option(name = "--classCacheDir",
+      usage = "the directory to cache the classes compiled from each screen, so that later " +
+      "builds only compile the screens that changed. Several build servers can share the " +
+      "same directory.")
+    String classCacheDir = null;
+
+    @Option(name = "--classCacheMaxMb",
+      usage = "Maximum size of the class cache directory, in MB. Least recently used screens " +
+      "are deleted when it grows larger. 0 means unlimited.")
+    int classCacheMaxMb = 512;
+
+    @Option(name = "--resultCacheDir",
+      usage = "the directory to cache the APKs of successful builds, so that building a project " +
+      "that has not changed returns the same APK. Several build servers can share the same " +
+      "directory.")
+    String resultCacheDir = null;
+
+    @Option(name = "--resultCacheMaxMb",
+      usage = "Maximum size of the result cache directory, in MB. Least recently used APKs " +
+      "are deleted when it grows larger. 0 means unlimited.")
+    int resultCacheMaxMb = 2048;
+
+    @Option(name = "--companionCacheDir",
+      usage = "the directory to cache the unsigned APKs of successful companion builds, so that " +
+      "a companion build of a project that has not changed only needs to be signed. Several " +
+      "build servers of the same version can share the same directory.")
+    String companionCacheDir = null;
+
+    @Option(name = "--companionCacheMaxMb",
+      usage = "Maximum size of the companion cache directory, in MB. Least recently used APKs " +
+      "are deleted when it grows larger. 0 means unlimited.")
+    int companionCacheMaxMb = 512;
+
+    @Option(name = "--workDir",
+      usage = "the directory in which builds create their files. Directories left behind by " +
+      "builds that are no longer running are deleted. The default is a directory in " +
+      "java.io.tmpdir named after the port, so it must not be shared with another build server.")
+    String workDir = null;
+
+    @Option(name = "--kawaCompilerDaemons",
+      usage = "Number of long-lived Kawa compiler processes shared by all builds. " +
+      "0 means each build starts its own Kawa process.")
+    int kawaCompilerDaemons = 0;
+
+    @Option(name = "--maxSimultaneousCompiles",
+      usage = "Maximum number of Kawa compilations that can run in parallel across all builds. " +
+      "0 means a limit based on the number of processors and --childProcessRamMb.")
+    int maxSimultaneousCompiles = 0;
+
+    @Option(name = "--maxSimultaneousDexes",
+      usage = "Maximum number of DX runs that can run in parallel across all builds. " +
+      "0 means a limit based on the number of processors and --childProcessRamMb.")
+    int maxSimultaneousDexes = 0;
+
+    @Option(name = "--maxSimultaneousYailGenerations",
+      usage = "Maximum number of YAIL generations that can run in parallel across all builds. " +
+      "0 means a limit based on the number of processors and --childProcessRamMb.")
+    int maxSimultaneousYailGenerations = 0;
+
+    @Option(name = "--inProcessDx",
+      usage = "Run dx inside the build server instead of in a new process for each DX run. " +
+      "The build server heap must then be large enough for --maxSimultaneousDexes DX runs.")
+    boolean inProcessDx = false;
+
+    @Option(name = "--noRuntimeShrinking",
+      usage = "Dex the whole App Inventor runtime into every APK, instead of only the runtime " +
+      "classes that the project can use. The runtime is never shrunk with --dexCacheDir, " +
+      "since builds then use the runtime that was pre-dexed at startup.")
+    boolean noRuntimeShrinking = false;
+
+    @Option(name = "--childProcessTimeoutSec",
+      usage = "Maximum time, in seconds, that a tool such as aapt, dx or the Kawa compiler can " +
+      "run before it and the processes it started are killed and the build fails. " +
+      "This includes Kawa compiler daemons, and dx runs with --inProcessDx, which are abandoned " +
+      "rather than killed. 0 means no limit.")
+    int childProcessTimeoutSec = 600;
+
+    @Option(name = "--keystorePoolSize",
+      usage = "Number of keys generated ahead of time for the keystores of new users. " +
+      "0 means each key is generated when a keystore is needed.")
+    int keystorePoolSize = 0;
+
+    @Option(name = "--resourceStoreDir",
+      usage = "the directory that the tools and libraries used by builds are extracted to, once " +
+      "for each version of them. Native libraries and assets of components are hard linked " +
+      "into builds from it, so it should be on the same file system as --workDir. " +
+      "Several build servers can share the same directory. The default is a directory in " +
+      "java.io.tmpdir.")
+    String resourceStoreDir = null;
+
+    @Option(name = "--warmUpBuilds",
+      usage = "Number of times to build a sample project when the server starts, after " +
+      "extracting its resources and pre-dexing the runtime libraries. The health check " +
+      "reports that the server is not ready until this warm-up is over. 0 means no sample builds.")
+    int warmUpBuilds = 1;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -126,26 +246,27 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
+  // The build executor used to limit the number of simultaneous builds and queue the rest.
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
-
-  // The input zip file. It will be deleted in cleanUp.
-  private File inputZip;
-
-  // The built APK file for this build request, if any.
-  private File outputApk;
+  private static QueuingExecutor buildExecutor;
 
-  // The temp directory that we're building in.
-  private File outputDir;
+  // Sending the build results to the callback URL is tried this many times.
+  private static final int CALLBACK_ATTEMPTS = 4;
+  // The wait before the first retry. It doubles for each later retry.
+  private static final long CALLBACK_INITIAL_BACKOFF_MILLIS = 2000;
+  private static final CallbackSender callbackSender =
+      new CallbackSender(CALLBACK_ATTEMPTS, CALLBACK_INITIAL_BACKOFF_MILLIS);
 
-  // The android.keystore file generated by this build request, if necessary.
-  private File outputKeystore;
+  // Job directories that have not been used for this long and do not belong to a running build
+  // are deleted.
+  private static final long ORPHANED_JOB_DIRECTORY_AGE_MILLIS = 60 * 60 * 1000;
 
-  // The zip file where we put all the build results for this request.
-  private File outputZip;
+  // The progress of a finished build can be asked for during this long.
+  private static final long FINISHED_BUILD_PROGRESS_AGE_MILLIS = 10 * 60 * 1000;
+  // The longest a progress request waits for the progress to change.
+  private static final long MAX_PROGRESS_WAIT_MILLIS = 25 * 1000;
 
   // non-zero means we are shutting down, if currentTimeMillis is > then this, then we are
   // completely shutdown, otherwise we are just providing NOT OK for health checks but
@@ -155,6 +276,10 @@ public class BuildServer {
 
   private static String shutdownToken = null;
 
+  // True until the warm-up is over. Until then the health check reports that the server is not
+  // ready, but builds are still accepted.
+  private static volatile boolean warmingUp = false;
+
   private enum ShutdownState { UP, SHUTTING, DOWN };
 
   @GET
@@ -162,7 +287,10 @@ public class BuildServer {
   @Produces(MediaType.TEXT_PLAIN)
   public Response health() throws IOException {
     ShutdownState shut = getShutdownState();
-    if (shut == ShutdownState.UP) {
+    if (shut == ShutdownState.UP && warmingUp) {
+      LOG.info("Healthcheck: WARMING UP");
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is warming up").build();
+    } else if (shut == ShutdownState.UP) {
       LOG.info("Healthcheck: UP");
       return Response.ok("ok", MediaType.TEXT_PLAIN_TYPE).build();
     } else if (shut == ShutdownState.DOWN) {
@@ -174,10 +302,215 @@ public class BuildServer {
     }
   }
 
+  /**
+   * Returns the progress of the build with the given id, as a JSON object with the build's
+   * "progress" percentage and whether it has "finished", which it has once its result has been
+   * sent to the callback URL. The id of a build is in the X-Build-Id header of the response to
+   * build-all-from-zip-async.
+   *
+   * If waitMillis is given, the response waits until the progress is no longer seenProgress or
+   * the build finishes, for up to waitMillis (at most MAX_PROGRESS_WAIT_MILLIS), so that clients
+   * learn about changes as soon as they happen without asking again and again.
+   *
+   * @return OK, or NOT_FOUND if there is no such build or it finished long ago
+   */
+  @GET
+  @Path("progress")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(
+    @QueryParam("buildId") String buildId,
+    @QueryParam("seenProgress") @DefaultValue("-1") int seenProgress,
+    @QueryParam("waitMillis") @DefaultValue("0") long waitMillis) throws JSONException {
+    BuildProgress progress = buildId == null ? null : BuildProgress.get(buildId);
+    if (progress == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("Unknown build").build();
+    }
+    if (waitMillis > 0) {
+      try {
+        progress.awaitChange(seenProgress, Math.min(waitMillis, MAX_PROGRESS_WAIT_MILLIS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    JSONObject json = new JSONObject();
+    json.put("buildId", buildId);
+    json.put("progress", progress.get());
+    json.put("finished", progress.isFinished());
+    return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
   @GET
   @Path("vars")
   @Produces(MediaType.TEXT_HTML)
   public Response var() throws IOException {
+    StringBuilder html = new StringBuilder();
+    html.append("<html><body><tt>");
+    for (Map.Entry<String, String> variable : getVariables().entrySet()) {
+      html.append("<b>").append(variable.getKey()).append("</b> ")
+        .append(variable.getValue()).append("<br>");
+    }
+    html.append("</tt></body></html>");
+    return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
+  }
+
+  /**
+   * Returns the same values as /vars, as a JSON object. Numeric values are JSON numbers. The
+   * buckets of the phase time histograms are under "histograms".
+   */
+  @GET
+  @Path("vars.json")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response varJson() throws IOException, JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, String> variable : getVariables().entrySet()) {
+      Double number = parseNumber(variable.getValue());
+      if (number != null) {
+        json.put(variable.getKey(), number.doubleValue() == number.longValue()
+            ? (Object) number.longValue() : (Object) number);
+      } else {
+        json.put(variable.getKey(), variable.getValue());
+      }
+    }
+    JSONObject histograms = new JSONObject();
+    for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      JSONObject histogramJson = new JSONObject();
+      histogramJson.put("count", histogram.getCount());
+      histogramJson.put("sum-ms", histogram.getSumMillis());
+      JSONObject buckets = new JSONObject();
+      for (int i = 0; i < LatencyHistogram.getBucketCount(); i++) {
+        long bound = LatencyHistogram.getBucketBoundMillis(i);
+        buckets.put(bound == Long.MAX_VALUE ? "inf" : bound + "", histogram.getBucketValue(i));
+      }
+      histogramJson.put("buckets-ms", buckets);
+      histograms.put(entry.getKey(), histogramJson);
+    }
+    json.put("histograms", histograms);
+    return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  /**
+   * Returns the numeric values from /vars as Prometheus gauges, and the phase time histograms as
+   * Prometheus histograms, in the Prometheus text exposition format.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response metrics() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, String> variable : getVariables().entrySet()) {
+      Double number = parseNumber(variable.getValue());
+      if (number != null) {
+        String name = "buildserver_" + variable.getKey().replace('-', '_');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(variable.getValue()).append('\n');
+      }
+    }
+    addPrometheusHistograms(text, "buildserver_phase_duration_seconds", "phase",
+        getPhaseHistograms());
+    addPrometheusHistograms(text, "buildserver_phase_wait_seconds", "phase",
+        getWaitHistograms());
+    return Response.ok(text.toString(), MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
+  private static void addPrometheusHistograms(StringBuilder text, String name, String label,
+      Map<String, LatencyHistogram> histograms) {
+    text.append("# TYPE ").append(name).append(" histogram\n");
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      String labels = label + "=\"" + entry.getKey() + "\"";
+      // Prometheus buckets are cumulative.
+      long cumulative = 0;
+      for (int i = 0; i < LatencyHistogram.getBucketCount(); i++) {
+        cumulative += histogram.getBucketValue(i);
+        long bound = LatencyHistogram.getBucketBoundMillis(i);
+        text.append(name).append("_bucket{").append(labels).append(",le=\"")
+          .append(bound == Long.MAX_VALUE ? "+Inf" : (bound / 1000.0) + "").append("\"} ")
+          .append(cumulative).append('\n');
+      }
+      text.append(name).append("_sum{").append(labels).append("} ")
+        .append(histogram.getSumMillis() / 1000.0).append('\n');
+      text.append(name).append("_count{").append(labels).append("} ")
+        .append(histogram.getCount()).append('\n');
+    }
+  }
+
+  /*
+   * Returns the value as a number, or null if it is not a finite number.
+   */
+  private static Double parseNumber(String value) {
+    try {
+      Double number = Double.valueOf(value);
+      return number.isInfinite() || number.isNaN() ? null : number;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /*
+   * Returns the histograms of the time taken by each build phase, by phase name.
+   */
+  private static Map<String, LatencyHistogram> getPhaseHistograms() {
+    Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+    for (BuildTimings.Phase phase : BuildTimings.Phase.values()) {
+      histograms.put(phase.getName(), phase.getHistogram());
+    }
+    return histograms;
+  }
+
+  /*
+   * Returns the histograms of the time builds waited for a limited phase, by phase name.
+   */
+  private static Map<String, LatencyHistogram> getWaitHistograms() {
+    Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+    histograms.put("kawa", Compiler.getKawaLimiter().getWaitTimes());
+    histograms.put("dx", Compiler.getDxLimiter().getWaitTimes());
+    histograms.put("yail", ProjectBuilder.getYailLimiter().getWaitTimes());
+    return histograms;
+  }
+
+  /*
+   * Returns all the histograms reported by vars.json, by variable name prefix.
+   */
+  private static Map<String, LatencyHistogram> getHistograms() {
+    Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+    for (Map.Entry<String, LatencyHistogram> entry : getPhaseHistograms().entrySet()) {
+      histograms.put("phase-" + entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<String, LatencyHistogram> entry : getWaitHistograms().entrySet()) {
+      histograms.put(entry.getKey() + "-wait", entry.getValue());
+    }
+    for (Map.Entry<String, Execution.ToolStats> entry : Execution.getToolStats().entrySet()) {
+      histograms.put("child-" + entry.getKey(), entry.getValue().getTimes());
+    }
+    return histograms;
+  }
+
+  /*
+   * Returns the resident set size of this process, which also counts the memory used outside the
+   * Java heap, or -1 if it is not known (i.e. not on Linux).
+   */
+  private static long getResidentMemoryKb() {
+    File status = new File("/proc/self/status");
+    if (!status.canRead()) {
+      return -1;
+    }
+    try {
+      for (String line : Files.readLines(status, Charsets.UTF_8)) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Unable to read " + status, e);
+    } catch (NumberFormatException e) {
+      LOG.log(Level.FINE, "Unable to parse " + status, e);
+    }
+    return -1;
+  }
+
+  private Map<String, String> getVariables() {
     Map<String, String> variables = new LinkedHashMap<String, String>();
 
     // Runtime
@@ -196,6 +529,7 @@ public class BuildServer {
     //BuildServer Version and Id
     variables.put("buildserver-version", GitBuildId.getVersion() + "");
     variables.put("buildserver-git-fingerprint", GitBuildId.getFingerprint() + "");
+    variables.put("warming-up", warmingUp + "");
 
     // OS
     OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
@@ -213,6 +547,10 @@ public class BuildServer {
     variables.put("max-memory", runtime.maxMemory() + "");
     variables.put("used-heap", memoryBean.getHeapMemoryUsage().getUsed() + "");
     variables.put("used-non-heap", memoryBean.getNonHeapMemoryUsage().getUsed() + "");
+    long residentKb = getResidentMemoryKb();
+    if (residentKb >= 0) {
+      variables.put("resident-memory-in-kb", residentKb + "");
+    }
 
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
@@ -231,15 +569,113 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("active-build-jobs", BuildJob.getActiveJobCount() + "");
+    variables.put("registered-build-progress", BuildProgress.getRegisteredCount() + "");
+    variables.put("progress-waiters", BuildProgress.getWaiterCount() + "");
+
+    // Build phases
+    addPhaseVariables(variables, "kawa", Compiler.getKawaLimiter());
+    addPhaseVariables(variables, "dx", Compiler.getDxLimiter());
+    addPhaseVariables(variables, "yail", ProjectBuilder.getYailLimiter());
+
+    // Phase times
+    for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+      addHistogramVariables(variables, entry.getKey(), entry.getValue());
+    }
 
-    StringBuilder html = new StringBuilder();
-    html.append("<html><body><tt>");
-    for (Map.Entry<String, String> variable : variables.entrySet()) {
-      html.append("<b>").append(variable.getKey()).append("</b> ")
-        .append(variable.getValue()).append("<br>");
+    // Child processes
+    variables.put("running-child-processes", Execution.getRunningCount() + "");
+    for (Map.Entry<String, Execution.ToolStats> entry : Execution.getToolStats().entrySet()) {
+      String prefix = "child-" + entry.getKey();
+      Execution.ToolStats stats = entry.getValue();
+      variables.put(prefix + "-runs", stats.getRuns() + "");
+      variables.put(prefix + "-failures", stats.getFailures() + "");
+      variables.put(prefix + "-timeouts", stats.getTimeouts() + "");
+      variables.put(prefix + "-cpu-time-in-ms", stats.getCpuMillis() + "");
+      variables.put(prefix + "-max-rss-in-kb", stats.getMaxPeakRssKb() + "");
     }
-    html.append("</tt></body></html>");
-    return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
+
+    // Build queue
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-occurred",
+        buildExecutor.getMaximumQueuedTaskCount() + "");
+    variables.put("average-queue-wait-time-in-ms", buildExecutor.getAverageQueueWaitMillis() + "");
+    variables.put("maximum-queue-wait-time-in-ms", buildExecutor.getMaximumQueueWaitMillis() + "");
+    variables.put("average-build-service-time-in-ms",
+        buildExecutor.getAverageServiceMillis() + "");
+    variables.put("maximum-build-service-time-in-ms",
+        buildExecutor.getMaximumServiceMillis() + "");
+
+    // Keystores
+    KeystorePool keystorePool = ProjectBuilder.getKeystorePool();
+    variables.put("keystore-pool-size", keystorePool.getSize() + "");
+    variables.put("keystore-pool-available", keystorePool.getAvailableCount() + "");
+    variables.put("keystores-created-from-pool", keystorePool.getPooledKeyCount() + "");
+    variables.put("keystores-created-on-demand", keystorePool.getOnDemandKeyCount() + "");
+
+    // Resource store
+    ResourceStore resourceStore = Compiler.getResourceStore();
+    variables.put("resource-store-files-written", resourceStore.getWrittenCount() + "");
+    variables.put("resource-store-files-linked", resourceStore.getLinkedCount() + "");
+    variables.put("resource-store-files-copied", resourceStore.getCopiedCount() + "");
+
+    // Caches
+    if (commandLineOptions.dexCacheDir != null) {
+      try {
+        addCacheVariables(variables, "dex-cache",
+            DexCache.getInstance(new File(commandLineOptions.dexCacheDir)));
+      } catch (IOException e) {
+        variables.put("dex-cache-error", e.toString());
+      }
+    }
+    FileCache classCache = Compiler.getClassCache();
+    if (classCache != null) {
+      addCacheVariables(variables, "class-cache", classCache);
+    }
+    FileCache resultCache = ProjectBuilder.getResultCache();
+    if (resultCache != null) {
+      addCacheVariables(variables, "result-cache", resultCache);
+    }
+    FileCache companionCache = ProjectBuilder.getCompanionCache();
+    if (companionCache != null) {
+      addCacheVariables(variables, "companion-cache", companionCache);
+    }
+    return variables;
+  }
+
+  private static void addHistogramVariables(Map<String, String> variables, String name,
+      LatencyHistogram histogram) {
+    variables.put(name + "-count", histogram.getCount() + "");
+    variables.put(name + "-average-ms", histogram.getAverageMillis() + "");
+    variables.put(name + "-p50-ms", histogram.getPercentileMillis(50) + "");
+    variables.put(name + "-p90-ms", histogram.getPercentileMillis(90) + "");
+    variables.put(name + "-p99-ms", histogram.getPercentileMillis(99) + "");
+    variables.put(name + "-max-ms", histogram.getMaxMillis() + "");
+  }
+
+  private static void addPhaseVariables(Map<String, String> variables, String phase,
+      PhaseLimiter limiter) {
+    variables.put("maximum-simultaneous-" + phase + "-allowed", limiter.getMaxActive() + "");
+    variables.put("maximum-simultaneous-" + phase + "-occurred",
+        limiter.getMaximumActiveCount() + "");
+    variables.put("active-" + phase, limiter.getActiveCount() + "");
+    variables.put("waiting-" + phase, limiter.getWaitingCount() + "");
+  }
+
+  private static void addCacheVariables(Map<String, String> variables, String cacheName,
+      FileCache cache) {
+    variables.put(cacheName + "-hits", cache.getHitCount() + "");
+    variables.put(cacheName + "-misses", cache.getMissCount() + "");
+    long lookups = cache.getHitCount() + cache.getMissCount();
+    variables.put(cacheName + "-hit-ratio",
+        (lookups == 0 ? 0 : (double) cache.getHitCount() / lookups) + "");
+    variables.put(cacheName + "-failures", cache.getFailureCount() + "");
+    variables.put(cacheName + "-bytes-written", cache.getBytesWritten() + "");
+    variables.put(cacheName + "-evictions", cache.getEvictionCount() + "");
+    variables.put(cacheName + "-bytes-evicted", cache.getBytesEvicted() + "");
+    variables.put(cacheName + "-entries", cache.getEntryCount() + "");
+    variables.put(cacheName + "-size-in-bytes", cache.getSize() + "");
   }
 
   /**
@@ -289,25 +725,24 @@ public class BuildServer {
   @Produces("application/vnd.android.package-archive;charset=utf-8")
   public Response buildFromZipFile(@QueryParam("uname") String userName, File zipFile)
     throws IOException {
-    // Set the inputZip field so we can delete the input zip file later in cleanUp.
-    inputZip = zipFile;
-    inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-
-    if(!commandLineOptions.debug)
+    if(!commandLineOptions.debug) {
+      zipFile.delete();
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE)
         .entity("Entry point unavailable unless debugging.").build();
+    }
 
+    BuildJob job = new BuildJob(zipFile);
     try {
-      build(userName, zipFile);
-      String attachedFilename = outputApk.getName();
-      FileInputStream outputApkDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputApk);
-      // Set the outputApk field to null so that it won't be deleted in cleanUp().
-      outputApk = null;
+      build(job, userName);
+      String attachedFilename = job.getOutputApk().getName();
+      // Move the APK out of the job directory so that it isn't deleted in cleanUp().
+      FileInputStream outputApkDeleteOnClose =
+        new DeleteFileOnCloseFileInputStream(job.detach(job.getOutputApk()));
       return Response.ok(outputApkDeleteOnClose)
         .header("Content-Disposition", "attachment; filename=\"" + attachedFilename + "\"")
         .build();
     } finally {
-      cleanUp();
+      job.cleanUp();
     }
   }
 
@@ -332,25 +767,24 @@ public class BuildServer {
   @Produces("application/zip;charset=utf-8")
   public Response buildAllFromZipFile(@QueryParam("uname") String userName, File inputZipFile)
     throws IOException, JSONException {
-    // Set the inputZip field so we can delete the input zip file later in cleanUp.
-    inputZip = inputZipFile;
-    inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-
-    if(!commandLineOptions.debug)
+    if(!commandLineOptions.debug) {
+      inputZipFile.delete();
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE)
         .entity("Entry point unavailable unless debugging.").build();
+    }
 
+    BuildJob job = new BuildJob(inputZipFile);
     try {
-      buildAndCreateZip(userName, inputZipFile);
-      String attachedFilename = outputZip.getName();
-      FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
-      // Set the outputZip field to null so that it won't be deleted in cleanUp().
-      outputZip = null;
+      File outputZip = buildAndCreateZip(job, userName);
+      String attachedFilename = inputZipFile.getName() + ".zip";
+      // Move the zip out of the job directory so that it isn't deleted in cleanUp().
+      FileInputStream outputZipDeleteOnClose =
+        new DeleteFileOnCloseFileInputStream(job.detach(outputZip));
       return Response.ok(outputZipDeleteOnClose)
         .header("Content-Disposition", "attachment; filename=\"" + attachedFilename + "\"")
         .build();
     } finally {
-      cleanUp();
+      job.cleanUp();
     }
   }
 
@@ -379,6 +813,11 @@ public class BuildServer {
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
    * @param inputZipFile  The zip file representing the App Inventor source code.
+   * If all build slots are busy, the build waits in the build queue. The response then carries an
+   * X-Queue-Position header giving the number of builds waiting, including this one. If the queue
+   * is also full, we respond with SERVICE_UNAVAILABLE and a Retry-After header. An accepted build
+   * has an X-Build-Id header, which is used to ask for its progress.
+   *
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
   @POST
@@ -389,18 +828,16 @@ public class BuildServer {
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
     final File inputZipFile) throws IOException {
-    // Set the inputZip field so we can delete the input zip file later in
-    // cleanUp.
-    inputZip = inputZipFile;
-    inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
+    inputZipFile.deleteOnExit(); // In case build server is killed before it is deleted.
     String requesting_host = (new URL(callbackUrlStr)).getHost();
 
     //for the request for update part, the file should be empty
-    if (inputZip.length() == 0L) {
-      cleanUp();
+    if (inputZipFile.length() == 0L) {
+      inputZipFile.delete();
     } else {
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
+        inputZipFile.delete();
         return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Temporary build error, try again.").build();
       }
       if (commandLineOptions.requiredHosts != null) {
@@ -416,6 +853,7 @@ public class BuildServer {
         } else {
           // Return an error
           LOG.info("requesting host (" + requesting_host + ") is NOT in the allowed host list request will be rejected.");
+          inputZipFile.delete();
           return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("You are not permitted to use this build server.").build();
         }
       } else {
@@ -434,7 +872,7 @@ public class BuildServer {
           // This request was rejected because the gitBuildVersion parameter did not equal the
           // expected value.
           rejectedAsyncBuildRequests.incrementAndGet();
-          cleanUp();
+          inputZipFile.delete();
           // Here, we use CONFLICT (response code 409), which means (according to rfc2616, section
           // 10) "The request could not be completed due to a conflict with the current state of the
           // resource."
@@ -442,6 +880,7 @@ public class BuildServer {
         }
       }
 
+      final BuildJob job = new BuildJob(inputZipFile);
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
@@ -449,92 +888,129 @@ public class BuildServer {
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
+              Result buildResult = buildAndCount(job, userName);
               // Send zip back to the callbackUrl
               LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
-              }
+              sendBuildResult(job, new URL(callbackUrlStr), buildResult);
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
-              LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
+              LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ job.getInputZip().length());
             } finally {
-              cleanUp();
+              job.cleanUp();
               checkMemory();
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      // Register the build before it can start, so that a build that finishes quickly is never
+      // finished before it can be looked up.
+      BuildProgress.register(job.getProgress());
+      int queuePosition;
       try {
-        buildExecutor.execute(buildTask);
+        queuePosition = buildExecutor.executeAndGetQueuePosition(buildTask);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the build queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
-        cleanUp();
+        BuildProgress.unregister(job.getProgress());
+        job.cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
         // means (according to rfc2616, section 10) "The server is
         // currently unable to handle the request due to a temporary
         // overloading or maintenance of the server. The implication
         // is that this is a temporary condition which will be
         // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+          .header("Retry-After", buildExecutor.getRetryAfterSeconds())
+          .entity("The build server is currently at maximum capacity.").build();
       }
+      // The body must remain just the progress value; YoungAndroidProjectService parses it as an
+      // integer.
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .header("X-Queue-Position", queuePosition)
+        .header("X-Build-Id", job.getProgress().getId())
+        .entity("" + job.getProgress().get()).build();
     }
+    // Servers that do not know the id of their build ask for progress with an empty zip. They
+    // get the progress of the latest build.
+    BuildProgress latest = BuildProgress.getLatest();
+    int percent = latest == null ? BuildProgress.INITIAL_PERCENT
+        : latest.isFinished() ? 100 : latest.get();
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .entity("" + percent).build();
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
+  /*
+   * Builds the project and puts all the build results in a zip file in the job's output
+   * directory.
+   */
+  private File buildAndCreateZip(BuildJob job, String userName)
     throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
-    outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
-    outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
-    if (buildSucceeded) {
+    Result buildResult = buildAndCount(job, userName);
+    File outputZip = new File(job.getOutputDirectory(), "results.zip");
+    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputZip));
+    try {
+      writeOutputZip(job, buildResult, outputStream);
+    } finally {
+      outputStream.close();
+    }
+    return outputZip;
+  }
+
+  private Result buildAndCount(BuildJob job, String userName) throws IOException {
+    Result buildResult = build(job, userName);
+    if (buildResult.succeeded()) {
+      successfulBuildRequests.getAndIncrement();
+    } else {
+      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
+      failedBuildRequests.getAndIncrement();
+    }
+    return buildResult;
+  }
+
+  /*
+   * Writes the build results to the given stream as a zip file containing the APK and the
+   * android.keystore file (if any) and build.out. The stream is not closed.
+   */
+  private void writeOutputZip(BuildJob job, Result buildResult, OutputStream outputStream)
+    throws IOException, JSONException {
+    ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+    if (buildResult.succeeded()) {
+      File outputKeystore = job.getOutputKeystore();
+      File outputApk = job.getOutputApk();
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
         Files.copy(outputKeystore, zipOutputStream);
       }
       zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
       Files.copy(outputApk, zipOutputStream);
-      successfulBuildRequests.getAndIncrement();
-    } else {
-      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
-      failedBuildRequests.getAndIncrement();
     }
     zipOutputStream.putNextEntry(new ZipEntry("build.out"));
     String buildOutputJson = genBuildOutput(buildResult);
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
+    zipOutputStream.finish();
     zipOutputStream.flush();
-    zipOutputStream.close();
+  }
+
+  /*
+   * Posts the build results to the callback URL, retrying failed attempts as described in
+   * CallbackSender.
+   */
+  private void sendBuildResult(final BuildJob job, URL callbackUrl, final Result buildResult)
+    throws IOException, JSONException, InterruptedException {
+    long start = System.nanoTime();
+    int responseCode = callbackSender.post(callbackUrl, new CallbackSender.Body() {
+      @Override
+      public void writeTo(OutputStream outputStream) throws IOException, JSONException {
+        writeOutputZip(job, buildResult, outputStream);
+        checkMemory();
+      }
+    });
+    if (responseCode == HttpURLConnection.HTTP_OK) {
+      job.getTimings().record(BuildTimings.Phase.CALLBACK, start);
+    }
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -548,49 +1024,17 @@ public class BuildServer {
     return buildOutputJsonObj.toString();
   }
 
-  private Result build(String userName, File zipFile) throws IOException {
-    outputDir = Files.createTempDir();
-    // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
-    // executes. However, it is likely that the directory won't be empty and therefore, won't
-    // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
-    // is happening, so we should be careful about that.
-    outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+  private Result build(BuildJob job, String userName) throws IOException {
+    Result buildResult = job.build(userName, false, commandLineOptions.childProcessRamMb,
+      commandLineOptions.dexCacheDir);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
     LOG.info("Build error output: " + buildError);
-    outputApk = projectBuilder.getOutputApk();
-    if (outputApk != null) {
-      outputApk.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    }
-    outputKeystore = projectBuilder.getOutputKeystore();
-    if (outputKeystore != null) {
-      outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    }
     checkMemory();
     return buildResult;
   }
 
-  private void cleanUp() {
-    if (inputZip != null) {
-      inputZip.delete();
-    }
-    if (outputKeystore != null) {
-      outputKeystore.delete();
-    }
-    if (outputApk != null) {
-      outputApk.delete();
-    }
-    if (outputZip != null) {
-      outputZip.delete();
-    }
-    if (outputDir != null) {
-      outputDir.delete();
-    }
-  }
-
   private static void checkMemory() {
     MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
     mBean.gc();
@@ -612,10 +1056,117 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new QueuingExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds);
+
+    int defaultPhaseLimit = PhaseLimiter.defaultLimit(commandLineOptions.childProcessRamMb);
+    int maxCompiles = (commandLineOptions.maxSimultaneousCompiles == 0)
+        ? defaultPhaseLimit : commandLineOptions.maxSimultaneousCompiles;
+    int maxDexes = (commandLineOptions.maxSimultaneousDexes == 0)
+        ? defaultPhaseLimit : commandLineOptions.maxSimultaneousDexes;
+    Compiler.setPhaseLimits(maxCompiles, maxDexes);
+    LOG.info("Maximum simultaneous Kawa compiles = " + maxCompiles);
+    LOG.info("Maximum simultaneous DX runs = " + maxDexes);
+    int maxYail = (commandLineOptions.maxSimultaneousYailGenerations == 0)
+        ? defaultPhaseLimit : commandLineOptions.maxSimultaneousYailGenerations;
+    ProjectBuilder.setYailLimit(maxYail);
+    LOG.info("Maximum simultaneous YAIL generations = " + maxYail);
+
+    File workDir = (commandLineOptions.workDir != null)
+        ? new File(commandLineOptions.workDir)
+        : new File(System.getProperty("java.io.tmpdir"),
+            "appinventor-buildserver-" + commandLineOptions.port);
+    BuildJob.setWorkDirectory(workDir);
+    LOG.info("Work directory = " + workDir);
+    // No builds are running yet, so every job directory was left behind by an earlier run.
+    BuildJob.reapOrphanedJobDirectories(0);
+    ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "JobDirectoryReaper");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    reaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        BuildJob.reapOrphanedJobDirectories(ORPHANED_JOB_DIRECTORY_AGE_MILLIS);
+        BuildProgress.removeFinished(FINISHED_BUILD_PROGRESS_AGE_MILLIS);
+      }
+    }, 10, 10, TimeUnit.MINUTES);
+
+    if (commandLineOptions.resourceStoreDir != null) {
+      Compiler.setResourceStore(new ResourceStore(new File(commandLineOptions.resourceStoreDir)));
+    }
+    LOG.info("Resource store directory = " + Compiler.getResourceStore().getDirectory());
+
+    if (commandLineOptions.kawaCompilerDaemons > 0) {
+      Compiler.setKawaCompilerPool(new KawaCompilerPool(commandLineOptions.kawaCompilerDaemons,
+          commandLineOptions.childProcessRamMb));
+      LOG.info("Kawa compiler daemons = " + commandLineOptions.kawaCompilerDaemons);
+    }
+
+    Compiler.setShrinkRuntime(!commandLineOptions.noRuntimeShrinking);
+    Execution.setTimeoutMillis(commandLineOptions.childProcessTimeoutSec * 1000L);
+    if (commandLineOptions.inProcessDx) {
+      Compiler.setInProcessDexers(maxDexes);
+      LOG.info("Running dx in process");
+    }
+
+    if (commandLineOptions.classCacheDir != null) {
+      FileCache classCache = new FileCache(new File(commandLineOptions.classCacheDir),
+          "classes-", ".jar", null);
+      classCache.setMaxBytes(commandLineOptions.classCacheMaxMb * 1024L * 1024L);
+      Compiler.setClassCache(classCache);
+      LOG.info("Class cache directory = " + commandLineOptions.classCacheDir);
+    }
+
+    if (commandLineOptions.resultCacheDir != null) {
+      FileCache resultCache = new FileCache(new File(commandLineOptions.resultCacheDir),
+          "result-", ".zip", null);
+      resultCache.setMaxBytes(commandLineOptions.resultCacheMaxMb * 1024L * 1024L);
+      ProjectBuilder.setResultCache(resultCache);
+      LOG.info("Result cache directory = " + commandLineOptions.resultCacheDir);
+    }
+
+    if (commandLineOptions.companionCacheDir != null) {
+      FileCache companionCache = new FileCache(new File(commandLineOptions.companionCacheDir),
+          "companion-", ".zip", null);
+      companionCache.setMaxBytes(commandLineOptions.companionCacheMaxMb * 1024L * 1024L);
+      ProjectBuilder.setCompanionCache(companionCache);
+      LOG.info("Companion cache directory = " + commandLineOptions.companionCacheDir);
+    }
+
+    if (commandLineOptions.keystorePoolSize > 0) {
+      ProjectBuilder.setKeystorePool(new KeystorePool(commandLineOptions.keystorePoolSize));
+      LOG.info("Keystore pool size = " + commandLineOptions.keystorePoolSize);
+    }
+
+    DexCache.setDefaultMaxBytes(commandLineOptions.dexCacheMaxMb * 1024L * 1024L);
+    // Builds that start before the warm-up finishes wait for the resources to be extracted and
+    // the libraries to be pre-dexed rather than doing it again.
+    warmingUp = true;
+    new Thread("WarmUp") {
+      @Override
+      public void run() {
+        try {
+          WarmUp.run(commandLineOptions.warmUpBuilds, commandLineOptions.childProcessRamMb,
+              commandLineOptions.dexCacheDir);
+        } catch (Throwable e) {
+          LOG.log(Level.SEVERE, "Warm-up failed", e);
+        } finally {
+          warmingUp = false;
+        }
+      }
+    }.start();
 
     int port = commandLineOptions.port;
-    SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
+    // Progress requests can hold an HTTP thread for a while, so leave at least half of the
+    // threads for builds and health checks.
+    BuildProgress.setMaxWaiters(commandLineOptions.httpThreads / 2);
+    SelectorThread threadSelector = startHttpServer(port, commandLineOptions.httpThreads);
     String hostAddress = InetAddress.getLocalHost().getHostAddress();
     LOG.info("App Inventor Build Server - Version: " + GitBuildId.getVersion());
     LOG.info("App Inventor Build Server - Git Fingerprint: " + GitBuildId.getFingerprint());
@@ -624,14 +1175,42 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + buildExecutor.getMaxQueuedTasks());
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/vars for server values");
+    LOG.info("Visit: http://" + hostAddress + ":" + port +
+      "/buildserver/vars.json or /buildserver/metrics for machine-readable server values");
     LOG.info("Server running");
   }
 
+  /*
+   * Starts serving the resources of the build server, like GrizzlyServerFactory.create does, but
+   * with the given number of HTTP threads instead of Grizzly's default of 5.
+   */
+  private static SelectorThread startHttpServer(int port, int httpThreads) throws IOException {
+    URI uri = URI.create("http://localhost:" + port + "/");
+    Adapter adapter = ContainerFactory.createContainer(Adapter.class);
+    if (adapter instanceof GrizzlyAdapter) {
+      ((GrizzlyAdapter) adapter).setResourcesContextPath(uri.getRawPath());
+    }
+    SelectorThread threadSelector = new SelectorThread();
+    threadSelector.setAlgorithmClassName(StaticStreamAlgorithm.class.getName());
+    threadSelector.setPort(port);
+    threadSelector.setCoreThreads(Math.min(threadSelector.getCoreThreads(), httpThreads));
+    threadSelector.setMaxThreads(httpThreads);
+    threadSelector.setAdapter(adapter);
+    try {
+      threadSelector.listen();
+    } catch (InstantiationException e) {
+      throw new IOException(e);
+    }
+    LOG.info("HTTP threads = " + httpThreads);
+    return threadSelector;
+  }
+
   private static class DeleteFileOnCloseFileInputStream extends FileInputStream {
     private final File file;
 
@@ -0,0 +1,100 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * How long each phase of one build took.
+ *
+ * <p>Every time recorded for a build is also added to a histogram for its phase that is shared by
+ * all builds, so that the build server can report which phases dominate. Phases that are skipped
+ * (for example, because the result was cached) or that fail are not recorded.
+ */
+final class BuildTimings {
+  /**
+   * The phases of a build.
+   */
+  enum Phase {
+    EXTRACT("extract"),
+    YAIL_GENERATION("yail-generation"),
+    KEYSTORE("keystore"),
+    COMPILE("compile"),
+    SHRINK("shrink"),
+    DEX("dex"),
+    AAPT("aapt"),
+    APK_BUILDER("apkbuilder"),
+    SIGN_AND_ALIGN("sign-and-align"),
+    JAR_SIGNER("jarsigner"),
+    ZIP_ALIGN("zipalign"),
+    CALLBACK("callback"),
+    // The whole build, from the input zip to the APK.
+    BUILD("build");
+
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    Phase(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Returns the name of the phase, as reported by the build server.
+     */
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the histogram of the times of this phase across all builds.
+     */
+    LatencyHistogram getHistogram() {
+      return histogram;
+    }
+  }
+
+  private final Map<Phase, Long> millis = new EnumMap<Phase, Long>(Phase.class);
+
+  /**
+   * Records that the given phase, which started at the given time, has just finished.
+   *
+   * @param phase  the phase
+   * @param startNanos  the value of {@link System#nanoTime} when the phase started
+   */
+  void record(Phase phase, long startNanos) {
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    synchronized (this) {
+      Long previous = millis.get(phase);
+      // A phase recorded more than once in a build is reported as the total.
+      millis.put(phase, previous == null ? elapsedMillis : previous + elapsedMillis);
+    }
+    phase.getHistogram().record(elapsedMillis);
+  }
+
+  /**
+   * Returns how long the given phase took, in milliseconds, or -1 if it was not recorded.
+   */
+  synchronized long getMillis(Phase phase) {
+    Long elapsedMillis = millis.get(phase);
+    return elapsedMillis == null ? -1 : elapsedMillis;
+  }
+
+  /**
+   * Returns the recorded times, for example "extract=12ms compile=3400ms".
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<Phase, Long> entry : millis.entrySet()) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(entry.getKey().getName()).append('=').append(entry.getValue()).append("ms");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,108 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * Posts build results to a callback URL, retrying failed attempts.
+ *
+ * <p>The body is streamed straight into the connection in chunks, so nothing is staged on disk
+ * and no length has to be known in advance. I/O errors and server errors (5xx) are retried with
+ * exponential backoff, up to a maximum number of attempts. Other responses are final, since a
+ * client error will not go away by trying again.
+ */
+final class CallbackSender {
+  // The body is sent in chunks of this size.
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CallbackSender.class.getName());
+
+  /**
+   * Writes the body of a callback request. It may be called once for each attempt.
+   */
+  interface Body {
+    void writeTo(OutputStream out) throws IOException, JSONException;
+  }
+
+  private final int attempts;
+  private final long initialBackoffMillis;
+
+  /**
+   * Creates a CallbackSender.
+   *
+   * @param attempts  the maximum number of attempts
+   * @param initialBackoffMillis  the wait before the first retry, which doubles for each later
+   *     retry
+   */
+  CallbackSender(int attempts, long initialBackoffMillis) {
+    this.attempts = attempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+  }
+
+  /**
+   * Posts the body to the callback URL.
+   *
+   * @return  the response code of the last attempt
+   * @throws IOException  if the last attempt failed with an I/O error
+   */
+  int post(URL callbackUrl, Body body)
+      throws IOException, JSONException, InterruptedException {
+    long backoffMillis = initialBackoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      int responseCode;
+      try {
+        HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        // Make sure we aren't misinterpreted as
+        // form-url-encoded
+        connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        OutputStream outputStream =
+          new BufferedOutputStream(connection.getOutputStream(), CHUNK_SIZE);
+        try {
+          body.writeTo(outputStream);
+        } finally {
+          outputStream.close();
+        }
+        responseCode = connection.getResponseCode();
+        connection.disconnect();
+      } catch (IOException e) {
+        if (attempt >= attempts) {
+          throw e;
+        }
+        LOG.warning("Callback attempt " + attempt + " failed: " + e + ". Retrying in " +
+          backoffMillis + " ms");
+        Thread.sleep(backoffMillis);
+        backoffMillis *= 2;
+        continue;
+      }
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        return responseCode;
+      }
+      LOG.severe("Bad Response Code!: " + responseCode);
+      // A client error will not go away by trying again.
+      if (responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR || attempt >= attempts) {
+        return responseCode;
+      }
+      LOG.warning("Callback attempt " + attempt + " failed. Retrying in " + backoffMillis + " ms");
+      Thread.sleep(backoffMillis);
+      backoffMillis *= 2;
+    }
+  }
+}
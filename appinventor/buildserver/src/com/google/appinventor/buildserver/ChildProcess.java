@@ -0,0 +1,258 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A child process started by {@link Execution}, with its deadline and the resources it used.
+ *
+ * <p>On Linux, the CPU time and peak resident set size of the process are read from /proc each
+ * time {@link #sample} is called, so they include the processes it waited for but miss whatever
+ * it did after the last sample. When the process is killed, the processes it started are killed
+ * too, so that none of them is left holding the output pipes open. On other systems, nothing is
+ * sampled and only the process itself is killed.
+ */
+final class ChildProcess {
+  private static final File PROC = new File("/proc");
+  // USER_HZ, which is 100 on every Linux architecture that the build server runs on.
+  private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ChildProcess.class.getName());
+
+  private final Process process;
+  private final String tool;
+  private final int pid;
+  private final long startNanos;
+  // When the process times out, in System.nanoTime() time, or 0 if it never does.
+  private final long deadlineNanos;
+  private long cpuTicks;
+  private long peakRssKb;
+  private long elapsedMillis = -1;
+  private boolean timedOut;
+
+  /**
+   * Creates a child process that has just been started.
+   *
+   * @param process  the process
+   * @param tool  the name of the tool that the process runs
+   * @param timeoutMillis  how long the process can run before it is killed, or 0 for no limit
+   */
+  ChildProcess(Process process, String tool, long timeoutMillis) {
+    this.process = process;
+    this.tool = tool;
+    pid = getPid(process);
+    startNanos = System.nanoTime();
+    deadlineNanos = timeoutMillis > 0
+        ? startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+        : 0;
+  }
+
+  Process getProcess() {
+    return process;
+  }
+
+  String getTool() {
+    return tool;
+  }
+
+  /**
+   * Returns whether the process has run for longer than its timeout.
+   */
+  boolean isPastDeadline(long nowNanos) {
+    return deadlineNanos != 0 && nowNanos - deadlineNanos >= 0;
+  }
+
+  /**
+   * Reads the CPU time and resident set size of the process, if it is still running.
+   */
+  synchronized void sample() {
+    if (pid <= 0 || elapsedMillis >= 0) {
+      return;
+    }
+    try {
+      List<String> stat = readStat(pid);
+      if (stat == null) {
+        return;
+      }
+      // utime, stime, cutime and cstime are fields 14 to 17 of /proc/[pid]/stat.
+      long ticks = 0;
+      for (int i = 11; i <= 14; i++) {
+        ticks += Long.parseLong(stat.get(i));
+      }
+      cpuTicks = Math.max(cpuTicks, ticks);
+      for (String line : Files.readLines(new File(PROC, pid + "/status"), Charsets.UTF_8)) {
+        if (line.startsWith("VmHWM:")) {
+          peakRssKb = Math.max(peakRssKb, Long.parseLong(line.replaceAll("[^0-9]", "")));
+        }
+      }
+    } catch (IOException e) {
+      // The process exited.
+    } catch (RuntimeException e) {
+      LOG.log(Level.FINE, "Unable to parse /proc/" + pid, e);
+    }
+  }
+
+  /**
+   * Kills the process and the processes that it started, because it ran for too long.
+   */
+  void timeOut() {
+    synchronized (this) {
+      timedOut = true;
+    }
+    LOG.warning(tool + " timed out after " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+    killTree();
+  }
+
+  /**
+   * Kills the process and the processes that it started.
+   */
+  void killTree() {
+    if (pid > 0 && PROC.isDirectory()) {
+      // The descendants are listed before any of them is killed, since killing a process makes
+      // its children children of init.
+      List<String> command = Lists.newArrayList("kill", "-KILL", pid + "");
+      for (int descendant : getDescendants(pid)) {
+        command.add(descendant + "");
+      }
+      try {
+        new ProcessBuilder(command).redirectErrorStream(true).start().waitFor();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to kill " + tool + " and the processes it started", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    process.destroy();
+  }
+
+  /**
+   * Records that the process has exited.
+   */
+  synchronized void finish() {
+    if (elapsedMillis < 0) {
+      elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    }
+  }
+
+  synchronized boolean isTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * Returns how long the process ran, in milliseconds, or -1 if it has not exited.
+   */
+  synchronized long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  /**
+   * Returns the CPU time used by the process, in milliseconds, as of the last sample.
+   */
+  synchronized long getCpuMillis() {
+    return cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+  }
+
+  /**
+   * Returns the peak resident set size of the process, in kilobytes, as of the last sample.
+   */
+  synchronized long getPeakRssKb() {
+    return peakRssKb;
+  }
+
+  /*
+   * Returns the fields of /proc/[pid]/stat after the command name, which can contain spaces, or
+   * null if the process does not exist.
+   */
+  private static List<String> readStat(int pid) throws IOException {
+    File file = new File(PROC, pid + "/stat");
+    if (!file.exists()) {
+      return null;
+    }
+    String stat = Files.toString(file, Charsets.UTF_8);
+    return Lists.newArrayList(Splitter.on(' ').omitEmptyStrings().trimResults()
+        .split(stat.substring(stat.lastIndexOf(')') + 1)));
+  }
+
+  /*
+   * Returns the processes started by the given process, directly or not, from /proc.
+   */
+  private static List<Integer> getDescendants(int pid) {
+    Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+    String[] names = PROC.list();
+    if (names != null) {
+      for (String name : names) {
+        if (!name.matches("[0-9]+")) {
+          continue;
+        }
+        try {
+          List<String> stat = readStat(Integer.parseInt(name));
+          if (stat != null) {
+            int parent = Integer.parseInt(stat.get(1));
+            if (!children.containsKey(parent)) {
+              children.put(parent, Lists.<Integer>newArrayList());
+            }
+            children.get(parent).add(Integer.parseInt(name));
+          }
+        } catch (IOException e) {
+          // The process exited.
+        } catch (RuntimeException e) {
+          LOG.log(Level.FINE, "Unable to parse /proc/" + name, e);
+        }
+      }
+    }
+    List<Integer> descendants = Lists.newArrayList();
+    Deque<Integer> pending = new ArrayDeque<Integer>();
+    pending.add(pid);
+    while (!pending.isEmpty()) {
+      List<Integer> processChildren = children.get(pending.remove());
+      if (processChildren != null) {
+        descendants.addAll(processChildren);
+        pending.addAll(processChildren);
+      }
+    }
+    return descendants;
+  }
+
+  /*
+   * Returns the process id of the given process, or -1 if it is not known. Process.pid() only
+   * exists since Java 9, so before that it is read from the pid field of the Unix implementation.
+   */
+  private static int getPid(Process process) {
+    try {
+      Method pidMethod = Process.class.getMethod("pid");
+      return ((Number) pidMethod.invoke(process)).intValue();
+    } catch (NoSuchMethodException e) {
+      // Before Java 9
+    } catch (Exception e) {
+      return -1;
+    }
+    try {
+      Field pidField = process.getClass().getDeclaredField("pid");
+      pidField.setAccessible(true);
+      return pidField.getInt(process);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+}
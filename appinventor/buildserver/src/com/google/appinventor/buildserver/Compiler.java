@@ -6,19 +6,21 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.common.version.GitBuildId;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
-import com.google.common.io.Resources;
 
 import com.android.sdklib.build.ApkBuilder;
 
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
@@ -30,18 +32,23 @@ import java.io.OutputStreamWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 
@@ -54,10 +61,30 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  public static int currentProgress = 10;
-
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // Kawa and DX processes can use a lot of memory and CPU. These limit how many of each can run at
+  // the same time across all builds. Builds in other phases are not held up. Until
+  // setPhaseLimits is called, only one Kawa and one DX process run at a time.
+  private static volatile PhaseLimiter kawaLimiter = new PhaseLimiter("Kawa compile", 1);
+  private static volatile PhaseLimiter dxLimiter = new PhaseLimiter("DX", 1);
+
+  // Warmed up Kawa compiler processes shared by all builds, or null if each build starts its own
+  // Kawa process.
+  private static volatile KawaCompilerPool kawaCompilerPool = null;
+
+  // Warmed up dexers that run dx in this JVM, or null if each DX run starts its own process.
+  private static volatile DexerPool dexerPool = null;
+
+  // Classes compiled from screens by previous builds, or null if every build compiles every
+  // screen. Entries are keyed by a hash of the screen's YAIL and classCacheFingerprint.
+  private static volatile FileCache classCache = null;
+  // Resources are extracted to this store once, and native libraries and assets are hard linked
+  // into each build from it rather than copied.
+  private static volatile ResourceStore resourceStore = new ResourceStore(
+      new File(System.getProperty("java.io.tmpdir"), "appinventor-resource-store"));
+  private static String classCacheFingerprint = null;
+
+  // Whether the runtime classes that a project can not use are removed before it is dexed.
+  private static volatile boolean shrinkRuntime = true;
 
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
@@ -75,14 +102,6 @@ public final class Compiler {
   private static final String ARMEABI_V7A_DIRECTORY = "armeabi-v7a";
   // Must match ComponentProcessor.ARMEABI_V7A_SUFFIX
   private static final String ARMEABI_V7A_SUFFIX = "-v7a";
-  // Must match ComponentListGenerator.PERMISSIONS_TARGET
-  private static final String PERMISSIONS_TARGET = "permissions";
-  // Must match ComponentListGenerator.LIBRARIES_TARGET
-  public static final String LIBRARIES_TARGET = "libraries";
-  // Must match ComponentListGenerator.NATIVE_TARGET
-  public static final String NATIVE_TARGET = "native";
-  // Must match ComponentListGenerator.ASSETS_TARGET
-  private static final String ASSETS_TARGET = "assets";
   // Must match Component.ASSET_DIRECTORY
   private static final String ASSET_DIRECTORY = "component";
 
@@ -101,9 +120,6 @@ public final class Compiler {
 
   private static final String DEFAULT_MIN_SDK = "4";
 
-  private static final String COMPONENT_BUILD_INFO =
-      RUNTIME_FILES_DIR + "simple_components_build_info.json";
-
   /*
    * Resource paths to yail runtime, runtime library files and sdk tools.
    * To get the real file paths, call getResource() with one of these constants.
@@ -138,27 +154,6 @@ public final class Compiler {
   // Logging support
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
-  private final ConcurrentMap<String, Set<String>> componentPermissions =
-      new ConcurrentHashMap<String, Set<String>>();
-
-  private final ConcurrentMap<String, Set<String>> componentLibraries =
-      new ConcurrentHashMap<String, Set<String>>();
-
-  private final ConcurrentMap<String, Set<String>> componentNativeLibraries =
-      new ConcurrentHashMap<String, Set<String>>();
-
-  private final ConcurrentMap<String, Set<String>> componentAssets =
-    new ConcurrentHashMap<String, Set<String>>();
-
-  /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
-   */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
-
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String ERROR_IN_STAGE =
       "Error: Your build failed due to an error in the %s stage, " +
@@ -184,41 +179,42 @@ public final class Compiler {
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
   private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private File runtimeJar; // The App Inventor runtime to dex, shrunk for this project or not
+  private BuildProgress progress; // Where progress is reported, or null
 
   /*
    * Generate the set of Android permissions needed by this project.
    */
   @VisibleForTesting
   Set<String> generatePermissions() {
-    // Before we can use componentPermissions, we have to call loadJsonInfo() for permissions.
+    ComponentBuildInfo buildInfo;
     try {
-      loadJsonInfo(componentPermissions, PERMISSIONS_TARGET);
-      if (project != null) {    // Only do this if we have a project (testing doesn't provide one :-( ).
-        LOG.log(Level.INFO, "usesLocation = " + project.getUsesLocation());
-        if (project.getUsesLocation().equals("True")) { // Add location permissions if any WebViewer requests it
-          Set<String> locationPermissions = Sets.newHashSet(); // via a Property.
-          // See ProjectEditor.recordLocationSettings()
-          locationPermissions.add("android.permission.ACCESS_FINE_LOCATION");
-          locationPermissions.add("android.permission.ACCESS_COARSE_LOCATION");
-          locationPermissions.add("android.permission.ACCESS_MOCK_LOCATION");
-          componentPermissions.put("WebViewer", locationPermissions);
-        }
-      }
+      buildInfo = ComponentBuildInfo.getInstance();
     } catch (IOException e) {
       // This is fatal.
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Permissions"));
       return null;
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Permissions"));
-      return null;
+    }
+    Set<String> webViewerPermissions = null;
+    if (project != null) {    // Only do this if we have a project (testing doesn't provide one :-( ).
+      LOG.log(Level.INFO, "usesLocation = " + project.getUsesLocation());
+      if (project.getUsesLocation().equals("True")) { // Add location permissions if any WebViewer requests it
+        webViewerPermissions = Sets.newHashSet(); // via a Property.
+        // See ProjectEditor.recordLocationSettings()
+        webViewerPermissions.add("android.permission.ACCESS_FINE_LOCATION");
+        webViewerPermissions.add("android.permission.ACCESS_COARSE_LOCATION");
+        webViewerPermissions.add("android.permission.ACCESS_MOCK_LOCATION");
+      }
     }
 
     Set<String> permissions = Sets.newHashSet();
     for (String componentType : componentTypes) {
-      permissions.addAll(componentPermissions.get(componentType));
+      if (webViewerPermissions != null && componentType.equals("WebViewer")) {
+        permissions.addAll(webViewerPermissions);
+      } else {
+        permissions.addAll(buildInfo.getPermissions(componentType));
+      }
     }
     if (isForCompanion) {      // This is so ACRA can do a logcat on phones older then Jelly Bean
       permissions.add("android.permission.READ_LOGS");
@@ -232,22 +228,16 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateLibraryNames() {
-    // Before we can use componentLibraries, we have to call loadComponentLibraries().
+    librariesNeeded = Sets.newHashSet();
     try {
-      loadJsonInfo(componentLibraries, LIBRARIES_TARGET);
+      ComponentBuildInfo buildInfo = ComponentBuildInfo.getInstance();
+      for (String componentType : componentTypes) {
+        librariesNeeded.addAll(buildInfo.getLibraries(componentType));
+      }
     } catch (IOException e) {
       // This is fatal.
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Libraries"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Libraries"));
-    }
-
-    librariesNeeded = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      librariesNeeded.addAll(componentLibraries.get(componentType));
     }
     System.out.println("Libraries needed, n= " + librariesNeeded.size());
   }
@@ -257,22 +247,16 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateNativeLibraryNames() {
-    // Before we can use componentLibraries, we have to call loadComponentLibraries().
+    nativeLibrariesNeeded = Sets.newHashSet();
     try {
-      loadJsonInfo(componentNativeLibraries, NATIVE_TARGET);
+      ComponentBuildInfo buildInfo = ComponentBuildInfo.getInstance();
+      for (String componentType : componentTypes) {
+        nativeLibrariesNeeded.addAll(buildInfo.getNativeLibraries(componentType));
+      }
     } catch (IOException e) {
       // This is fatal.
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Native Libraries"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Native Libraries"));
-    }
-
-    nativeLibrariesNeeded = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      nativeLibrariesNeeded.addAll(componentNativeLibraries.get(componentType));
     }
     System.out.println("Native Libraries needed, n= " + nativeLibrariesNeeded.size());
   }
@@ -282,22 +266,16 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateAssets() {
-    // Before we can use componentAssets, we have to call loadJsonInfo() for assets.
+    assetsNeeded = Sets.newHashSet();
     try {
-      loadJsonInfo(componentAssets, ASSETS_TARGET);
+      ComponentBuildInfo buildInfo = ComponentBuildInfo.getInstance();
+      for (String componentType : componentTypes) {
+        assetsNeeded.addAll(buildInfo.getAssets(componentType));
+      }
     } catch (IOException e) {
       // This is fatal.
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Assets"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Assets"));
-    }
-
-    assetsNeeded = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      assetsNeeded.addAll(componentAssets.get(componentType));
     }
     System.out.println("Component assets needed, n= " + assetsNeeded.size());
   }
@@ -513,21 +491,29 @@ public final class Compiler {
    * @param out  stdout stream for compiler messages
    * @param err  stderr stream for compiler messages
    * @param userErrors stream to write user-visible error messages
+   * @param keepUnsignedApk  whether to keep a copy of the companion apk before it is signed, at
+   *     {@link #getUnsignedApk}
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param timings  where the time taken by each phase is recorded
+   * @param progress  where the progress of the build is reported
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
    */
   public static boolean compile(Project project, Set<String> componentTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
-                                boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                boolean isForCompanion, boolean keepUnsignedApk,
+                                String keystoreFilePath,
+                                int childProcessRam, String dexCacheDir, BuildTimings timings,
+                                BuildProgress progress)
+      throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForCompanion,
                                      childProcessRam, dexCacheDir);
+    compiler.progress = progress;
 
     // Get names of component-required libraries and assets.
     compiler.generateLibraryNames();
@@ -544,7 +530,7 @@ public final class Compiler {
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(10);
+    compiler.setProgress(10);
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
@@ -559,7 +545,7 @@ public final class Compiler {
     if (permissionsNeeded == null) {
       return false;
     }
-    setProgress(15);
+    compiler.setProgress(15);
 
     // Generate AndroidManifest.xml
     out.println("________Generating manifest file");
@@ -567,7 +553,7 @@ public final class Compiler {
     if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
       return false;
     }
-    setProgress(20);
+    compiler.setProgress(20);
 
     // Insert native libraries
     out.println("________Attaching native libraries");
@@ -584,10 +570,17 @@ public final class Compiler {
     // Create class files.
     out.println("________Compiling source files");
     File classesDir = createDirectory(buildDir, "classes");
+    long phaseStart = System.nanoTime();
     if (!compiler.generateClasses(classesDir)) {
       return false;
     }
-    setProgress(35);
+    timings.record(BuildTimings.Phase.COMPILE, phaseStart);
+    compiler.setProgress(35);
+
+    // Remove the runtime classes that the project can not use, so that they are not dexed.
+    phaseStart = System.nanoTime();
+    compiler.shrinkRuntime(classesDir, manifestFile, buildDir);
+    timings.record(BuildTimings.Phase.SHRINK, phaseStart);
 
     // Invoke dx on class files
     out.println("________Invoking DX");
@@ -608,43 +601,78 @@ public final class Compiler {
     // Android SDK's Dex Ant task
     File tmpDir = createDirectory(buildDir, "tmp");
     String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
+    PhaseLimiter dx = dxLimiter;
+    try {
+      dx.enter();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
       return false;
     }
-    setProgress(85);
+    try {
+      phaseStart = System.nanoTime();
+      if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
+        return false;
+      }
+      timings.record(BuildTimings.Phase.DEX, phaseStart);
+    } finally {
+      dx.exit();
+    }
+    compiler.setProgress(85);
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
     File deployDir = createDirectory(buildDir, "deploy");
     String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
         project.getProjectName() + ".ap_";
+    phaseStart = System.nanoTime();
     if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
       return false;
     }
-    setProgress(90);
+    timings.record(BuildTimings.Phase.AAPT, phaseStart);
+    compiler.setProgress(90);
 
     // Seal the apk with ApkBuilder
     out.println("________Invoking ApkBuilder");
     String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
         project.getProjectName() + ".apk";
+    phaseStart = System.nanoTime();
     if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
       return false;
     }
-    setProgress(95);
+    timings.record(BuildTimings.Phase.APK_BUILDER, phaseStart);
+    compiler.setProgress(95);
 
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
+    if (isForCompanion && keepUnsignedApk) {
+      // Companion builds differ only in their signature, so ProjectBuilder keeps the unsigned apk
+      // to sign it again for later builds.
+      Files.copy(new File(apkAbsolutePath), getUnsignedApk(deployDir, project.getProjectName()));
     }
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
-      return false;
+    // Sign the apk file
+    out.println("________Signing and aligning the apk file");
+    phaseStart = System.nanoTime();
+    if (compiler.signAndAlignApk(apkAbsolutePath, keystoreFilePath, tmpDir)) {
+      timings.record(BuildTimings.Phase.SIGN_AND_ALIGN, phaseStart);
+    } else {
+      // Fall back to the tools.
+      out.println("________Signing the apk file");
+      phaseStart = System.nanoTime();
+      if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
+        return false;
+      }
+      timings.record(BuildTimings.Phase.JAR_SIGNER, phaseStart);
+
+      // ZipAlign the apk file
+      out.println("________ZipAligning the apk file");
+      phaseStart = System.nanoTime();
+      if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
+        return false;
+      }
+      timings.record(BuildTimings.Phase.ZIP_ALIGN, phaseStart);
     }
 
-    setProgress(100);
+    compiler.setProgress(100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -758,6 +786,7 @@ public final class Compiler {
       List<Project.SourceDescriptor> sources = project.getSources();
       List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
       List<String> classFileNames = Lists.newArrayListWithCapacity(sources.size());
+      List<String> sourceFileRelativePaths = Lists.newArrayListWithCapacity(sources.size());
       boolean userCodeExists = false;
       for (Project.SourceDescriptor source : sources) {
         String sourceFileName = source.getFile().getAbsolutePath();
@@ -790,6 +819,7 @@ public final class Compiler {
         }
         sourceFileNames.add(sourceFileName);
         classFileNames.add(classFileName);
+        sourceFileRelativePaths.add(sourceFileRelativePath);
       }
 
       if (!userCodeExists) {
@@ -815,6 +845,47 @@ public final class Compiler {
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
+
+      // Look up the classes of screens that were compiled by previous builds. Only the other
+      // screens need to be compiled.
+      FileCache cache = classCache;
+      List<String> compiledSourceFileNames = sourceFileNames;
+      List<String> compiledScreenKeys = Lists.newArrayList();
+      List<String> compiledSourceRelativePaths = Lists.newArrayList();
+      List<File> cachedClassJars = Lists.newArrayList();
+      String runtimeClassesKey = null;
+      File runtimeClassJar = null;
+      if (cache != null) {
+        String fingerprint = getClassCacheFingerprint();
+        compiledSourceFileNames = Lists.newArrayList();
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          String key = Hashing.sha1().newHasher()
+              .putString(fingerprint, Charsets.UTF_8).putByte((byte) 0)
+              .putString(sourceFileRelativePaths.get(i), Charsets.UTF_8).putByte((byte) 0)
+              .putBytes(Files.toByteArray(new File(sourceFileNames.get(i))))
+              .hash().toString();
+          File classJar = cache.getIfPresent(key);
+          if (classJar != null) {
+            cachedClassJars.add(classJar);
+          } else {
+            compiledSourceFileNames.add(sourceFileNames.get(i));
+            compiledSourceRelativePaths.add(sourceFileRelativePaths.get(i));
+            compiledScreenKeys.add(key);
+          }
+        }
+        // The classes compiled from runtime.scm.
+        runtimeClassesKey = Hashing.sha1().newHasher()
+            .putString(fingerprint, Charsets.UTF_8).putByte((byte) 0)
+            .putString(packagePrefix, Charsets.UTF_8)
+            .hash().toString();
+        runtimeClassJar = cache.getIfPresent(runtimeClassesKey);
+        LOG.info("Class cache has " + cachedClassJars.size() + " of " + sourceFileNames.size() +
+            " screens");
+      }
+
+      List<String> kawaSourceFileNames = Lists.newArrayList(compiledSourceFileNames);
+      kawaSourceFileNames.add(yailRuntime);
       List<String> kawaCommandArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
       Collections.addAll(kawaCommandArgs,
@@ -824,36 +895,57 @@ public final class Compiler {
           "kawa.repl",
           "-f", yailRuntime,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packagePrefix,
           "-C");
       // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
       // source file names. The resulting .class files contain references to the source file names,
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
+      kawaCommandArgs.addAll(kawaSourceFileNames);
       String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
-      long start = System.currentTimeMillis();
-      // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
-      // them to the protocol buffer for logging purposes. (See
-      // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      boolean compileNeeded =
+          cache == null || !compiledSourceFileNames.isEmpty() || runtimeClassJar == null;
+      if (compileNeeded) {
+        long start = System.currentTimeMillis();
+        // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
+        // them to the protocol buffer for logging purposes. (See
+        // buildserver/ProjectBuilder.processCompilerOutout.
+        ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
+        PrintStream kawaErrors = new PrintStream(kawaOutputStream);
+        Boolean kawaSuccess = null;
+        PhaseLimiter kawa = kawaLimiter;
+        kawa.enter();
+        try {
+          KawaCompilerPool pool = kawaCompilerPool;
+          if (pool != null) {
+            // The daemons are shared by all builds, so they get every component library.
+            kawaSuccess = pool.compile(getKawaDaemonClasspath(), yailRuntime, classesDir,
+                packagePrefix, kawaSourceFileNames, System.out, kawaErrors);
+          }
+          if (kawaSuccess == null) {
+            kawaSuccess = Execution.execute(null, kawaCommandLine, System.out, kawaErrors);
+          }
+        } finally {
+          kawa.exit();
+        }
+        kawaErrors.flush();
+        if (!kawaSuccess) {
+          LOG.log(Level.SEVERE, "Kawa compile has failed.");
+        }
+        String kawaOutput = kawaOutputStream.toString();
+        out.print(kawaOutput);
+        String kawaCompileTimeMessage = "Kawa compile time: " +
+            ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+        out.println(kawaCompileTimeMessage);
+        LOG.info(kawaCompileTimeMessage);
+      } else {
+        cachedClassJars.add(runtimeClassJar);
       }
-      if (!kawaSuccess) {
-        LOG.log(Level.SEVERE, "Kawa compile has failed.");
+      for (File classJar : cachedClassJars) {
+        extractClassJar(classJar, classesDir);
       }
-      String kawaOutput = kawaOutputStream.toString();
-      out.print(kawaOutput);
-      String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
-      out.println(kawaCompileTimeMessage);
-      LOG.info(kawaCompileTimeMessage);
 
       // Check that all of the class files were created.
       // If they weren't, return with an error.
@@ -867,15 +959,389 @@ public final class Compiler {
           return false;
         }
       }
+
+      // Save the newly compiled classes for later builds.
+      if (cache != null && compileNeeded) {
+        Set<String> screenClassFiles = Sets.newHashSet();
+        for (String sourceFileRelativePath : sourceFileRelativePaths) {
+          screenClassFiles.addAll(getScreenClassFiles(classesDir, sourceFileRelativePath));
+        }
+        for (int i = 0; i < compiledScreenKeys.size(); i++) {
+          cache.put(compiledScreenKeys.get(i), new ClassJarWriter(classesDir,
+              getScreenClassFiles(classesDir, compiledSourceRelativePaths.get(i))));
+        }
+        if (runtimeClassJar == null) {
+          List<String> runtimeClassFiles = Lists.newArrayList();
+          for (String classFile : getClassFiles(classesDir, "")) {
+            if (!screenClassFiles.contains(classFile)) {
+              runtimeClassFiles.add(classFile);
+            }
+          }
+          if (!runtimeClassFiles.isEmpty()) {
+            cache.put(runtimeClassesKey, new ClassJarWriter(classesDir, runtimeClassFiles));
+          }
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
       return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
+      return false;
     }
 
     return true;
   }
 
+  /*
+   * Returns the class path used by the Kawa compiler daemons. Unlike the class path of a Kawa
+   * process started for a single build, it contains all of the component libraries.
+   */
+  private String getKawaDaemonClasspath() {
+    StringBuilder classpath = new StringBuilder()
+        .append(getResource(KAWA_RUNTIME)).append(File.pathSeparator)
+        .append(getResource(ACRA_RUNTIME)).append(File.pathSeparator)
+        .append(getResource(SIMPLE_ANDROID_RUNTIME_JAR)).append(File.pathSeparator);
+    try {
+      for (String library : ComponentBuildInfo.getInstance().getAllLibraries()) {
+        classpath.append(getResource(RUNTIME_FILES_DIR + library)).append(File.pathSeparator);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return classpath.append(getResource(ANDROID_RUNTIME)).toString();
+  }
+
+  /*
+   * Writes the given class files to a class cache entry.
+   */
+  private static class ClassJarWriter implements FileCache.EntryWriter {
+    private final File classesDir;
+    private final List<String> classFiles;
+
+    ClassJarWriter(File classesDir, List<String> classFiles) {
+      this.classesDir = classesDir;
+      this.classFiles = classFiles;
+    }
+
+    @Override
+    public boolean write(File output) throws IOException {
+      ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(output));
+      try {
+        for (String classFile : classFiles) {
+          zip.putNextEntry(new ZipEntry(classFile));
+          Files.copy(new File(classesDir, classFile), zip);
+          zip.closeEntry();
+        }
+      } finally {
+        zip.close();
+      }
+      return true;
+    }
+  }
+
+  /*
+   * Returns the paths, relative to classesDir, of the class files compiled from the given screen.
+   */
+  private static List<String> getScreenClassFiles(File classesDir, String sourceFileRelativePath) {
+    String classPath = sourceFileRelativePath.substring(0,
+        sourceFileRelativePath.length() - YoungAndroidConstants.YAIL_EXTENSION.length());
+    int lastSlash = classPath.lastIndexOf('/');
+    String packagePath = classPath.substring(0, lastSlash + 1);
+    String screenName = classPath.substring(lastSlash + 1);
+    List<String> classFiles = Lists.newArrayList();
+    for (String classFile : getClassFiles(new File(classesDir, packagePath), packagePath)) {
+      String fileName = classFile.substring(packagePath.length());
+      if (fileName.equals(screenName + ".class") || fileName.startsWith(screenName + "$")) {
+        classFiles.add(classFile);
+      }
+    }
+    return classFiles;
+  }
+
+  /*
+   * Returns the paths of all files under the given directory, relative to the directory and
+   * prefixed with the given prefix.
+   */
+  private static List<String> getClassFiles(File dir, String prefix) {
+    List<String> classFiles = Lists.newArrayList();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          classFiles.addAll(getClassFiles(file, prefix + file.getName() + "/"));
+        } else {
+          classFiles.add(prefix + file.getName());
+        }
+      }
+    }
+    return classFiles;
+  }
+
+  /*
+   * Extracts the class files in a class cache entry into classesDir.
+   */
+  private static void extractClassJar(File classJar, File classesDir) throws IOException {
+    ZipFile zipFile = new ZipFile(classJar);
+    try {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        File classFile = new File(classesDir, entry.getName());
+        Files.createParentDirs(classFile);
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+          OutputStream out = new FileOutputStream(classFile);
+          try {
+            ByteStreams.copy(in, out);
+          } finally {
+            out.close();
+          }
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /*
+   * Returns a fingerprint of everything, other than the YAIL source, that determines the classes
+   * the Kawa compiler generates: the build server version, runtime.scm, the Kawa and App Inventor
+   * runtimes and all the component libraries.
+   */
+  private static synchronized String getClassCacheFingerprint() throws IOException {
+    if (classCacheFingerprint == null) {
+      List<String> resources = Lists.newArrayList(YAIL_RUNTIME, KAWA_RUNTIME, ACRA_RUNTIME,
+          SIMPLE_ANDROID_RUNTIME_JAR);
+      for (String library : ComponentBuildInfo.getInstance().getAllLibraries()) {
+        resources.add(RUNTIME_FILES_DIR + library);
+      }
+      Hasher hasher = Hashing.sha1().newHasher()
+          .putString(GitBuildId.getVersion(), Charsets.UTF_8).putByte((byte) 0)
+          .putString(GitBuildId.getFingerprint(), Charsets.UTF_8).putByte((byte) 0);
+      for (String resource : resources) {
+        hasher.putBytes(Files.hash(new File(getResource(resource)), Hashing.sha1()).asBytes());
+      }
+      classCacheFingerprint = hasher.hash().toString();
+    }
+    return classCacheFingerprint;
+  }
+
+  /**
+   * Parses the component build info, extracts every resource that builds use into the resource
+   * store, and checks the files the store already has, so that builds do not have to wait for
+   * them. Called once before the build server accepts builds.
+   *
+   * @return  the number of resources
+   */
+  static int warmUpResources() throws IOException {
+    List<String> resourcePaths = Lists.newArrayList(SIMPLE_ANDROID_RUNTIME_JAR, ANDROID_RUNTIME,
+        KAWA_RUNTIME, ACRA_RUNTIME, DX_JAR, YAIL_RUNTIME, ProjectBuilder.YAIL_GENERATOR);
+    String aaptTool = getToolForOs(MAC_AAPT_TOOL, LINUX_AAPT_TOOL, WINDOWS_AAPT_TOOL);
+    if (aaptTool != null) {
+      resourcePaths.add(aaptTool);
+    }
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.getInstance();
+    for (String library : buildInfo.getAllLibraries()) {
+      resourcePaths.add(RUNTIME_FILES_DIR + library);
+    }
+    for (String library : buildInfo.getAllNativeLibraries()) {
+      resourcePaths.add(getNativeLibraryResource(library));
+    }
+    for (String asset : buildInfo.getAllAssets()) {
+      resourcePaths.add(RUNTIME_FILES_DIR + asset);
+    }
+    for (String resourcePath : resourcePaths) {
+      resourceStore.get(resourcePath);
+    }
+    return resourcePaths.size();
+  }
+
+  /*
+   * Returns the resource path of the given tool for the OS the build server runs on, or null if
+   * the tool does not run on it.
+   */
+  private static String getToolForOs(String macTool, String linuxTool, String windowsTool) {
+    String osName = System.getProperty("os.name");
+    if (osName.equals("Mac OS X")) {
+      return macTool;
+    } else if (osName.equals("Linux")) {
+      return linuxTool;
+    } else if (osName.startsWith("Windows")) {
+      return windowsTool;
+    }
+    return null;
+  }
+
+  /*
+   * Returns the resource path of the given native library, as named in the component build info.
+   * Non-default architectures (ARMv5TE is default) are identified with suffixes.
+   */
+  private static String getNativeLibraryResource(String library) {
+    if (library.endsWith(ARMEABI_V7A_SUFFIX)) {
+      return RUNTIME_FILES_DIR + ARMEABI_V7A_DIRECTORY + "/"
+          + library.substring(0, library.length() - ARMEABI_V7A_SUFFIX.length());
+    }
+    return RUNTIME_FILES_DIR + ARMEABI_DIR_NAME + "/" + library;
+  }
+
+  /**
+   * Sets the store that resources are extracted to, and that the native libraries and assets of
+   * components are linked from.
+   */
+  static void setResourceStore(ResourceStore store) {
+    resourceStore = store;
+  }
+
+  static ResourceStore getResourceStore() {
+    return resourceStore;
+  }
+
+  /**
+   * Sets the cache of compiled screen classes used by all subsequent builds.
+   *
+   * @param cache  the cache, or {@code null} to compile every screen in every build
+   */
+  static void setClassCache(FileCache cache) {
+    classCache = cache;
+  }
+
+  static FileCache getClassCache() {
+    return classCache;
+  }
+
+  /**
+   * Sets whether subsequent builds remove the runtime classes that their project can not use
+   * before dexing. Companion builds and builds that use a dex cache always dex the whole runtime.
+   */
+  static void setShrinkRuntime(boolean shrink) {
+    shrinkRuntime = shrink;
+  }
+
+  /**
+   * Sets the pool of Kawa compiler daemons used by all subsequent builds.
+   *
+   * @param pool  the pool, or {@code null} to start a new Kawa process for each build
+   */
+  static void setKawaCompilerPool(KawaCompilerPool pool) {
+    kawaCompilerPool = pool;
+  }
+
+  /**
+   * Sets how many Kawa compilations and how many DX runs can happen at the same time across all
+   * builds.
+   *
+   * @param maxKawa  maximum number of simultaneous Kawa compilations
+   * @param maxDx  maximum number of simultaneous DX runs
+   */
+  static void setPhaseLimits(int maxKawa, int maxDx) {
+    kawaLimiter = new PhaseLimiter("Kawa compile", maxKawa);
+    dxLimiter = new PhaseLimiter("DX", maxDx);
+  }
+
+  /**
+   * Makes all subsequent builds run dx in this JVM using the given number of dexers, instead of
+   * starting a new process for each DX run.
+   *
+   * @param maxDexers  the number of dexers; should be the maximum number of simultaneous DX runs
+   */
+  static void setInProcessDexers(int maxDexers) {
+    dexerPool = new DexerPool(getResource(DX_JAR), maxDexers);
+  }
+
+  /**
+   * Pre-dexes the libraries that builds share (the App Inventor runtime, Kawa, ACRA and every
+   * component library) into the dex cache, so that no build has to wait for them to be dexed.
+   * Libraries that are already in the cache are not dexed again.
+   *
+   * @param dexCacheDir  the directory of the dex cache
+   * @param childProcessRamMb  maximum ram that can be used by a dx process, in MB
+   * @return  {@code true} if all the libraries are in the cache, {@code false} otherwise
+   */
+  static boolean preDexRuntimeLibraries(String dexCacheDir, int childProcessRamMb)
+      throws IOException {
+    Set<String> allLibraries = ComponentBuildInfo.getInstance().getAllLibraries();
+
+    List<File> inputList = new ArrayList<File>();
+    inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
+    inputList.add(new File(getResource(KAWA_RUNTIME)));
+    inputList.add(new File(getResource(ACRA_RUNTIME)));
+    for (String library : allLibraries) {
+      inputList.add(new File(getResource(RUNTIME_FILES_DIR + library)));
+    }
+
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setChildProcessRamMb(childProcessRamMb);
+    dexTask.setDexerPool(dexerPool);
+    createDirectory(new File(dexCacheDir));
+    dexTask.setDexedLibs(dexCacheDir);
+
+    long start = System.currentTimeMillis();
+    boolean success;
+    try {
+      dxLimiter.enter();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    try {
+      success = dexTask.preDexLibraries(inputList);
+    } finally {
+      dxLimiter.exit();
+    }
+    LOG.info("Pre-dexed " + inputList.size() + " runtime libraries in " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+    return success;
+  }
+
+  static PhaseLimiter getKawaLimiter() {
+    return kawaLimiter;
+  }
+
+  static PhaseLimiter getDxLimiter() {
+    return dxLimiter;
+  }
+
+  /**
+   * Returns where a companion build keeps its apk before it is signed.
+   *
+   * @param deployDir  the directory of the signed apk
+   * @param projectName  the name of the project
+   */
+  static File getUnsignedApk(File deployDir, String projectName) {
+    return new File(deployDir, projectName + "-unsigned.apk");
+  }
+
+  /*
+   * Signs and aligns the apk file in this process, replacing it. Returns false if that was not
+   * possible, in which case the apk file is unchanged.
+   */
+  private boolean signAndAlignApk(String apkAbsolutePath, String keystoreAbsolutePath,
+      File tmpDir) {
+    long start = System.currentTimeMillis();
+    File apk = new File(apkAbsolutePath);
+    File signedApk = new File(tmpDir, "signed.apk");
+    try {
+      ApkSigner.fromKeyStore(new File(keystoreAbsolutePath), "AndroidKey", "android")
+          .signAndAlign(apk, signedApk);
+      Files.move(signedApk, apk);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Unable to sign the apk file in process.", e);
+      signedApk.delete();
+      return false;
+    }
+    String signTimeMessage = "Sign and align time: " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+    out.println(signTimeMessage);
+    LOG.info(signTimeMessage);
+    return true;
+  }
+
   private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
     // TODO(user): maybe make a command line flag for the jarsigner location
     String javaHome = System.getProperty("java.home");
@@ -921,15 +1387,10 @@ public final class Compiler {
     // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
     // Need to make sure assets directory exists otherwise zipalign will fail.
     createDirectory(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
+    String zipAlignTool =
+        getToolForOs(MAC_ZIPALIGN_TOOL, LINUX_ZIPALIGN_TOOL, WINDOWS_ZIPALIGN_TOOL);
+    if (zipAlignTool == null) {
+      String osName = System.getProperty("os.name");
       LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
       err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
       userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
@@ -1001,12 +1462,46 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Sets runtimeJar to a copy of the App Inventor runtime without the classes that the project can
+   * not use, or to the whole runtime if it is built for the companion, which can load any
+   * component, if it uses a component that this build server does not know, or if the runtime can
+   * not be shrunk.
+   *
+   * With a dex cache, the whole runtime is used too. It was pre-dexed at startup, so the build
+   * only has to dex its own classes, while each shrunk copy would be a new cache entry.
+   */
+  private void shrinkRuntime(File classesDir, File manifestFile, File buildDir) {
+    runtimeJar = new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+    if (!shrinkRuntime || isForCompanion || dexCacheDir != null) {
+      return;
+    }
+    try {
+      Set<String> knownComponentTypes = ComponentBuildInfo.getInstance().getComponentTypes();
+      for (String componentType : componentTypes) {
+        if (!knownComponentTypes.contains(componentType)) {
+          LOG.info("Not shrinking the runtime for unknown component " + componentType);
+          return;
+        }
+      }
+      RuntimeShrinker shrinker = RuntimeShrinker.getInstance(runtimeJar);
+      Set<String> classes = shrinker.getReachableClasses(componentTypes, classesDir,
+          Collections.singleton(manifestFile));
+      File shrunkJar = new File(createDirectory(buildDir, "runtime"), "AndroidRuntime.jar");
+      int removed = shrinker.writeJar(classes, shrunkJar);
+      out.println("Removed " + removed + " unused runtime classes");
+      runtimeJar = shrunkJar;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to shrink the runtime, dexing all of it", e);
+    }
+  }
+
   private boolean runDx(File classesDir, String dexedClassesDir, boolean secondTry) {
     List<File> libList = new ArrayList<File>();
     List<File> inputList = new ArrayList<File>();
     List<File> class2List = new ArrayList<File>();
     inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
-    inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
+    inputList.add(runtimeJar);
     inputList.add(new File(getResource(KAWA_RUNTIME)));
     inputList.add(new File(getResource(ACRA_RUNTIME)));
 
@@ -1039,6 +1534,7 @@ public final class Compiler {
     dexTask.setExecutable(getResource(DX_JAR));
     dexTask.setOutput(dexedClassesDir + File.separator + "classes.dex");
     dexTask.setChildProcessRamMb(childProcessRamMb);
+    dexTask.setDexerPool(dexerPool);
     if (dexCacheDir == null) {
       dexTask.setDisableDexMerger(true);
     } else {
@@ -1050,32 +1546,31 @@ public final class Compiler {
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {
-        // If we get into this block of code, it means that the Dexer
-        // returned an error. It *might* be because of overflowing the
-        // the fixed table of methods, but we cannot know that for
-        // sure so we try Dexing again, but this time we put all
-        // support libraries into classes2.dex. If this second pass
-        // fails, we return the error to the user.
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
-        }
+    // The caller has entered the DX phase (see dxLimiter), which also covers the second try.
+    setProgress(50);
+    dxSuccess = dexTask.execute(inputList);
+    if (dxSuccess && (class2List.size() > 0)) {
+      setProgress(60);
+      dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
+      inputList = new ArrayList<File>();
+      dxSuccess = dexTask.execute(class2List);
+      setProgress(75);
+      hasSecondDex = true;
+    } else if (!dxSuccess) {
+      // If we get into this block of code, it means that the Dexer
+      // returned an error. It *might* be because of overflowing the
+      // the fixed table of methods, but we cannot know that for
+      // sure so we try Dexing again, but this time we put all
+      // support libraries into classes2.dex. If this second pass
+      // fails, we return the error to the user.
+      LOG.info("DX execution failed, trying with fewer libraries.");
+      if (secondTry) {        // Already tried the more conservative approach!
+        LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
+        err.println("YAIL compiler - DX execution failed.");
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+        return false;
+      } else {
+        return runDx(classesDir, dexedClassesDir, true);
       }
     }
     if (!dxSuccess) {
@@ -1095,15 +1590,9 @@ public final class Compiler {
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDirectory(project.getAssetsDirectory());
-    String aaptTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      aaptTool = MAC_AAPT_TOOL;
-    } else if (osName.equals("Linux")) {
-      aaptTool = LINUX_AAPT_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      aaptTool = WINDOWS_AAPT_TOOL;
-    } else {
+    String aaptTool = getToolForOs(MAC_AAPT_TOOL, LINUX_AAPT_TOOL, WINDOWS_AAPT_TOOL);
+    if (aaptTool == null) {
+      String osName = System.getProperty("os.name");
       LOG.warning("YAIL compiler - cannot run AAPT on OS " + osName);
       err.println("YAIL compiler - cannot run AAPT on OS " + osName);
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -1151,14 +1640,11 @@ public final class Compiler {
      */
     try {
       for (String library : nativeLibrariesNeeded) {
-        if (library.endsWith(ARMEABI_V7A_SUFFIX)) { // Remove suffix and copy.
-          library = library.substring(0, library.length() - ARMEABI_V7A_SUFFIX.length());
-          Files.copy(new File(getResource(RUNTIME_FILES_DIR + ARMEABI_V7A_DIRECTORY +
-              "/" + library)), new File(armeabiV7aDir, library));
-        } else {
-          Files.copy(new File(getResource(RUNTIME_FILES_DIR + ARMEABI_DIR_NAME +
-              "/" + library)), new File(armeabiDir, library));
-        }
+        String resourcePath = getNativeLibraryResource(library);
+        // The suffix is removed from the name of the file in the APK.
+        File directory = library.endsWith(ARMEABI_V7A_SUFFIX) ? armeabiV7aDir : armeabiDir;
+        resourceStore.link(resourcePath,
+            new File(directory, resourcePath.substring(resourcePath.lastIndexOf('/') + 1)));
       }
       return true;
     } catch (IOException e) {
@@ -1176,7 +1662,7 @@ public final class Compiler {
       File componentAssetDirectory = createDirectory(project.getAssetsDirectory(),
           ASSET_DIRECTORY);
       for (String filename : assetsNeeded) {
-        Files.copy(new File(getResource(RUNTIME_FILES_DIR + filename)),
+        resourceStore.link(RUNTIME_FILES_DIR + filename,
             new File(componentAssetDirectory, filename));
       }
     } catch (IOException e) {
@@ -1188,74 +1674,19 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Returns the absolute path of a file with the contents of the given resource, from the
+   * resource store. Once the resource is in the store, this does not block.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
     try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
-      }
-      return file.getAbsolutePath();
+      return resourceStore.get(resourcePath).getAbsolutePath();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  /*
-   *  Loads permissions and information on component libraries and assets.
-   */
-  private void loadJsonInfo(ConcurrentMap<String, Set<String>> infoMap, String targetInfo)
-      throws IOException, JSONException {
-    synchronized (infoMap) {
-      if (infoMap.isEmpty()) {
-        String buildInfoJson = Resources.toString(
-            Compiler.class.getResource(COMPONENT_BUILD_INFO), Charsets.UTF_8);
-
-        JSONArray componentsArray = new JSONArray(buildInfoJson);
-        int componentsLength = componentsArray.length();
-        for (int componentsIndex = 0; componentsIndex < componentsLength; componentsIndex++) {
-          JSONObject componentObject = componentsArray.getJSONObject(componentsIndex);
-          String name = componentObject.getString("name");
-
-          Set<String> infoGroupForThisComponent = Sets.newHashSet();
-
-          JSONArray infoArray = componentObject.getJSONArray(targetInfo);
-          int infoLength = infoArray.length();
-          for (int infoIndex = 0; infoIndex < infoLength; infoIndex++) {
-            String info = infoArray.getString(infoIndex);
-            infoGroupForThisComponent.add(info);
-          }
-
-          infoMap.put(name, infoGroupForThisComponent);
-        }
-      }
-    }
-  }
-
   /**
    * Copy one file to another. If destination file does not exist, it is created.
    *
@@ -1266,14 +1697,22 @@ public final class Compiler {
   private static Boolean copyFile(String srcPath, String dstPath) {
     try {
       FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
+      try {
+        FileOutputStream out = new FileOutputStream(dstPath);
+        try {
+          // Copy from channel to channel, so the file does not pass through the Java heap.
+          FileChannel inChannel = in.getChannel();
+          long size = inChannel.size();
+          long position = 0;
+          while (position < size) {
+            position += inChannel.transferTo(position, size - position, out.getChannel());
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
       }
-      in.close();
-      out.close();
     }
     catch (IOException e) {
       e.printStackTrace();
@@ -1310,19 +1749,10 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
-  }
-
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
+  private void setProgress(int percent) {
+    LOG.info("The current progress is " + percent + "%");
+    if (progress != null) {
+      progress.set(percent);
     }
   }
 }
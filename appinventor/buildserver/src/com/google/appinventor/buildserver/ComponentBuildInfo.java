@@ -0,0 +1,192 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Set;
+
+/**
+ * The permissions, libraries, native libraries and assets that each component needs, from the
+ * component build info generated by ComponentListGenerator.
+ *
+ * <p>The build info is parsed once per process, into an immutable index that every build shares.
+ */
+final class ComponentBuildInfo {
+  private static final String COMPONENT_BUILD_INFO =
+      Compiler.RUNTIME_FILES_DIR + "simple_components_build_info.json";
+
+  // Must match ComponentListGenerator.PERMISSIONS_TARGET
+  private static final String PERMISSIONS_TARGET = "permissions";
+  // Must match ComponentListGenerator.LIBRARIES_TARGET
+  private static final String LIBRARIES_TARGET = "libraries";
+  // Must match ComponentListGenerator.NATIVE_TARGET
+  private static final String NATIVE_TARGET = "native";
+  // Must match ComponentListGenerator.ASSETS_TARGET
+  private static final String ASSETS_TARGET = "assets";
+
+  private static volatile ComponentBuildInfo instance;
+
+  private final ImmutableMap<String, ImmutableSet<String>> permissions;
+  private final ImmutableMap<String, ImmutableSet<String>> libraries;
+  private final ImmutableMap<String, ImmutableSet<String>> nativeLibraries;
+  private final ImmutableMap<String, ImmutableSet<String>> assets;
+  private final ImmutableSortedSet<String> allLibraries;
+  private final ImmutableSortedSet<String> allNativeLibraries;
+  private final ImmutableSortedSet<String> allAssets;
+
+  private ComponentBuildInfo(JSONArray components) throws JSONException {
+    ImmutableMap.Builder<String, ImmutableSet<String>> permissionsBuilder = ImmutableMap.builder();
+    ImmutableMap.Builder<String, ImmutableSet<String>> librariesBuilder = ImmutableMap.builder();
+    ImmutableMap.Builder<String, ImmutableSet<String>> nativeLibrariesBuilder =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, ImmutableSet<String>> assetsBuilder = ImmutableMap.builder();
+    ImmutableSortedSet.Builder<String> allLibrariesBuilder = ImmutableSortedSet.naturalOrder();
+    ImmutableSortedSet.Builder<String> allNativeLibrariesBuilder =
+        ImmutableSortedSet.naturalOrder();
+    ImmutableSortedSet.Builder<String> allAssetsBuilder = ImmutableSortedSet.naturalOrder();
+    for (int i = 0; i < components.length(); i++) {
+      JSONObject component = components.getJSONObject(i);
+      String name = component.getString("name");
+      permissionsBuilder.put(name, getStrings(component, PERMISSIONS_TARGET));
+      ImmutableSet<String> componentLibraries = getStrings(component, LIBRARIES_TARGET);
+      librariesBuilder.put(name, componentLibraries);
+      allLibrariesBuilder.addAll(componentLibraries);
+      ImmutableSet<String> componentNativeLibraries = getStrings(component, NATIVE_TARGET);
+      nativeLibrariesBuilder.put(name, componentNativeLibraries);
+      allNativeLibrariesBuilder.addAll(componentNativeLibraries);
+      ImmutableSet<String> componentAssets = getStrings(component, ASSETS_TARGET);
+      assetsBuilder.put(name, componentAssets);
+      allAssetsBuilder.addAll(componentAssets);
+    }
+    permissions = permissionsBuilder.build();
+    libraries = librariesBuilder.build();
+    nativeLibraries = nativeLibrariesBuilder.build();
+    assets = assetsBuilder.build();
+    allLibraries = allLibrariesBuilder.build();
+    allNativeLibraries = allNativeLibrariesBuilder.build();
+    allAssets = allAssetsBuilder.build();
+  }
+
+  private static ImmutableSet<String> getStrings(JSONObject component, String target)
+      throws JSONException {
+    JSONArray array = component.getJSONArray(target);
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (int i = 0; i < array.length(); i++) {
+      builder.add(array.getString(i));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the build info of the components of this build server, parsing it the first time.
+   *
+   * @throws IOException  if the build info can not be read or parsed
+   */
+  static ComponentBuildInfo getInstance() throws IOException {
+    ComponentBuildInfo buildInfo = instance;
+    if (buildInfo == null) {
+      synchronized (ComponentBuildInfo.class) {
+        buildInfo = instance;
+        if (buildInfo == null) {
+          URL url = ComponentBuildInfo.class.getResource(COMPONENT_BUILD_INFO);
+          if (url == null) {
+            throw new IOException("No resource " + COMPONENT_BUILD_INFO);
+          }
+          try {
+            buildInfo = parse(Resources.toString(url, Charsets.UTF_8));
+          } catch (JSONException e) {
+            throw new IOException("Unable to parse " + COMPONENT_BUILD_INFO, e);
+          }
+          instance = buildInfo;
+        }
+      }
+    }
+    return buildInfo;
+  }
+
+  /**
+   * Parses the given component build info.
+   */
+  @VisibleForTesting
+  static ComponentBuildInfo parse(String json) throws JSONException {
+    return new ComponentBuildInfo(new JSONArray(json));
+  }
+
+  /**
+   * Returns the types of the components that have build info.
+   */
+  Set<String> getComponentTypes() {
+    return permissions.keySet();
+  }
+
+  /**
+   * Returns the permissions that the given component needs.
+   */
+  Set<String> getPermissions(String componentType) {
+    return get(permissions, componentType);
+  }
+
+  /**
+   * Returns the libraries that the given component needs.
+   */
+  Set<String> getLibraries(String componentType) {
+    return get(libraries, componentType);
+  }
+
+  /**
+   * Returns the native libraries that the given component needs. Libraries for the ARMv7
+   * architecture have the -v7a suffix.
+   */
+  Set<String> getNativeLibraries(String componentType) {
+    return get(nativeLibraries, componentType);
+  }
+
+  /**
+   * Returns the assets that the given component needs.
+   */
+  Set<String> getAssets(String componentType) {
+    return get(assets, componentType);
+  }
+
+  private static Set<String> get(ImmutableMap<String, ImmutableSet<String>> map,
+      String componentType) {
+    ImmutableSet<String> set = map.get(componentType);
+    return set == null ? ImmutableSet.<String>of() : set;
+  }
+
+  /**
+   * Returns the libraries that any component needs, sorted.
+   */
+  Set<String> getAllLibraries() {
+    return allLibraries;
+  }
+
+  /**
+   * Returns the native libraries that any component needs, sorted.
+   */
+  Set<String> getAllNativeLibraries() {
+    return allNativeLibraries;
+  }
+
+  /**
+   * Returns the assets that any component needs, sorted.
+   */
+  Set<String> getAllAssets() {
+    return allAssets;
+  }
+}
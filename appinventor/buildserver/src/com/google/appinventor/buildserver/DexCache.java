@@ -0,0 +1,156 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of pre-dexed libraries, stored in a directory.
+ *
+ * <p>Entries are named after a hash of the contents of the library, so the same library is dexed
+ * once no matter where it is extracted, and a changed library gets a new entry. See
+ * {@link FileCache} for how entries are written, shared and evicted.
+ */
+final class DexCache extends FileCache {
+  private static final String ENTRY_PREFIX = "dex-cached-";
+
+  // Every build shrinks the runtime into its own job directory, so the hashes of libraries are
+  // remembered for only this many paths. The shared libraries are used by every build and stay.
+  private static final int MAX_INPUT_HASHES = 1000;
+
+  // The caches, by canonical directory path.
+  private static final ConcurrentMap<String, DexCache> caches =
+      new ConcurrentHashMap<String, DexCache>();
+
+  // Maximum size of each cache directory, in bytes. 0 means unlimited.
+  private static volatile long defaultMaxBytes = 0;
+
+  /**
+   * Dexes a library.
+   */
+  interface Dexer {
+    /**
+     * Dexes the given library.
+     *
+     * @param input  the library
+     * @param output  the file to write the dexed library to
+     * @return  {@code true} if the library was dexed, {@code false} otherwise
+     */
+    boolean dex(File input, File output);
+  }
+
+  /*
+   * The hash of a library, and the size and modification time of the library when it was hashed.
+   */
+  private static class InputHash {
+    final long length;
+    final long lastModified;
+    final String hash;
+
+    InputHash(long length, long lastModified, String hash) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  // The hashes of the most recently used libraries, by absolute path.
+  private final Cache<String, InputHash> inputHashes;
+
+  DexCache(File directory) {
+    this(directory, MAX_INPUT_HASHES);
+  }
+
+  @VisibleForTesting
+  DexCache(File directory, int maxInputHashes) {
+    super(directory, ENTRY_PREFIX, ".jar", "classes.dex");
+    setMaxBytes(defaultMaxBytes);
+    inputHashes = CacheBuilder.newBuilder().maximumSize(maxInputHashes).build();
+  }
+
+  /**
+   * Returns the cache stored in the given directory, creating the directory if necessary.
+   *
+   * @param directory  the cache directory
+   */
+  static DexCache getInstance(File directory) throws IOException {
+    String path = directory.getCanonicalPath();
+    DexCache cache = caches.get(path);
+    if (cache == null) {
+      DexCache newCache = new DexCache(new File(path));
+      cache = caches.putIfAbsent(path, newCache);
+      if (cache == null) {
+        cache = newCache;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Sets the maximum size of each cache directory.
+   *
+   * @param bytes  the maximum size, in bytes, or 0 for unlimited
+   */
+  static void setDefaultMaxBytes(long bytes) {
+    defaultMaxBytes = bytes;
+    for (DexCache cache : caches.values()) {
+      cache.setMaxBytes(bytes);
+    }
+  }
+
+  /**
+   * Returns the dexed version of the given library, dexing it with the given dexer if it is not
+   * in the cache.
+   *
+   * @param input  the library
+   * @param dexer  the dexer used if the library is not in the cache
+   * @return  the dexed library, or {@code null} if the library could not be dexed
+   */
+  File get(final File input, final Dexer dexer) throws IOException {
+    final String hash = getHash(input);
+    File entry = get(hash, new EntryWriter() {
+      @Override
+      public boolean write(File output) {
+        System.out.println(String.format("Pre-Dexing %1$s -> %2$s%3$s.jar",
+            input.getAbsolutePath(), ENTRY_PREFIX, hash));
+        return dexer.dex(input, output);
+      }
+    });
+    if (entry != null) {
+      System.out.println(String.format("Using Pre-Dexed %1$s <- %2$s",
+          entry.getName(), input.getAbsolutePath()));
+    }
+    return entry;
+  }
+
+  private String getHash(File input) throws IOException {
+    String path = input.getAbsolutePath();
+    long length = input.length();
+    long lastModified = input.lastModified();
+    InputHash inputHash = inputHashes.getIfPresent(path);
+    if (inputHash == null || inputHash.length != length
+        || inputHash.lastModified != lastModified) {
+      inputHash = new InputHash(length, lastModified,
+          Files.hash(input, Hashing.md5()).toString());
+      inputHashes.put(path, inputHash);
+    }
+    return inputHash.hash;
+  }
+
+  @VisibleForTesting
+  long getInputHashCount() {
+    return inputHashes.size();
+  }
+}
@@ -18,18 +18,11 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
-
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
@@ -44,10 +37,7 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
-
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
-
+    private DexerPool mDexerPool = null;
 
     /**
      * Sets the value of the "executable" attribute.
@@ -93,80 +83,57 @@ public class DexExecTask  {
         mDisableDexMerger = disable;
     }
 
-    private boolean preDexLibraries(List<File> inputs) {
+    /**
+     * Sets the pool used to run dx in this JVM. If null, dx runs in a new process.
+     * @param dexerPool the pool, or null.
+     */
+    void setDexerPool(DexerPool dexerPool) {
+        mDexerPool = dexerPool;
+    }
+
+    boolean preDexLibraries(List<File> inputs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
             // just a jar file (case for proguard'ed builds)
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
-                    }
-
+        DexCache dexCache;
+        try {
+            dexCache = DexCache.getInstance(new File(mDexedLibs));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        DexCache.Dexer dexer = new DexCache.Dexer() {
+            @Override
+            public boolean dex(File input, File output) {
+                return runDx(input, output.getAbsolutePath(), false /*showInput*/);
+            }
+        };
+
+        final int count = inputs.size();
+        boolean allSuccessful = true;
+        for (int i = 0 ; i < count; i++) {
+            File input = inputs.get(i);
+            if (input.isFile()) {
+                // check if this libs needs to be pre-dexed
+                File dexedLib;
+                try {
+                    dexedLib = dexCache.get(input, dexer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    dexedLib = null;
+                }
+                if (dexedLib == null) {
+                    allSuccessful = false;
+                } else {
                     // replace the input with the pre-dex libs.
                     inputs.set(i, dexedLib);
                 }
             }
-            return allSuccessful;
-        }
-    }
-
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
-        }
-
-        String hashed = getHashFor(inputFile);
-
-        return "dex-cached-" + hashed + ".jar";
-    }
-
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
-        if (retval != null) return retval;
-        // add a hash of the original file path
-        try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
-            return retval;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "ERROR";
         }
+        return allSuccessful;
     }
 
     public boolean execute(List<File> paths) {
@@ -185,14 +152,7 @@ public class DexExecTask  {
     }
 
     private boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
-        int mx = mChildProcessRamMb - 200;
-
         List<String> commandLineList = new ArrayList<String>();
-        commandLineList.add(System.getProperty("java.home") + "/bin/java");
-        commandLineList.add("-mx" + mx + "M");
-        commandLineList.add("-jar");
-        commandLineList.add(mExecutable);
-
         commandLineList.add("--dex");
         commandLineList.add("--positions=lines");
 
@@ -214,6 +174,16 @@ public class DexExecTask  {
             commandLineList.add(absPath);
         }
 
+        if (mDexerPool != null) {
+            return mDexerPool.dex(commandLineList);
+        }
+
+        int mx = mChildProcessRamMb - 200;
+        commandLineList.add(0, System.getProperty("java.home") + "/bin/java");
+        commandLineList.add(1, "-mx" + mx + "M");
+        commandLineList.add(2, "-jar");
+        commandLineList.add(3, mExecutable);
+
         // Convert command line to an array
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
@@ -0,0 +1,241 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs dx inside the build server JVM instead of in a new process.
+ *
+ * <p>The dx dexer keeps its state in static fields, so it can only run one dex at a time per
+ * class loader. The pool therefore loads dx.jar into a separate class loader for each dexer and
+ * hands each dexer to one build at a time. Dexers are created lazily and reused, so after the
+ * first few builds dx is already loaded and compiled by the JIT. A dexer that fails is dropped, and
+ * a build that was waiting for it gets a new one.
+ *
+ * <p>Like child processes, dx runs are subject to the {@link Execution} timeout. A thread can not
+ * be killed, so a dx run that times out is interrupted and abandoned, and the build fails. The
+ * abandoned run keeps its permit until it actually ends, so runaway runs still count against the
+ * maximum number of dexers.
+ *
+ * <p>In-process dexing uses the build server's heap rather than childProcessRamMb per dx process,
+ * so the build server must be started with enough heap for the number of simultaneous dx runs.
+ */
+final class DexerPool {
+  private static final String DEXER_MAIN = "com.android.dx.command.dexer.Main";
+  private static final String DEXER_ARGUMENTS = DEXER_MAIN + "$Arguments";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(DexerPool.class.getName());
+
+  // Runs the dexers, so that a build can stop waiting for a dx run that does not finish in time.
+  private static final ExecutorService dexerExecutor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "InProcessDexer-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Runs the dexer with the given arguments.
+   */
+  interface Dexer {
+    boolean dex(String[] dexerArgs) throws Exception;
+  }
+
+  /*
+   * dx.jar loaded into its own class loader.
+   */
+  private static class DxDexer implements Dexer {
+    private final Class<?> argumentsClass;
+    private final Method parse;
+    private final Method run;
+
+    DxDexer(URL dxJar) throws ClassNotFoundException, NoSuchMethodException {
+      // Use the bootstrap class loader as the parent so that nothing but the JDK is shared.
+      ClassLoader classLoader = new URLClassLoader(new URL[] { dxJar }, null);
+      Class<?> mainClass = Class.forName(DEXER_MAIN, true, classLoader);
+      argumentsClass = Class.forName(DEXER_ARGUMENTS, true, classLoader);
+      parse = argumentsClass.getMethod("parse", String[].class);
+      run = mainClass.getMethod("run", argumentsClass);
+    }
+
+    @Override
+    public boolean dex(String[] dexerArgs) throws Exception {
+      Object arguments = argumentsClass.newInstance();
+      parse.invoke(arguments, (Object) dexerArgs);
+      return (Integer) run.invoke(null, arguments) == 0;
+    }
+  }
+
+  private final Callable<Dexer> dexerFactory;
+  // One permit for each dexer. A build holds a permit while it uses a dexer, so there are never
+  // more dexers than permits.
+  private final Semaphore permits;
+  private final BlockingQueue<Dexer> idleDexers = new LinkedBlockingQueue<Dexer>();
+
+  /**
+   * Creates a DexerPool.
+   *
+   * @param dxJarPath  the path of dx.jar
+   * @param maxDexers  the maximum number of dexers, which is the maximum number of dx runs that
+   *     can happen at the same time
+   */
+  DexerPool(String dxJarPath, int maxDexers) {
+    this(maxDexers, newDxDexerFactory(dxJarPath));
+  }
+
+  @VisibleForTesting
+  DexerPool(int maxDexers, Callable<Dexer> dexerFactory) {
+    this.dexerFactory = dexerFactory;
+    permits = new Semaphore(maxDexers, true);
+  }
+
+  private static Callable<Dexer> newDxDexerFactory(String dxJarPath) {
+    final URL dxJar;
+    try {
+      dxJar = new File(dxJarPath).toURI().toURL();
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return new Callable<Dexer>() {
+      @Override
+      public Dexer call() throws Exception {
+        return new DxDexer(dxJar);
+      }
+    };
+  }
+
+  /**
+   * Runs dx with the given command line arguments (everything after {@code java -jar dx.jar}).
+   *
+   * @param dxArgs  the dx arguments, starting with --dex
+   * @return  {@code true} if dx succeeds, {@code false} otherwise
+   */
+  boolean dex(List<String> dxArgs) {
+    LOG.info("____Dexing in process " + Joiner.on(" ").join(dxArgs));
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    Dexer dexer = idleDexers.poll();
+    if (dexer == null) {
+      try {
+        dexer = dexerFactory.call();
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "____Unable to load dx", e);
+        permits.release();
+        return false;
+      }
+    }
+    return dex(dexer, dxArgs);
+  }
+
+  /*
+   * Runs the given dexer on a dexer thread. The caller's permit is handed over to the run, which
+   * gives it back when it ends.
+   */
+  private boolean dex(final Dexer dexer, List<String> dxArgs) {
+    // The dx command line tool consumes --dex to select the dexer; the dexer itself rejects it.
+    List<String> dexerArgList = new ArrayList<String>(dxArgs);
+    dexerArgList.remove("--dex");
+    final String[] dexerArgs = dexerArgList.toArray(new String[dexerArgList.size()]);
+    // Set by the run when it starts, or by the build when it stops waiting for a run that has not
+    // started, which then never runs.
+    final AtomicBoolean claimed = new AtomicBoolean(false);
+    Future<Boolean> result = dexerExecutor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        if (!claimed.compareAndSet(false, true)) {
+          return false;
+        }
+        boolean success = false;
+        try {
+          success = dexer.dex(dexerArgs);
+          return success;
+        } finally {
+          // The dexer's static state may be inconsistent after a failure, so it is dropped and the
+          // next build starts over with a fresh class loader.
+          if (success) {
+            idleDexers.add(dexer);
+          }
+          permits.release();
+        }
+      }
+    });
+    long timeoutMillis = Execution.getTimeoutMillis();
+    try {
+      return (timeoutMillis > 0)
+          ? result.get(timeoutMillis, TimeUnit.MILLISECONDS)
+          : result.get();
+    } catch (TimeoutException e) {
+      abandon(result, claimed, dexer);
+      LOG.warning("____Dexing timed out after " + (timeoutMillis / 1000) + " seconds");
+      return false;
+    } catch (InterruptedException e) {
+      abandon(result, claimed, dexer);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof InvocationTargetException) {
+        cause = cause.getCause();
+      }
+      LOG.log(Level.WARNING, "____Dexing failure: ", cause);
+      return false;
+    }
+  }
+
+  /*
+   * Stops waiting for the given run. A run that has started is interrupted, and keeps its permit
+   * until it ends. The dexer and the permit of a run that has not started are given back now.
+   */
+  private void abandon(Future<Boolean> result, AtomicBoolean claimed, Dexer dexer) {
+    if (claimed.compareAndSet(false, true)) {
+      idleDexers.add(dexer);
+      permits.release();
+    } else {
+      result.cancel(true);
+    }
+  }
+
+  @VisibleForTesting
+  int getAvailablePermits() {
+    return permits.availablePermits();
+  }
+}
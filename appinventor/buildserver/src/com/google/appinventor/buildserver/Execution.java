@@ -6,22 +6,46 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Utility class for command execution and I/O redirection.
  *
+ * <p>The output of commands is copied by stream pump threads that are reused across commands.
+ * Output captured in memory is kept in {@link OutputRingBuffer}s, so it is bounded. A monitor
+ * thread samples the CPU time and memory of each running command, and kills a command and the
+ * processes it started once it has run for longer than the timeout set by
+ * {@link #setTimeoutMillis}. The runs, failures, timeouts, times and resources of each tool are
+ * added up in {@link ToolStats}.
  */
 public final class Execution {
 
@@ -29,47 +53,141 @@ public final class Execution {
   private static final Logger LOG = Logger.getLogger(Execution.class.getName());
   private static final Joiner joiner = Joiner.on(" ");
 
-  /*
-   * Input stream handler used for stdout and stderr redirection.
-   */
-  private static class RedirectStreamHandler extends Thread {
-    // Streams to redirect from and to
-    private final InputStream input;
-    private final PrintWriter output;
+  // How often running commands are sampled and checked for timeouts.
+  private static final long SAMPLE_INTERVAL_MILLIS = 250;
+  // How long to wait for the output of a command after it exits. Only a process that the command
+  // left running can keep its output open for longer.
+  private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+  // Captured standard output is the result of a command, so a command that writes more fails.
+  @VisibleForTesting
+  static final int MAX_CAPTURED_OUTPUT_CHARS = 32 * 1024 * 1024;
+  // Only the end of the captured standard error is kept.
+  @VisibleForTesting
+  static final int MAX_CAPTURED_ERROR_CHARS = 64 * 1024;
 
-    RedirectStreamHandler(PrintWriter output, InputStream input) {
-      this.input = Preconditions.checkNotNull(input);
-      this.output = Preconditions.checkNotNull(output);
-      start();
-    }
+  private static final ThreadFactory pumpThreadFactory = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger(0);
 
     @Override
-    public void run() {
-      try {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            output.println(line);
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Execution stream pump " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  // Copies the output of commands. Idle threads are kept for a minute, for the next commands.
+  private static final ExecutorService pumps = Executors.newCachedThreadPool(pumpThreadFactory);
+
+  private static final ScheduledExecutorService monitor =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Execution monitor");
+          thread.setDaemon(true);
+          return thread;
         }
-      } catch (IOException ioe) {
-        // OK to ignore...
-        LOG.log(Level.WARNING, "____I/O Redirection failure: ", ioe);
+      });
+
+  private static final Set<ChildProcess> running =
+      Collections.newSetFromMap(new ConcurrentHashMap<ChildProcess, Boolean>());
+
+  private static final ConcurrentMap<String, ToolStats> toolStats =
+      new ConcurrentHashMap<String, ToolStats>();
+
+  // How long a command can run before it is killed, or 0 for no limit.
+  private static volatile long timeoutMillis = 0;
+
+  static {
+    monitor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        long now = System.nanoTime();
+        for (ChildProcess child : running) {
+          child.sample();
+          if (!child.isTimedOut() && child.isPastDeadline(now)) {
+            child.timeOut();
+          }
+        }
+      }
+    }, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * The runs of one tool, and the time and resources they used.
+   */
+  static final class ToolStats {
+    private final AtomicLong runs = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong cpuMillis = new AtomicLong(0);
+    private final AtomicLong maxPeakRssKb = new AtomicLong(0);
+    private final LatencyHistogram times = new LatencyHistogram();
+
+    private void record(ChildProcess child, boolean failed) {
+      runs.incrementAndGet();
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      if (child.isTimedOut()) {
+        timeouts.incrementAndGet();
       }
+      cpuMillis.addAndGet(child.getCpuMillis());
+      long peakRssKb = child.getPeakRssKb();
+      long max;
+      do {
+        max = maxPeakRssKb.get();
+      } while (peakRssKb > max && !maxPeakRssKb.compareAndSet(max, peakRssKb));
+      times.record(child.getElapsedMillis());
+    }
+
+    long getRuns() {
+      return runs.get();
+    }
+
+    /**
+     * Returns the number of runs that did not exit with 0, including the runs that timed out.
+     */
+    long getFailures() {
+      return failures.get();
+    }
+
+    long getTimeouts() {
+      return timeouts.get();
+    }
+
+    /**
+     * Returns the CPU time used by all the runs, in milliseconds.
+     */
+    long getCpuMillis() {
+      return cpuMillis.get();
+    }
+
+    /**
+     * Returns the largest peak resident set size of a run, in kilobytes.
+     */
+    long getMaxPeakRssKb() {
+      return maxPeakRssKb.get();
+    }
+
+    /**
+     * Returns the histogram of the wall-clock times of the runs.
+     */
+    LatencyHistogram getTimes() {
+      return times;
     }
   }
 
   /*
-   * Input stream handler used for stdout and stderr redirection to StringBuffer
+   * Copies the lines of a stream to an Appendable.
    */
-  private static class RedirectStreamToStringBuffer extends Thread {
-    // Streams to redirect from and to
+  private static class StreamPump implements Runnable {
     private final InputStream input;
-    private final StringBuffer output;
+    private final Appendable output;
 
-    RedirectStreamToStringBuffer(StringBuffer output, InputStream input) {
+    StreamPump(InputStream input, Appendable output) {
       this.input = Preconditions.checkNotNull(input);
       this.output = Preconditions.checkNotNull(output);
-      start();
     }
 
     @Override
@@ -78,7 +196,11 @@ public final class Execution {
         BufferedReader reader = new BufferedReader(new InputStreamReader(input));
         String line;
         while ((line = reader.readLine()) != null) {
-          output.append(line).append("\n");
+          // One append per line, so that lines from different commands are not mixed.
+          output.append(line + "\n");
+          if (output instanceof Flushable) {
+            ((Flushable) output).flush();
+          }
         }
       } catch (IOException ioe) {
         // OK to ignore...
@@ -90,6 +212,60 @@ public final class Execution {
   private Execution() {
   }
 
+  /**
+   * Sets how long each subsequent command can run before it, and the processes it started, are
+   * killed.
+   *
+   * @param millis  the timeout, in milliseconds, or 0 for no limit
+   */
+  static void setTimeoutMillis(long millis) {
+    timeoutMillis = millis;
+  }
+
+  /**
+   * Returns how long a command can run before it is killed, in milliseconds, or 0 for no limit.
+   */
+  static long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Applies the timeout to one request handled by a long-lived process, such as a Kawa compiler
+   * daemon. If the request takes longer than the timeout, the process is killed, which makes
+   * reading its reply fail. {@link #unwatch} must be called once the request is over.
+   *
+   * @param process  the long-lived process
+   * @param tool  the name of the tool that the process runs
+   * @return  the child process, which tells whether it was killed because it timed out
+   */
+  static ChildProcess watch(Process process, String tool) {
+    ChildProcess child = new ChildProcess(process, tool, timeoutMillis);
+    running.add(child);
+    return child;
+  }
+
+  /**
+   * Stops applying the timeout to a request started with {@link #watch}.
+   */
+  static void unwatch(ChildProcess child) {
+    running.remove(child);
+    child.finish();
+  }
+
+  /**
+   * Returns the number of commands that are running.
+   */
+  static int getRunningCount() {
+    return running.size();
+  }
+
+  /**
+   * Returns the stats of each tool that has been run, sorted by tool name.
+   */
+  static Map<String, ToolStats> getToolStats() {
+    return new TreeMap<String, ToolStats>(toolStats);
+  }
+
   /**
    * Executes a command in a command shell.
    *
@@ -101,17 +277,22 @@ public final class Execution {
    */
   public static boolean execute(File workingDir, String[] command, PrintStream out,
       PrintStream err) {
-    LOG.log(Level.INFO, "____Executing " + joiner.join(command));
     if (System.getProperty("os.name").startsWith("Windows")){
     	for(int i =0; i < command.length; i++){
     		command[i] = command[i].replace("\"", "\\\"");
     	}
     }
     try {
-      Process process = Runtime.getRuntime().exec(command, null, workingDir);
-      new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
-      new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      ChildProcess child = run(workingDir, command, out, err);
+      if (child.isTimedOut()) {
+        err.println(getTimeoutMessage(child));
+        return false;
+      }
+      return child.getProcess().exitValue() == 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.log(Level.WARNING, "____Execution interrupted: ", e);
+      return false;
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -122,25 +303,142 @@ public final class Execution {
    * Executes a command, redirects standard output and standard error to
    * string buffers, and returns the process's exit code.
    *
+   * <p>Only the end of standard error is kept if it is long. If the command times out, standard
+   * error ends with a line saying so.
+   *
    * @param workingDir  working directory for the command
    * @param command  command to execute and its arguments
    * @param out  standard output stream to redirect to
    * @param err  standard error stream to redirect to
    * @return  the exit code of the process
+   * @throws IOException  if the command can not be run, or writes more than
+   *     {@link #MAX_CAPTURED_OUTPUT_CHARS} characters to standard output
    */
   public static int execute(File workingDir, String[] command, StringBuffer out,
       StringBuffer err) throws IOException {
-    LOG.log(Level.INFO, "____Executing " + joiner.join(command));
-    Process process = Runtime.getRuntime().exec(command, null, workingDir);
-    Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
-    Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
+    OutputRingBuffer outBuffer = new OutputRingBuffer(MAX_CAPTURED_OUTPUT_CHARS);
+    OutputRingBuffer errBuffer = new OutputRingBuffer(MAX_CAPTURED_ERROR_CHARS);
+    ChildProcess child;
     try {
-      process.waitFor();
-      outThread.join();
-      errThread.join();
+      child = run(workingDir, command, outBuffer, errBuffer);
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while executing " + command[0]);
+    }
+    if (outBuffer.getDroppedCount() > 0) {
+      throw new IOException("The output of " + child.getTool() + " is longer than "
+          + MAX_CAPTURED_OUTPUT_CHARS + " characters");
     }
-    return process.exitValue();
+    out.append(outBuffer.toString());
+    err.append(errBuffer.toString());
+    if (child.isTimedOut()) {
+      err.append(getTimeoutMessage(child)).append("\n");
+    }
+    return child.getProcess().exitValue();
+  }
+
+  /*
+   * Runs a command until it exits, copying its output, and records its stats. If the thread is
+   * interrupted, the command is killed.
+   */
+  private static ChildProcess run(File workingDir, String[] command, Appendable out,
+      Appendable err) throws IOException, InterruptedException {
+    LOG.log(Level.INFO, "____Executing " + joiner.join(command));
+    Process process = Runtime.getRuntime().exec(command, null, workingDir);
+    ChildProcess child = new ChildProcess(process, getToolName(command), timeoutMillis);
+    running.add(child);
+    boolean exited = false;
+    try {
+      process.getOutputStream().close();
+      Future<?> outPump = pumps.submit(new StreamPump(process.getInputStream(), out));
+      Future<?> errPump = pumps.submit(new StreamPump(process.getErrorStream(), err));
+      try {
+        process.waitFor();
+        exited = true;
+      } finally {
+        if (!exited) {
+          child.killTree();
+        }
+        drain(child, outPump, process.getInputStream());
+        drain(child, errPump, process.getErrorStream());
+      }
+    } finally {
+      running.remove(child);
+      child.finish();
+      if (!exited) {
+        process.destroy();
+      }
+    }
+
+    boolean failed = child.isTimedOut() || process.exitValue() != 0;
+    ToolStats stats = new ToolStats();
+    ToolStats existingStats = toolStats.putIfAbsent(child.getTool(), stats);
+    if (existingStats != null) {
+      stats = existingStats;
+    }
+    stats.record(child, failed);
+    LOG.info("____" + child.getTool() + (failed ? " failed" : " succeeded") + " in "
+        + child.getElapsedMillis() + " ms, using " + child.getCpuMillis() + " ms of CPU and "
+        + child.getPeakRssKb() + " KB of memory");
+    return child;
+  }
+
+  /*
+   * Waits for a stream pump to copy the rest of the output of a command that exited.
+   */
+  private static void drain(ChildProcess child, Future<?> pump, InputStream stream)
+      throws InterruptedException {
+    try {
+      pump.get(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "____I/O Redirection failure: ", e.getCause());
+    } catch (TimeoutException e) {
+      // A process started by the command still has the output open. Closing the stream makes
+      // the pump stop reading it.
+      LOG.warning("____Output of " + child.getTool() + " still open after it exited");
+      try {
+        stream.close();
+      } catch (IOException ioe) {
+        LOG.log(Level.WARNING, "____Unable to close the output of " + child.getTool(), ioe);
+      }
+    }
+  }
+
+  private static String getTimeoutMessage(ChildProcess child) {
+    return child.getTool() + " timed out after " + (child.getElapsedMillis() / 1000) + " seconds";
+  }
+
+  /**
+   * Returns the name that the stats of the given command are recorded under: the name of the
+   * executable, or for java, the name of the jar or main class that it runs.
+   */
+  @VisibleForTesting
+  static String getToolName(String[] command) {
+    String name = getFileName(command[0]);
+    if (name.equals("java") || name.equals("java.exe")) {
+      for (int i = 1; i < command.length; i++) {
+        String arg = command[i];
+        if (arg.equals("-jar") && i + 1 < command.length) {
+          name = getFileName(command[i + 1]);
+          break;
+        } else if (arg.equals("-cp") || arg.equals("-classpath")) {
+          i++;
+        } else if (!arg.startsWith("-")) {
+          name = arg;
+          break;
+        }
+      }
+    }
+    if (name.endsWith(".exe") || name.endsWith(".jar")) {
+      name = name.substring(0, name.length() - 4);
+    }
+    return name.toLowerCase().replaceAll("[^a-z0-9]+", "-");
+  }
+
+  /*
+   * Returns the last part of a Unix or Windows path.
+   */
+  private static String getFileName(String path) {
+    return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
   }
 }
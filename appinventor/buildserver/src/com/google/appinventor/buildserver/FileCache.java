@@ -0,0 +1,369 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * Cache of zip files (jars, APKs), stored in a directory and looked up by key.
+ *
+ * <p>Callers choose keys that are hashes of everything the entry depends on, so an entry never
+ * needs to be invalidated. An entry is written to a temporary file in the cache directory,
+ * checked, and then renamed into place, so readers never see a partial entry.
+ *
+ * <p>Builds writing the same entry wait for each other, through a lock striped by key; builds
+ * using different entries do not. The directory itself is the only shared state, so several
+ * build servers can safely use the same cache directory. At worst they write the same entry at
+ * the same time and one of the identical results replaces the other.
+ *
+ * <p>Every use of an entry updates its modification time. When the directory grows beyond the
+ * maximum size, the least recently used entries are deleted, except for entries used within
+ * {@link #MIN_EVICTION_AGE_MILLIS}, which a build (in this or another build server) may be about
+ * to read.
+ */
+class FileCache {
+  // Entries used more recently than this are never evicted.
+  static final long MIN_EVICTION_AGE_MILLIS = 10 * 60 * 1000;
+
+  private static final String TEMP_PREFIX = "tmp-";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(FileCache.class.getName());
+
+  /**
+   * Writes a cache entry.
+   */
+  interface EntryWriter {
+    /**
+     * Writes the entry.
+     *
+     * @param output  the file to write the entry to
+     * @return  {@code true} if the entry was written, {@code false} otherwise
+     */
+    boolean write(File output) throws IOException;
+  }
+
+  /*
+   * A cache entry, with its size and modification time when the cache directory was listed.
+   */
+  private static class CachedFile {
+    final File file;
+    final long length;
+    final long lastModified;
+
+    CachedFile(File file) {
+      this.file = file;
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+    }
+  }
+
+  private final File directory;
+  private final String entryPrefix;
+  private final String entrySuffix;
+  private final String requiredZipEntry;
+  private volatile long maxBytes = 0;
+
+  private final Striped<Lock> locks = Striped.lock(64);
+  // The names of entries that this cache has written or checked.
+  private final Set<String> checkedEntries =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong failures = new AtomicLong(0);
+  private final AtomicLong bytesWritten = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+  private final AtomicLong bytesEvicted = new AtomicLong(0);
+  private final AtomicLong size = new AtomicLong(0);
+  private final AtomicLong entryCount = new AtomicLong(0);
+
+  /**
+   * Creates a FileCache, creating the directory if necessary.
+   *
+   * @param directory  the cache directory
+   * @param entryPrefix  the prefix of entry file names
+   * @param entrySuffix  the suffix of entry file names, for example ".jar"
+   * @param requiredZipEntry  a zip entry that every cache entry must contain, or {@code null} if
+   *     any zip file is a valid cache entry
+   */
+  FileCache(File directory, String entryPrefix, String entrySuffix, String requiredZipEntry) {
+    this.directory = directory;
+    this.entryPrefix = entryPrefix;
+    this.entrySuffix = entrySuffix;
+    this.requiredZipEntry = requiredZipEntry;
+    directory.mkdirs();
+    evictIfNecessary();
+  }
+
+  /**
+   * Sets the maximum size of the cache directory.
+   *
+   * @param bytes  the maximum size, in bytes, or 0 for unlimited
+   */
+  void setMaxBytes(long bytes) {
+    maxBytes = bytes;
+  }
+
+  /**
+   * Returns the entry with the given key, writing it with the given writer if it is not in the
+   * cache.
+   *
+   * @param key  the key
+   * @param writer  the writer used if the entry is not in the cache
+   * @return  the entry, or {@code null} if the writer failed
+   */
+  File get(String key, EntryWriter writer) throws IOException {
+    File entry = getEntryFile(key);
+    Lock lock = locks.get(entry.getName());
+    lock.lock();
+    try {
+      if (useEntry(entry)) {
+        hits.incrementAndGet();
+        return entry;
+      }
+      misses.incrementAndGet();
+      if (!writeEntry(entry, writer)) {
+        return null;
+      }
+    } finally {
+      lock.unlock();
+    }
+    evictIfNecessary();
+    return entry;
+  }
+
+  /**
+   * Returns the entry with the given key, or {@code null} if it is not in the cache.
+   *
+   * @param key  the key
+   */
+  File getIfPresent(String key) {
+    File entry = getEntryFile(key);
+    Lock lock = locks.get(entry.getName());
+    lock.lock();
+    try {
+      if (useEntry(entry)) {
+        hits.incrementAndGet();
+        return entry;
+      }
+      misses.incrementAndGet();
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the entry with the given key, replacing any existing entry.
+   *
+   * @param key  the key
+   * @param writer  the writer
+   * @return  the entry, or {@code null} if the writer failed
+   */
+  File put(String key, EntryWriter writer) throws IOException {
+    File entry = getEntryFile(key);
+    Lock lock = locks.get(entry.getName());
+    lock.lock();
+    try {
+      if (!writeEntry(entry, writer)) {
+        return null;
+      }
+    } finally {
+      lock.unlock();
+    }
+    evictIfNecessary();
+    return entry;
+  }
+
+  private File getEntryFile(String key) {
+    return new File(directory, entryPrefix + key + entrySuffix);
+  }
+
+  /*
+   * Returns whether the given entry exists and is valid, marking it as recently used.
+   */
+  private boolean useEntry(File entry) {
+    if (!entry.isFile()) {
+      return false;
+    }
+    String entryName = entry.getName();
+    if (!checkedEntries.contains(entryName)) {
+      if (!isValidEntry(entry)) {
+        LOG.warning("Deleting invalid cache entry " + entry);
+        entry.delete();
+        return false;
+      }
+      checkedEntries.add(entryName);
+    }
+    entry.setLastModified(System.currentTimeMillis());
+    // Another build server may have evicted the entry just before we marked it.
+    return entry.isFile();
+  }
+
+  /*
+   * Writes the given entry through a temporary file. The caller must hold the entry's lock.
+   */
+  private boolean writeEntry(File entry, EntryWriter writer) throws IOException {
+    File temp = File.createTempFile(TEMP_PREFIX + entryPrefix, entrySuffix, directory);
+    try {
+      if (!writer.write(temp) || !isValidEntry(temp)) {
+        failures.incrementAndGet();
+        return false;
+      }
+      long length = temp.length();
+      try {
+        Files.move(temp.toPath(), entry.toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        // Another build server may be writing the same entry, so don't fall back to a
+        // non-atomic move.
+        LOG.log(Level.WARNING, "Cache directory does not support atomic rename", e);
+        failures.incrementAndGet();
+        return false;
+      }
+      checkedEntries.add(entry.getName());
+      bytesWritten.addAndGet(length);
+      return true;
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /*
+   * Returns whether the given file is a zip file containing requiredZipEntry.
+   */
+  private boolean isValidEntry(File file) {
+    try {
+      ZipFile zipFile = new ZipFile(file);
+      try {
+        return requiredZipEntry == null || zipFile.getEntry(requiredZipEntry) != null;
+      } finally {
+        zipFile.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /*
+   * Deletes the least recently used entries until the cache is no larger than maxBytes. Also
+   * deletes temporary files left behind by build servers that stopped while writing an entry.
+   */
+  private synchronized void evictIfNecessary() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long totalBytes = 0;
+    List<CachedFile> entries = new ArrayList<CachedFile>();
+    for (File file : files) {
+      if (file.getName().startsWith(TEMP_PREFIX + entryPrefix)) {
+        if (now - file.lastModified() > MIN_EVICTION_AGE_MILLIS) {
+          file.delete();
+        }
+      } else if (file.getName().startsWith(entryPrefix)) {
+        CachedFile entry = new CachedFile(file);
+        totalBytes += entry.length;
+        entries.add(entry);
+      }
+    }
+    int count = entries.size();
+
+    long limit = maxBytes;
+    if (limit > 0 && totalBytes > limit) {
+      Collections.sort(entries, new Comparator<CachedFile>() {
+        @Override
+        public int compare(CachedFile entry1, CachedFile entry2) {
+          return Long.compare(entry1.lastModified, entry2.lastModified);
+        }
+      });
+      for (CachedFile entry : entries) {
+        if (totalBytes <= limit || now - entry.lastModified < MIN_EVICTION_AGE_MILLIS) {
+          break;
+        }
+        String entryName = entry.file.getName();
+        Lock lock = locks.get(entryName);
+        lock.lock();
+        try {
+          // Don't evict an entry that was used since the directory was listed.
+          if (now - entry.file.lastModified() >= MIN_EVICTION_AGE_MILLIS && entry.file.delete()) {
+            checkedEntries.remove(entryName);
+            totalBytes -= entry.length;
+            count--;
+            evictions.incrementAndGet();
+            bytesEvicted.addAndGet(entry.length);
+            LOG.info("Evicted cache entry " + entry.file);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    size.set(totalBytes);
+    entryCount.set(count);
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  long getFailureCount() {
+    return failures.get();
+  }
+
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  long getEvictionCount() {
+    return evictions.get();
+  }
+
+  long getBytesEvicted() {
+    return bytesEvicted.get();
+  }
+
+  /**
+   * Returns the size of the cache directory when it was last checked for eviction.
+   */
+  long getSize() {
+    return size.get();
+  }
+
+  /**
+   * Returns the number of entries when the cache directory was last checked for eviction.
+   */
+  long getEntryCount() {
+    return entryCount.get();
+  }
+}
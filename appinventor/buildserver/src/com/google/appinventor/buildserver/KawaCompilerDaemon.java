@@ -0,0 +1,240 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.Permission;
+
+/**
+ * Long-lived Kawa compiler process used by {@link KawaCompilerPool}.
+ *
+ * <p>The daemon is started with the Kawa runtime, the App Inventor runtime and the component
+ * libraries on its class path. It loads runtime.scm once and then compiles YAIL sources on
+ * request, which saves the JVM startup, class loading and runtime.scm loading that a fresh
+ * {@code kawa.repl} process pays for every build.
+ *
+ * <p>Requests and replies are exchanged over stdin and stdout using {@link DataInputStream} and
+ * {@link DataOutputStream}. After start up, the daemon writes a boolean telling whether
+ * runtime.scm loaded. Each request is the classes directory, the package prefix, the number of
+ * source files and the source file paths. Each reply is a success boolean followed by the bytes
+ * that Kawa wrote to standard output and standard error while compiling.
+ *
+ * <p>Kawa writes its messages to its default output ports, {@code gnu.mapping.OutPort.outDefault()}
+ * and {@code errDefault()}. The first time they are used, they are created around whatever
+ * System.out and System.err are at that moment, and they are kept after that. So the daemon
+ * replaces the ports themselves for each compilation, and also System.out and System.err for
+ * code that writes to them directly.
+ *
+ * <p>Kawa calls System.exit when it finds errors in the sources. The daemon traps that and
+ * reports the compilation as failed. Since Kawa's global state is unknown after such a failure,
+ * the daemon then exits and the pool starts a fresh one.
+ *
+ * <p>This class must only depend on the JDK and, through reflection, on Kawa, because it does not
+ * run with the build server's class path.
+ */
+public final class KawaCompilerDaemon {
+
+  /*
+   * Thrown instead of exiting the process while Kawa is running.
+   */
+  private static class ExitTrappedException extends SecurityException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    ExitTrappedException(int status) {
+      super("System.exit(" + status + ") trapped");
+      this.status = status;
+    }
+  }
+
+  /*
+   * Security manager that allows everything except exiting while Kawa is running.
+   */
+  private static class NoExitSecurityManager extends SecurityManager {
+    private volatile boolean trapExit = false;
+
+    @Override
+    public void checkPermission(Permission permission) {
+    }
+
+    @Override
+    public void checkPermission(Permission permission, Object context) {
+    }
+
+    @Override
+    public void checkExit(int status) {
+      if (trapExit) {
+        throw new ExitTrappedException(status);
+      }
+    }
+  }
+
+  /*
+   * The parts of Kawa that the daemon uses, found through reflection.
+   */
+  private static class Kawa {
+    private final Method processArgs;
+    private final Object moduleManager;
+    private final Method clearModules;
+    private final Constructor<?> newOutPort;
+    private final Method outDefault;
+    private final Method setOutDefault;
+    private final Method errDefault;
+    private final Method setErrDefault;
+
+    Kawa() throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+        InvocationTargetException {
+      processArgs = Class.forName("kawa.repl")
+          .getMethod("processArgs", String[].class, int.class, int.class);
+      Class<?> moduleManagerClass = Class.forName("gnu.expr.ModuleManager");
+      moduleManager = moduleManagerClass.getMethod("getInstance").invoke(null);
+      clearModules = moduleManagerClass.getMethod("clear");
+      Class<?> outPortClass = Class.forName("gnu.mapping.OutPort");
+      newOutPort = outPortClass.getConstructor(OutputStream.class);
+      outDefault = outPortClass.getMethod("outDefault");
+      setOutDefault = outPortClass.getMethod("setOutDefault", outPortClass);
+      errDefault = outPortClass.getMethod("errDefault");
+      setErrDefault = outPortClass.getMethod("setErrDefault", outPortClass);
+    }
+  }
+
+  private static final NoExitSecurityManager securityManager = new NoExitSecurityManager();
+
+  private KawaCompilerDaemon() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of runtime.scm
+   */
+  public static void main(String[] args) throws Exception {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+    Kawa kawa;
+    boolean ready;
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    try {
+      System.setSecurityManager(securityManager);
+      kawa = new Kawa();
+      ready = runKawa(kawa, new String[] { "-f", args[0] }, stdout, stderr);
+    } catch (Exception e) {
+      // For example, the JVM does not allow us to install a security manager.
+      e.printStackTrace();
+      kawa = null;
+      ready = false;
+    }
+    if (!ready) {
+      System.err.write(stderr.toByteArray());
+      System.err.flush();
+    }
+    out.writeBoolean(ready);
+    out.flush();
+
+    boolean success = ready;
+    while (success) {
+      String classesDir;
+      try {
+        classesDir = in.readUTF();
+      } catch (EOFException e) {
+        // The build server closed our stdin.
+        break;
+      }
+      String packagePrefix = in.readUTF();
+      int sourceCount = in.readInt();
+      String[] kawaArgs = new String[5 + sourceCount];
+      kawaArgs[0] = "-d";
+      kawaArgs[1] = classesDir;
+      kawaArgs[2] = "-P";
+      kawaArgs[3] = packagePrefix;
+      kawaArgs[4] = "-C";
+      for (int i = 0; i < sourceCount; i++) {
+        kawaArgs[5 + i] = in.readUTF();
+      }
+
+      // Forget the modules compiled by the previous request. Otherwise Kawa would consider
+      // runtime.scm already compiled and not write its class file into the new classes directory.
+      // The definitions loaded from runtime.scm at start up are not affected.
+      kawa.clearModules.invoke(kawa.moduleManager);
+      stdout.reset();
+      stderr.reset();
+      success = runKawa(kawa, kawaArgs, stdout, stderr);
+      out.writeBoolean(success);
+      writeBytes(out, stdout);
+      writeBytes(out, stderr);
+      out.flush();
+    }
+    System.exit(0);
+  }
+
+  /*
+   * Runs kawa.repl.processArgs with its output captured into the given buffers.
+   */
+  private static boolean runKawa(Kawa kawa, String[] kawaArgs,
+      ByteArrayOutputStream stdout, ByteArrayOutputStream stderr) throws Exception {
+    PrintStream savedOut = System.out;
+    PrintStream savedErr = System.err;
+    Object savedOutPort = kawa.outDefault.invoke(null);
+    Object savedErrPort = kawa.errDefault.invoke(null);
+    PrintStream capturedOut = new PrintStream(stdout, true);
+    PrintStream capturedErr = new PrintStream(stderr, true);
+    Flushable outPort = (Flushable) kawa.newOutPort.newInstance(capturedOut);
+    Flushable errPort = (Flushable) kawa.newOutPort.newInstance(capturedErr);
+    System.setOut(capturedOut);
+    System.setErr(capturedErr);
+    kawa.setOutDefault.invoke(null, outPort);
+    kawa.setErrDefault.invoke(null, errPort);
+    securityManager.trapExit = true;
+    try {
+      kawa.processArgs.invoke(null, kawaArgs, 0, kawaArgs.length);
+      return true;
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ExitTrappedException) {
+        return ((ExitTrappedException) cause).status == 0;
+      }
+      cause.printStackTrace(capturedErr);
+      return false;
+    } catch (Exception e) {
+      e.printStackTrace(capturedErr);
+      return false;
+    } finally {
+      securityManager.trapExit = false;
+      outPort.flush();
+      errPort.flush();
+      capturedOut.flush();
+      capturedErr.flush();
+      kawa.setOutDefault.invoke(null, savedOutPort);
+      kawa.setErrDefault.invoke(null, savedErrPort);
+      System.setOut(savedOut);
+      System.setErr(savedErr);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, ByteArrayOutputStream bytes)
+      throws IOException {
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+}
@@ -0,0 +1,264 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of warmed up {@link KawaCompilerDaemon} processes.
+ *
+ * <p>Daemons are started lazily, up to the maximum size of the pool, and are reused across
+ * builds. A daemon is replaced after a failed compilation, after an I/O error and after it has
+ * compiled {@link #MAX_COMPILATIONS_PER_DAEMON} projects, so that memory held by Kawa does not
+ * grow without bound. At most maxDaemons builds use the pool at a time, so a build that waits for a
+ * daemon gets one as soon as another build is done with its daemon, whether that daemon is reused
+ * or replaced.
+ *
+ * <p>Each compilation is subject to the timeout of {@link Execution}. A daemon that takes longer
+ * is killed and the compilation fails.
+ *
+ * <p>If a daemon can not be started (for example, because the JVM does not permit the daemon to
+ * trap System.exit), the pool disables itself and {@link #compile} returns {@code null}, telling
+ * the caller to fall back to running Kawa in a new process.
+ */
+final class KawaCompilerPool {
+  // The number of projects a daemon compiles before it is replaced.
+  static final int MAX_COMPILATIONS_PER_DAEMON = 100;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  /*
+   * A running daemon process and the streams used to talk to it.
+   */
+  private static class Daemon {
+    private final Process process;
+    private final String classpath;
+    private final DataOutputStream toDaemon;
+    private final DataInputStream fromDaemon;
+    private int compilations = 0;
+
+    Daemon(Process process, String classpath) {
+      this.process = process;
+      this.classpath = classpath;
+      this.toDaemon = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.fromDaemon = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    void destroy() {
+      process.destroy();
+    }
+  }
+
+  // Maximum ram that can be used by a daemon, in MB.
+  private final int childProcessRamMb;
+  // The class whose main method the daemons run.
+  private final Class<?> daemonClass;
+  // The number of projects a daemon compiles before it is replaced.
+  private final int maxCompilationsPerDaemon;
+
+  // One permit for each daemon. A build holds a permit while it uses a daemon, so there are never
+  // more daemons than permits.
+  private final Semaphore permits;
+  private final BlockingQueue<Daemon> idleDaemons = new LinkedBlockingQueue<Daemon>();
+  private final AtomicInteger startedCount = new AtomicInteger(0);
+  private volatile boolean disabled = false;
+
+  /**
+   * Creates a KawaCompilerPool.
+   *
+   * @param maxDaemons  the maximum number of daemon processes
+   * @param childProcessRamMb  maximum ram that can be used by a daemon process, in MB
+   */
+  KawaCompilerPool(int maxDaemons, int childProcessRamMb) {
+    this(maxDaemons, childProcessRamMb, KawaCompilerDaemon.class, MAX_COMPILATIONS_PER_DAEMON);
+  }
+
+  @VisibleForTesting
+  KawaCompilerPool(int maxDaemons, int childProcessRamMb, Class<?> daemonClass,
+      int maxCompilationsPerDaemon) {
+    this.childProcessRamMb = childProcessRamMb;
+    this.daemonClass = daemonClass;
+    this.maxCompilationsPerDaemon = maxCompilationsPerDaemon;
+    permits = new Semaphore(maxDaemons, true);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        Daemon daemon;
+        while ((daemon = idleDaemons.poll()) != null) {
+          daemon.destroy();
+        }
+      }
+    });
+  }
+
+  /**
+   * Compiles the given YAIL sources using a daemon.
+   *
+   * @param classpath  class path for the Kawa compiler
+   * @param yailRuntime  path of runtime.scm
+   * @param classesDir  directory in which to write the class files
+   * @param packagePrefix  the package prefix for the generated classes
+   * @param sourceFileNames  the source files to compile
+   * @param out  stream receiving Kawa's standard output
+   * @param err  stream receiving Kawa's standard error
+   * @return whether the compilation succeeded, or {@code null} if no daemon was available and
+   *     the caller should run Kawa itself
+   */
+  Boolean compile(String classpath, String yailRuntime, File classesDir, String packagePrefix,
+      List<String> sourceFileNames, PrintStream out, PrintStream err) {
+    if (disabled) {
+      return null;
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    try {
+      Daemon daemon = acquireDaemon(classpath, yailRuntime);
+      if (daemon == null) {
+        return null;
+      }
+      return compile(daemon, classesDir, packagePrefix, sourceFileNames, out, err);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private Boolean compile(Daemon daemon, File classesDir, String packagePrefix,
+      List<String> sourceFileNames, PrintStream out, PrintStream err) {
+    boolean reusable = false;
+    ChildProcess child = Execution.watch(daemon.process, "kawa-daemon");
+    try {
+      daemon.toDaemon.writeUTF(classesDir.getAbsolutePath());
+      daemon.toDaemon.writeUTF(packagePrefix);
+      daemon.toDaemon.writeInt(sourceFileNames.size());
+      for (String sourceFileName : sourceFileNames) {
+        daemon.toDaemon.writeUTF(sourceFileName);
+      }
+      daemon.toDaemon.flush();
+
+      boolean success = daemon.fromDaemon.readBoolean();
+      out.write(readBytes(daemon.fromDaemon));
+      err.write(readBytes(daemon.fromDaemon));
+      out.flush();
+      err.flush();
+      daemon.compilations++;
+      // The daemon exits after a failed compilation.
+      reusable = success && daemon.compilations < maxCompilationsPerDaemon;
+      return success;
+    } catch (IOException e) {
+      if (child.isTimedOut()) {
+        // Compiling again in a new process would most likely time out too.
+        err.println("Kawa compiler timed out after " + (Execution.getTimeoutMillis() / 1000)
+            + " seconds");
+        err.flush();
+        return false;
+      }
+      LOG.log(Level.WARNING, "Kawa compiler daemon failed", e);
+      return null;
+    } finally {
+      Execution.unwatch(child);
+      if (reusable) {
+        idleDaemons.add(daemon);
+      } else {
+        daemon.destroy();
+      }
+    }
+  }
+
+  /*
+   * Returns an idle daemon started with the given class path, or starts a new one. The caller
+   * must hold a permit, which guarantees that starting a daemon does not exceed the maximum.
+   */
+  private Daemon acquireDaemon(String classpath, String yailRuntime) {
+    Daemon daemon;
+    while ((daemon = idleDaemons.poll()) != null) {
+      if (daemon.classpath.equals(classpath)) {
+        return daemon;
+      }
+      // The daemon was started for a different class path. Replace it.
+      daemon.destroy();
+    }
+    return startDaemon(classpath, yailRuntime);
+  }
+
+  /**
+   * Returns the number of daemons that have been started.
+   */
+  @VisibleForTesting
+  int getStartedCount() {
+    return startedCount.get();
+  }
+
+  private Daemon startDaemon(String classpath, String yailRuntime) {
+    long start = System.currentTimeMillis();
+    Process process = null;
+    try {
+      String daemonClasspath = classpath + File.pathSeparator + new File(
+          daemonClass.getProtectionDomain().getCodeSource().getLocation().toURI())
+          .getAbsolutePath();
+      String[] command = {
+          System.getProperty("java.home") + "/bin/java",
+          "-mx" + (childProcessRamMb - 200) + "M",
+          "-cp", daemonClasspath,
+          daemonClass.getName(),
+          yailRuntime
+      };
+      LOG.info("Starting Kawa compiler daemon: " + Joiner.on(" ").join(command));
+      process = new ProcessBuilder(command)
+          .redirectError(ProcessBuilder.Redirect.INHERIT)
+          .start();
+      startedCount.incrementAndGet();
+      Daemon daemon = new Daemon(process, classpath);
+      ChildProcess child = Execution.watch(process, "kawa-daemon");
+      try {
+        if (!daemon.fromDaemon.readBoolean()) {
+          throw new IOException("Kawa compiler daemon could not load " + yailRuntime);
+        }
+      } finally {
+        Execution.unwatch(child);
+      }
+      LOG.info("Kawa compiler daemon started in " +
+          ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+      return daemon;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start Kawa compiler daemon; disabling the pool", e);
+    } catch (URISyntaxException e) {
+      LOG.log(Level.WARNING, "Unable to locate Kawa compiler daemon; disabling the pool", e);
+    }
+    if (process != null) {
+      process.destroy();
+    }
+    disabled = true;
+    return null;
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,207 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Creates the android.keystore files of users who do not have one yet.
+ *
+ * <p>Generating the 2048 bit RSA key is the slow part of creating a keystore, so a background
+ * thread generates keys ahead of time and keeps up to a fixed number of them ready. When a
+ * keystore is needed, a ready key is taken and bound to the user by a self-signed certificate
+ * whose subject names the user. If no key is ready, one is generated on the spot. Either way the
+ * key is generated in this process, rather than by running keytool in a new JVM.
+ *
+ * <p>The keystore is the same as the one that
+ * {@code keytool -genkey -keyalg RSA -alias AndroidKey -validity 10000} would create.
+ */
+final class KeystorePool {
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String PASSWORD = "android";
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  // Android Market requires certificates to expire after October 22, 2033. The Android docs
+  // recommend 10000 days.
+  private static final long VALIDITY_MILLIS = 10000L * 24 * 60 * 60 * 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeystorePool.class.getName());
+
+  private final int size;
+  private final BlockingQueue<KeyPair> keyPairs;
+  private final Thread generatorThread;
+  private final SecureRandom random = new SecureRandom();
+  private final AtomicInteger pooledKeyCount = new AtomicInteger(0);
+  private final AtomicInteger onDemandKeyCount = new AtomicInteger(0);
+
+  /**
+   * Creates a pool and starts generating keys for it.
+   *
+   * @param size  how many keys to keep ready, or 0 to generate every key when it is needed
+   */
+  KeystorePool(int size) {
+    this.size = size;
+    if (size > 0) {
+      keyPairs = new LinkedBlockingQueue<KeyPair>(size);
+      generatorThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          fill();
+        }
+      }, "KeystorePool");
+      generatorThread.setDaemon(true);
+      // Builds should not have to wait for keys that nobody needs yet.
+      generatorThread.setPriority(Thread.MIN_PRIORITY);
+      generatorThread.start();
+    } else {
+      keyPairs = null;
+      generatorThread = null;
+    }
+  }
+
+  /*
+   * Generates keys until the pool is shut down, blocking while the pool is full.
+   */
+  private void fill() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        keyPairs.put(generateKeyPair());
+      }
+    } catch (InterruptedException e) {
+      // Shut down.
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.SEVERE, "Unable to generate keys for the keystore pool", e);
+    }
+  }
+
+  /**
+   * Stops generating keys.
+   */
+  void shutdown() {
+    if (generatorThread != null) {
+      generatorThread.interrupt();
+    }
+  }
+
+  /**
+   * Creates a keystore whose certificate has the given subject.
+   *
+   * @param distinguishedName  the subject of the certificate, in the format of keytool -dname
+   * @param keystoreFile  the keystore file to create
+   */
+  void createKeyStore(String distinguishedName, File keystoreFile)
+      throws IOException, GeneralSecurityException {
+    KeyPair keyPair = keyPairs == null ? null : keyPairs.poll();
+    if (keyPair != null) {
+      pooledKeyCount.incrementAndGet();
+    } else {
+      onDemandKeyCount.incrementAndGet();
+      keyPair = generateKeyPair();
+    }
+    writeKeyStore(keyPair, new X500Principal(distinguishedName), keystoreFile);
+  }
+
+  private KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  private void writeKeyStore(KeyPair keyPair, X500Principal name, File keystoreFile)
+      throws IOException, GeneralSecurityException {
+    long now = System.currentTimeMillis();
+    X509Certificate certificate;
+    try {
+      certificate = new JcaX509CertificateConverter().getCertificate(
+          new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(random.nextInt() & 0x7fffffff),
+              new Date(now), new Date(now + VALIDITY_MILLIS), name, keyPair.getPublic())
+          .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate())));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    keyStore.load(null, null);
+    keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(),
+        new Certificate[] { certificate });
+    OutputStream out = new FileOutputStream(keystoreFile);
+    try {
+      keyStore.store(out, PASSWORD.toCharArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns how many keys the pool keeps ready.
+   */
+  int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns how many keys are ready.
+   */
+  int getAvailableCount() {
+    return keyPairs == null ? 0 : keyPairs.size();
+  }
+
+  /**
+   * Returns how many keystores were created with a key from the pool.
+   */
+  int getPooledKeyCount() {
+    return pooledKeyCount.get();
+  }
+
+  /**
+   * Returns how many keystores were created with a key generated when it was needed.
+   */
+  int getOnDemandKeyCount() {
+    return onDemandKeyCount.get();
+  }
+
+  /**
+   * Waits until the pool is full, or the given time has passed.
+   *
+   * @return  {@code true} if the pool is full
+   */
+  boolean awaitFull(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (getAvailableCount() < size) {
+      if (System.nanoTime() >= deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,122 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations, in milliseconds, with fixed buckets.
+ *
+ * <p>Recording a duration only increments a few counters, so it is cheap enough to do for every
+ * build and safe to do from any thread. Percentiles are estimated from the buckets, so they are
+ * only as precise as the bucket boundaries, which roughly follow a 1-2.5-5 progression from 5 ms
+ * to about 8 minutes.
+ */
+final class LatencyHistogram {
+  // The upper bound (inclusive) of each bucket, in milliseconds. There is one more bucket, for
+  // everything longer than the last bound.
+  private static final long[] BUCKET_BOUNDS_MILLIS = {
+    5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000
+  };
+
+  private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong sumMillis = new AtomicLong(0);
+  private final AtomicLong maxMillis = new AtomicLong(0);
+
+  /**
+   * Records a duration.
+   *
+   * @param millis  the duration, in milliseconds
+   */
+  void record(long millis) {
+    millis = Math.max(0, millis);
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    bucketCounts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    sumMillis.addAndGet(millis);
+    long max;
+    do {
+      max = maxMillis.get();
+    } while (millis > max && !maxMillis.compareAndSet(max, millis));
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getSumMillis() {
+    return sumMillis.get();
+  }
+
+  long getMaxMillis() {
+    return maxMillis.get();
+  }
+
+  double getAverageMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sumMillis.get() / n;
+  }
+
+  /**
+   * Returns the number of buckets, including the last one, which has no upper bound.
+   */
+  static int getBucketCount() {
+    return BUCKET_BOUNDS_MILLIS.length + 1;
+  }
+
+  /**
+   * Returns the upper bound of the given bucket, in milliseconds, or {@link Long#MAX_VALUE} for
+   * the last bucket.
+   */
+  static long getBucketBoundMillis(int bucket) {
+    return bucket < BUCKET_BOUNDS_MILLIS.length ? BUCKET_BOUNDS_MILLIS[bucket] : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns how many durations fell in the given bucket.
+   */
+  long getBucketValue(int bucket) {
+    return bucketCounts.get(bucket);
+  }
+
+  /**
+   * Estimates a percentile, interpolating linearly within the bucket it falls in.
+   *
+   * @param percentile  the percentile, between 0 and 100
+   * @return  the estimated duration, in milliseconds, or 0 if nothing has been recorded
+   */
+  double getPercentileMillis(double percentile) {
+    long[] counts = new long[getBucketCount()];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = bucketCounts.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long max = maxMillis.get();
+    double rank = percentile / 100 * total;
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+        long lower = i == 0 ? 0 : BUCKET_BOUNDS_MILLIS[i - 1];
+        long upper = Math.min(getBucketBoundMillis(i), max);
+        if (upper <= lower) {
+          return upper;
+        }
+        return lower + (upper - lower) * (rank - cumulative) / counts[i];
+      }
+      cumulative += counts[i];
+    }
+    return max;
+  }
+}
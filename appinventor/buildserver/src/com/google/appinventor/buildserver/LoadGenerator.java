@@ -0,0 +1,557 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Load generator for reproducing bursts of builds, like those of a classroom, against a build
+ * server, and for soak testing it.
+ *
+ * <p>The project zips in a directory are sent, in turn, to build-all-from-zip-async, with
+ * exponentially distributed gaps between them at the given average rate. The build results are
+ * received by a callback server started by the load generator. Every report interval, and at the
+ * end, it prints the throughput, the rate of 503 (Service Unavailable) responses, the build
+ * latency percentiles and the memory of the build server, which is read from /vars.json.
+ */
+public final class LoadGenerator {
+
+  static class CommandLineOptions {
+    @Option(name = "--projectsDir", required = true,
+            usage = "the directory with the project zip files (.zip or .aia) to build")
+    File projectsDir;
+
+    @Option(name = "--buildServer",
+            usage = "the URL of the build server")
+    String buildServer = "http://localhost:9990";
+
+    @Option(name = "--buildsPerMinute",
+            usage = "the average rate at which builds are sent")
+    double buildsPerMinute = 60;
+
+    @Option(name = "--builds",
+            usage = "the number of builds to send, or 0 to send builds until --durationSec")
+    int builds = 100;
+
+    @Option(name = "--durationSec",
+            usage = "the time to send builds for, in seconds, or 0 for no limit")
+    int durationSec = 0;
+
+    @Option(name = "--drainTimeoutSec",
+            usage = "how long to wait for the results of the last builds, in seconds")
+    int drainTimeoutSec = 600;
+
+    @Option(name = "--callbackHost",
+            usage = "the host name that the build server sends the build results to")
+    String callbackHost = "localhost";
+
+    @Option(name = "--callbackPort",
+            usage = "the port of the callback server, or 0 for any free port")
+    int callbackPort = 9980;
+
+    @Option(name = "--reportIntervalSec",
+            usage = "how often to report progress and sample the build server, in seconds")
+    int reportIntervalSec = 10;
+
+    @Option(name = "--userName",
+            usage = "the user name sent with the builds")
+    String userName = "loadtest";
+
+    @Option(name = "--seed",
+            usage = "the seed of the random gaps between builds")
+    long seed = 0;
+  }
+
+  /*
+   * Memory and load of the build server at one point in time, from /vars.json. Values that the
+   * build server does not report are -1.
+   */
+  private static final class ServerSample {
+    final long elapsedMillis;
+    final long usedHeap;
+    final long totalMemory;
+    final long residentKb;
+    final long activeBuildTasks;
+
+    ServerSample(long elapsedMillis, JSONObject vars) {
+      this.elapsedMillis = elapsedMillis;
+      usedHeap = vars.optLong("used-heap", -1);
+      totalMemory = vars.optLong("total-memory", -1);
+      residentKb = vars.optLong("resident-memory-in-kb", -1);
+      activeBuildTasks = vars.optLong("active-build-tasks", -1);
+    }
+  }
+
+  // The path of the callback server. The id of the build is in the query.
+  private static final String CALLBACK_PATH = "/callback";
+
+  private static final int BYTES_PER_MB = 1024 * 1024;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+
+  private final CommandLineOptions options;
+  private final List<File> projects;
+  private final PrintStream out;
+  private final Random random;
+
+  private final AtomicInteger submitted = new AtomicInteger(0);
+  private final AtomicInteger accepted = new AtomicInteger(0);
+  private final AtomicInteger rejected = new AtomicInteger(0);
+  private final AtomicInteger errors = new AtomicInteger(0);
+  private final AtomicInteger succeeded = new AtomicInteger(0);
+  private final AtomicInteger failed = new AtomicInteger(0);
+
+  // Time from sending a build to receiving its result.
+  private final LatencyHistogram buildTimes = new LatencyHistogram();
+  // Time from sending a build to the response of build-all-from-zip-async.
+  private final LatencyHistogram submitTimes = new LatencyHistogram();
+
+  // The send times, from System.nanoTime, of the builds whose results have not been received.
+  private final ConcurrentMap<Integer, Long> pendingBuilds = new ConcurrentHashMap<Integer, Long>();
+
+  private final List<ServerSample> serverSamples =
+      Collections.synchronizedList(new ArrayList<ServerSample>());
+
+  private volatile long startNanos;
+  private HttpServer callbackServer;
+
+  @VisibleForTesting
+  LoadGenerator(CommandLineOptions options, PrintStream out) throws IOException {
+    this.options = options;
+    this.out = out;
+    projects = listProjects(options.projectsDir);
+    random = new Random(options.seed);
+  }
+
+  /**
+   * Returns the project zip files in the given directory, in alphabetical order.
+   *
+   * @throws IOException  if there are none
+   */
+  @VisibleForTesting
+  static List<File> listProjects(File directory) throws IOException {
+    List<File> projects = new ArrayList<File>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        String name = file.getName().toLowerCase();
+        if (file.isFile() && (name.endsWith(".zip") || name.endsWith(".aia"))) {
+          projects.add(file);
+        }
+      }
+    }
+    if (projects.isEmpty()) {
+      throw new IOException("No project zip files in " + directory);
+    }
+    return projects;
+  }
+
+  /**
+   * Returns a random gap between two builds, so that builds arrive as a Poisson process with the
+   * given average rate, like the builds of many independent users.
+   */
+  @VisibleForTesting
+  static long getNextDelayNanos(Random random, double buildsPerMinute) {
+    double meanNanos = TimeUnit.MINUTES.toNanos(1) / buildsPerMinute;
+    return (long) (-Math.log(1 - random.nextDouble()) * meanNanos);
+  }
+
+  /**
+   * Returns the result code in the build.out file of the zip that the build server sends to the
+   * callback URL, or -1 if there is none.
+   */
+  @VisibleForTesting
+  static int getBuildResult(InputStream zip) throws IOException {
+    ZipInputStream zipInputStream = new ZipInputStream(zip);
+    ZipEntry entry;
+    while ((entry = zipInputStream.getNextEntry()) != null) {
+      if (entry.getName().equals("build.out")) {
+        String buildOutput =
+            CharStreams.toString(new InputStreamReader(zipInputStream, Charsets.UTF_8));
+        try {
+          return new JSONObject(buildOutput).getInt("result");
+        } catch (JSONException e) {
+          LOG.log(Level.WARNING, "Unable to parse build.out", e);
+          return -1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Sends the builds, waits for their results and prints the report.
+   */
+  @VisibleForTesting
+  void run() throws IOException, InterruptedException {
+    startCallbackServer();
+    ExecutorService senders = Executors.newCachedThreadPool(newDaemonThreadFactory("Sender"));
+    ScheduledExecutorService reporter =
+        Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("Reporter"));
+    try {
+      startNanos = System.nanoTime();
+      sampleServer();
+      reporter.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          sampleServer();
+          printProgress();
+        }
+      }, options.reportIntervalSec, options.reportIntervalSec, TimeUnit.SECONDS);
+
+      long endNanos = options.durationSec > 0
+          ? startNanos + TimeUnit.SECONDS.toNanos(options.durationSec) : Long.MAX_VALUE;
+      long nextNanos = startNanos;
+      for (int id = 1; options.builds == 0 || id <= options.builds; id++) {
+        nextNanos += getNextDelayNanos(random, options.buildsPerMinute);
+        if (nextNanos >= endNanos) {
+          break;
+        }
+        long delayNanos = nextNanos - System.nanoTime();
+        if (delayNanos > 0) {
+          TimeUnit.NANOSECONDS.sleep(delayNanos);
+        }
+        final int buildId = id;
+        final File project = projects.get((id - 1) % projects.size());
+        senders.execute(new Runnable() {
+          @Override
+          public void run() {
+            send(buildId, project);
+          }
+        });
+      }
+      senders.shutdown();
+      senders.awaitTermination(options.drainTimeoutSec, TimeUnit.SECONDS);
+
+      // Wait for the results of the builds that the build server accepted.
+      long drainEndNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.drainTimeoutSec);
+      while (!pendingBuilds.isEmpty() && System.nanoTime() < drainEndNanos) {
+        Thread.sleep(100);
+      }
+      reporter.shutdownNow();
+      sampleServer();
+      printReport();
+    } finally {
+      senders.shutdownNow();
+      reporter.shutdownNow();
+      callbackServer.stop(0);
+    }
+  }
+
+  private void startCallbackServer() throws IOException {
+    callbackServer = HttpServer.create(new InetSocketAddress(options.callbackPort), 0);
+    callbackServer.createContext(CALLBACK_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          receiveResult(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    callbackServer.setExecutor(Executors.newCachedThreadPool(newDaemonThreadFactory("Callback")));
+    callbackServer.start();
+  }
+
+  @VisibleForTesting
+  int getCallbackPort() {
+    return callbackServer.getAddress().getPort();
+  }
+
+  /*
+   * Sends a project to build-all-from-zip-async. The build is pending until its result is
+   * received, if the build server accepts it.
+   */
+  private void send(int id, File project) {
+    long sendNanos = System.nanoTime();
+    pendingBuilds.put(id, sendNanos);
+    submitted.incrementAndGet();
+    boolean isAccepted = false;
+    try {
+      String callbackUrl = "http://" + options.callbackHost + ":" + getCallbackPort()
+          + CALLBACK_PATH + "?id=" + id;
+      URL url = new URL(options.buildServer + "/buildserver/build-all-from-zip-async"
+          + "?uname=" + URLEncoder.encode(options.userName, "UTF-8")
+          + "&callback=" + URLEncoder.encode(callbackUrl, "UTF-8"));
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      connection.setFixedLengthStreamingMode((int) project.length());
+      connection.setConnectTimeout(60000);
+      connection.setReadTimeout(60000);
+      OutputStream outputStream = connection.getOutputStream();
+      try {
+        Files.copy(project, outputStream);
+      } finally {
+        outputStream.close();
+      }
+      int responseCode = connection.getResponseCode();
+      connection.disconnect();
+      submitTimes.record((System.nanoTime() - sendNanos) / 1000000);
+      if (responseCode == HttpURLConnection.HTTP_OK) {
+        accepted.incrementAndGet();
+        isAccepted = true;
+      } else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+        rejected.incrementAndGet();
+      } else {
+        LOG.warning("Build " + id + " of " + project.getName() + " got response code "
+            + responseCode);
+        errors.incrementAndGet();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to send build " + id + " of " + project.getName(), e);
+      errors.incrementAndGet();
+    } finally {
+      if (!isAccepted) {
+        pendingBuilds.remove(id);
+      }
+    }
+  }
+
+  /*
+   * Receives the result of a build from the build server. Results of unknown builds, such as
+   * ones that were already received, are acknowledged and ignored.
+   */
+  private void receiveResult(HttpExchange exchange) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    int result = getBuildResult(body);
+    ByteStreams.copy(body, ByteStreams.nullOutputStream());
+    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+
+    String query = exchange.getRequestURI().getQuery();
+    Long sendNanos = null;
+    if (query != null && query.startsWith("id=")) {
+      try {
+        sendNanos = pendingBuilds.remove(Integer.parseInt(query.substring("id=".length())));
+      } catch (NumberFormatException e) {
+        // Not one of our builds.
+      }
+    }
+    if (sendNanos == null) {
+      LOG.warning("Received the result of an unknown build: " + query);
+      return;
+    }
+    buildTimes.record((System.nanoTime() - sendNanos) / 1000000);
+    if (result == Result.SUCCESS) {
+      succeeded.incrementAndGet();
+    } else {
+      failed.incrementAndGet();
+    }
+  }
+
+  /*
+   * Reads the memory and load of the build server. Failures are logged and do not stop the run,
+   * since the build server may be too busy to answer.
+   */
+  private void sampleServer() {
+    try {
+      URL url = new URL(options.buildServer + "/buildserver/vars.json");
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(10000);
+      connection.setReadTimeout(10000);
+      InputStream inputStream = connection.getInputStream();
+      String vars;
+      try {
+        vars = CharStreams.toString(new InputStreamReader(inputStream, Charsets.UTF_8));
+      } finally {
+        inputStream.close();
+      }
+      serverSamples.add(new ServerSample(getElapsedMillis(), new JSONObject(vars)));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read the vars of the build server", e);
+    } catch (JSONException e) {
+      LOG.log(Level.WARNING, "Unable to parse the vars of the build server", e);
+    }
+  }
+
+  private long getElapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+
+  private ServerSample getLatestSample() {
+    synchronized (serverSamples) {
+      return serverSamples.isEmpty() ? null : serverSamples.get(serverSamples.size() - 1);
+    }
+  }
+
+  private void printProgress() {
+    StringBuilder line = new StringBuilder();
+    line.append(String.format("[%6ds] sent %d, accepted %d, rejected %d, errors %d, "
+        + "completed %d, pending %d", getElapsedMillis() / 1000, submitted.get(), accepted.get(),
+        rejected.get(), errors.get(), succeeded.get() + failed.get(), pendingBuilds.size()));
+    ServerSample sample = getLatestSample();
+    if (sample != null) {
+      line.append(String.format(", active builds %d, used heap %d MB, resident %s",
+          sample.activeBuildTasks, sample.usedHeap / BYTES_PER_MB,
+          sample.residentKb < 0 ? "unknown" : sample.residentKb / 1024 + " MB"));
+    }
+    out.println(line);
+  }
+
+  private void printReport() {
+    double minutes = getElapsedMillis() / 60000.0;
+    int sent = submitted.get();
+    int completed = succeeded.get() + failed.get();
+    out.println();
+    out.println(String.format("Sent %d builds from %d projects in %.1f minutes",
+        sent, projects.size(), minutes));
+    out.println(String.format("Accepted %d, rejected with 503 %d (%.1f%%), errors %d",
+        accepted.get(), rejected.get(), sent == 0 ? 0 : 100.0 * rejected.get() / sent,
+        errors.get()));
+    out.println(String.format("Completed %d (%d succeeded, %d failed), %d without a result",
+        completed, succeeded.get(), failed.get(), pendingBuilds.size()));
+    out.println(String.format("Throughput: %.1f builds per minute",
+        minutes == 0 ? 0 : completed / minutes));
+    printPercentiles("Build latency (sent to result)", buildTimes);
+    printPercentiles("Send latency (sent to response)", submitTimes);
+
+    List<ServerSample> samples;
+    synchronized (serverSamples) {
+      samples = new ArrayList<ServerSample>(serverSamples);
+    }
+    if (samples.size() < 2) {
+      out.println("Build server memory: not enough samples of /vars.json");
+      return;
+    }
+    ServerSample first = samples.get(0);
+    ServerSample last = samples.get(samples.size() - 1);
+    long peakUsedHeap = 0;
+    long peakResidentKb = -1;
+    for (ServerSample sample : samples) {
+      peakUsedHeap = Math.max(peakUsedHeap, sample.usedHeap);
+      peakResidentKb = Math.max(peakResidentKb, sample.residentKb);
+    }
+    double hours = (last.elapsedMillis - first.elapsedMillis) / 3600000.0;
+    out.println(String.format("Build server used heap: %d MB -> %d MB (peak %d MB), "
+        + "total heap %d MB -> %d MB", first.usedHeap / BYTES_PER_MB,
+        last.usedHeap / BYTES_PER_MB, peakUsedHeap / BYTES_PER_MB,
+        first.totalMemory / BYTES_PER_MB, last.totalMemory / BYTES_PER_MB));
+    if (first.residentKb >= 0 && last.residentKb >= 0) {
+      long growthKb = last.residentKb - first.residentKb;
+      out.println(String.format("Build server resident memory: %d MB -> %d MB (peak %d MB), "
+          + "growth %+d MB, %+.1f MB per hour", first.residentKb / 1024, last.residentKb / 1024,
+          peakResidentKb / 1024, growthKb / 1024, hours == 0 ? 0 : growthKb / 1024.0 / hours));
+    }
+  }
+
+  private void printPercentiles(String name, LatencyHistogram histogram) {
+    out.println(String.format("%s: p50 %.0f ms, p95 %.0f ms, p99 %.0f ms, max %d ms", name,
+        histogram.getPercentileMillis(50), histogram.getPercentileMillis(95),
+        histogram.getPercentileMillis(99), histogram.getMaxMillis()));
+  }
+
+  private static ThreadFactory newDaemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "LoadGenerator-" + name + "-"
+            + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  @VisibleForTesting
+  int getAcceptedCount() {
+    return accepted.get();
+  }
+
+  @VisibleForTesting
+  int getRejectedCount() {
+    return rejected.get();
+  }
+
+  @VisibleForTesting
+  int getSucceededCount() {
+    return succeeded.get();
+  }
+
+  @VisibleForTesting
+  int getFailedCount() {
+    return failed.get();
+  }
+
+  @VisibleForTesting
+  LatencyHistogram getBuildTimes() {
+    return buildTimes;
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions();
+    CmdLineParser cmdLineParser = new CmdLineParser(commandLineOptions);
+    String error = null;
+    try {
+      cmdLineParser.parseArgument(args);
+      if (commandLineOptions.buildsPerMinute <= 0) {
+        error = "--buildsPerMinute must be positive";
+      } else if (commandLineOptions.builds == 0 && commandLineOptions.durationSec == 0) {
+        error = "--builds or --durationSec must be set";
+      }
+    } catch (CmdLineException e) {
+      error = e.getMessage();
+    }
+    if (error != null) {
+      System.err.println(error);
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+    new LoadGenerator(commandLineOptions, System.out).run();
+  }
+}
@@ -13,7 +13,6 @@ import org.kohsuke.args4j.Option;
 import java.io.File;
 import java.io.IOException;
 import java.util.logging.Logger;
-import java.util.zip.ZipFile;
 
 /**
  * Main entry point for the command line version of the YAIL compiler.
@@ -72,9 +71,9 @@ public final class Main {
     }
 
     ProjectBuilder projectBuilder = new ProjectBuilder();
-    ZipFile zip = null;
+    NioZipFile zip = null;
     try {
-      zip = new ZipFile(commandLineOptions.inputZipFile);
+      zip = new NioZipFile(commandLineOptions.inputZipFile);
     } catch (IOException e) {
       LOG.severe("Problem opening inout zip file: " + commandLineOptions.inputZipFile.getName());
       System.exit(1);
@@ -84,7 +83,9 @@ public final class Main {
                                          commandLineOptions.outputDir,
                                          commandLineOptions.isForCompanion,
                                          commandLineOptions.childProcessRamMb,
-                                         commandLineOptions.dexCacheDir);
+                                         commandLineOptions.dexCacheDir,
+                                         new BuildTimings(),
+                                         new BuildProgress());
     System.exit(result.getResult());
   }
 
@@ -0,0 +1,378 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read-only zip file that is read through a {@link FileChannel}.
+ *
+ * <p>The central directory is memory-mapped and parsed when the file is opened. The data of an
+ * entry can be copied to another channel as it is stored in the zip, without being inflated or
+ * passing through the Java heap, which is how large media files are copied. Entries can also be
+ * read as streams, like {@link java.util.zip.ZipFile} entries. All methods can be called from
+ * several threads at the same time.
+ *
+ * <p>ZIP64 and encrypted entries are not supported.
+ */
+final class NioZipFile implements Closeable {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int ENCRYPTED_FLAG = 1;
+  // Size of the buffers used to digest entries.
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * An entry of a zip file, as described by the central directory.
+   */
+  static final class Entry {
+    private final String name;
+    private final int method;
+    private final int dosTime;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+    // The offset of the data, read from the local header when it is first needed.
+    private volatile long dataOffset = -1;
+
+    private Entry(String name, int method, int dosTime, long crc, long compressedSize, long size,
+        long localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Returns {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+     */
+    int getMethod() {
+      return method;
+    }
+
+    /**
+     * Returns the modification time in MS-DOS format: the date in the high 16 bits and the time
+     * in the low 16 bits.
+     */
+    int getDosTime() {
+      return dosTime;
+    }
+
+    long getCrc() {
+      return crc;
+    }
+
+    long getCompressedSize() {
+      return compressedSize;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  private final String name;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final List<Entry> entries;
+  private final Map<String, Entry> entriesByName;
+
+  /**
+   * Opens a zip file.
+   *
+   * @param zipFile  the zip file
+   * @throws IOException  if the file can not be read or is not a zip file
+   */
+  NioZipFile(File zipFile) throws IOException {
+    name = zipFile.getPath();
+    file = new RandomAccessFile(zipFile, "r");
+    channel = file.getChannel();
+    try {
+      entries = readCentralDirectory();
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    } catch (RuntimeException e) {
+      file.close();
+      throw new IOException("Invalid zip file " + name, e);
+    }
+    entriesByName = Maps.newHashMapWithExpectedSize(entries.size());
+    for (Entry entry : entries) {
+      entriesByName.put(entry.getName(), entry);
+    }
+  }
+
+  private List<Entry> readCentralDirectory() throws IOException {
+    long fileSize = channel.size();
+    if (fileSize < END_SIZE) {
+      throw new IOException(name + " is not a zip file");
+    }
+    // The end of central directory record is followed by a comment of up to 64K.
+    int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, fileSize - tailSize, tailSize)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int end = tailSize - END_SIZE;
+    while (end >= 0 && tail.getInt(end) != END_SIGNATURE) {
+      end--;
+    }
+    if (end < 0) {
+      throw new IOException(name + " is not a zip file");
+    }
+    int entryCount = tail.getShort(end + 10) & 0xffff;
+    long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+    long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+    if (entryCount == 0xffff || directoryOffset == 0xffffffffL) {
+      throw new IOException(name + " is a ZIP64 file, which is not supported");
+    }
+    if (directoryOffset + directorySize > fileSize) {
+      throw new IOException(name + " has an invalid central directory");
+    }
+
+    MappedByteBuffer directory =
+        channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize);
+    directory.order(ByteOrder.LITTLE_ENDIAN);
+    ImmutableList.Builder<Entry> builder = ImmutableList.builder();
+    int offset = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (directory.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException(name + " has an invalid central directory");
+      }
+      int flags = directory.getShort(offset + 8) & 0xffff;
+      if ((flags & ENCRYPTED_FLAG) != 0) {
+        throw new IOException(name + " has encrypted entries, which are not supported");
+      }
+      int method = directory.getShort(offset + 10) & 0xffff;
+      int dosTime = directory.getInt(offset + 12);
+      long crc = directory.getInt(offset + 16) & 0xffffffffL;
+      long compressedSize = directory.getInt(offset + 20) & 0xffffffffL;
+      long size = directory.getInt(offset + 24) & 0xffffffffL;
+      int nameLength = directory.getShort(offset + 28) & 0xffff;
+      int extraLength = directory.getShort(offset + 30) & 0xffff;
+      int commentLength = directory.getShort(offset + 32) & 0xffff;
+      long localHeaderOffset = directory.getInt(offset + 42) & 0xffffffffL;
+      byte[] nameBytes = new byte[nameLength];
+      ByteBuffer nameBuffer = directory.duplicate();
+      nameBuffer.position(offset + CENTRAL_HEADER_SIZE);
+      nameBuffer.get(nameBytes);
+      if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+        throw new IOException(name + " has an entry with unsupported compression method "
+            + method);
+      }
+      builder.add(new Entry(new String(nameBytes, Charsets.UTF_8), method, dosTime, crc,
+          compressedSize, size, localHeaderOffset));
+      offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the path of the zip file.
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the entries, in the order of the central directory.
+   */
+  List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns the entry with the given name, or {@code null} if there is none.
+   */
+  Entry getEntry(String entryName) {
+    return entriesByName.get(entryName);
+  }
+
+  private long getDataOffset(Entry entry) throws IOException {
+    long dataOffset = entry.dataOffset;
+    if (dataOffset == -1) {
+      ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(header, entry.localHeaderOffset);
+      if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+        throw new IOException(name + " has an invalid local header for " + entry.getName());
+      }
+      dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+          + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+      entry.dataOffset = dataOffset;
+    }
+    return dataOffset;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int count = channel.read(buffer, position);
+      if (count < 0) {
+        throw new IOException("Unexpected end of " + name);
+      }
+      position += count;
+    }
+  }
+
+  /**
+   * Copies the data of the given entry, as it is stored in the zip, to the given channel. A
+   * deflated entry is copied without being inflated.
+   */
+  void transferRawData(Entry entry, WritableByteChannel target) throws IOException {
+    long position = getDataOffset(entry);
+    long remaining = entry.getCompressedSize();
+    while (remaining > 0) {
+      long count = channel.transferTo(position, remaining, target);
+      if (count <= 0) {
+        throw new IOException("Unexpected end of " + name);
+      }
+      position += count;
+      remaining -= count;
+    }
+  }
+
+  /**
+   * Updates the given digest with the uncompressed data of the given entry. The data of a stored
+   * entry is read into a direct buffer, so it does not pass through the Java heap.
+   */
+  void digest(Entry entry, MessageDigest digest) throws IOException {
+    if (entry.getMethod() == ZipEntry.STORED) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(
+          (int) Math.max(1, Math.min(BUFFER_SIZE, entry.getSize())));
+      long position = getDataOffset(entry);
+      long remaining = entry.getSize();
+      while (remaining > 0) {
+        buffer.clear();
+        if (remaining < buffer.capacity()) {
+          buffer.limit((int) remaining);
+        }
+        readFully(buffer, position);
+        buffer.flip();
+        position += buffer.remaining();
+        remaining -= buffer.remaining();
+        digest.update(buffer);
+      }
+    } else {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      InputStream in = getInputStream(entry);
+      try {
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, count);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Returns a stream of the uncompressed data of the given entry.
+   */
+  InputStream getInputStream(Entry entry) throws IOException {
+    InputStream raw = new ChannelInputStream(getDataOffset(entry), entry.getCompressedSize());
+    if (entry.getMethod() == ZipEntry.STORED) {
+      return raw;
+    }
+    final Inflater inflater = new Inflater(true);
+    // An inflater that does not expect a zlib header needs an extra dummy byte at the end.
+    InputStream padded = new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1]));
+    return new InflaterInputStream(padded, inflater, 8192) {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          inflater.end();
+          super.close();
+        }
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /*
+   * A stream of a range of the file, read with positional reads so that several streams can be
+   * read at the same time.
+   */
+  private class ChannelInputStream extends InputStream {
+    private long position;
+    private long remaining;
+
+    ChannelInputStream(long position, long length) {
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+      if (count < 0) {
+        throw new IOException("Unexpected end of " + name);
+      }
+      position += count;
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+/**
+ * Captures the last characters written to it, up to a fixed capacity, and counts the characters
+ * it had to drop to stay within that capacity.
+ *
+ * <p>It is used to capture the output of child processes, so that a process that writes a lot
+ * can not use up the memory of the build server. The end of the output is kept, since that is
+ * where tools report why they failed. The buffer starts small and only grows to its capacity as
+ * it is written to.
+ */
+final class OutputRingBuffer implements Appendable {
+  private static final int INITIAL_SIZE = 1024;
+
+  private final int capacity;
+  private char[] chars;
+  // The index in chars of the first character, and the number of characters.
+  private int start;
+  private int length;
+  private long droppedCount;
+
+  /**
+   * Creates a buffer that keeps at most the given number of characters.
+   */
+  OutputRingBuffer(int capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Negative capacity " + capacity);
+    }
+    this.capacity = capacity;
+    chars = new char[Math.min(capacity, INITIAL_SIZE)];
+  }
+
+  @Override
+  public synchronized OutputRingBuffer append(char c) {
+    if (capacity == 0) {
+      droppedCount++;
+      return this;
+    }
+    if (length == chars.length && length < capacity) {
+      grow();
+    }
+    if (length == capacity) {
+      start = (start + 1) % chars.length;
+      length--;
+      droppedCount++;
+    }
+    chars[(start + length) % chars.length] = c;
+    length++;
+    return this;
+  }
+
+  @Override
+  public OutputRingBuffer append(CharSequence csq) {
+    return append(csq == null ? "null" : csq, 0, csq == null ? 4 : csq.length());
+  }
+
+  @Override
+  public synchronized OutputRingBuffer append(CharSequence csq, int start, int end) {
+    if (csq == null) {
+      csq = "null";
+    }
+    for (int i = start; i < end; i++) {
+      append(csq.charAt(i));
+    }
+    return this;
+  }
+
+  private void grow() {
+    char[] grown = new char[(int) Math.min(capacity, chars.length * 2L)];
+    copyTo(grown);
+    chars = grown;
+    start = 0;
+  }
+
+  private void copyTo(char[] destination) {
+    int firstPart = Math.min(length, chars.length - start);
+    System.arraycopy(chars, start, destination, 0, firstPart);
+    System.arraycopy(chars, 0, destination, firstPart, length - firstPart);
+  }
+
+  /**
+   * Returns the number of characters that were dropped from the start of the buffer.
+   */
+  synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Returns the characters in the buffer, after a line saying how many characters were dropped
+   * before them, if any were.
+   */
+  @Override
+  public synchronized String toString() {
+    char[] contents = new char[length];
+    copyTo(contents);
+    return droppedCount == 0
+        ? new String(contents)
+        : "[" + droppedCount + " characters omitted]\n" + new String(contents);
+  }
+}
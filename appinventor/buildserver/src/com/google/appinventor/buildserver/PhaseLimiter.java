@@ -0,0 +1,117 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many builds can be in a given phase (for example, Kawa compilation or dexing) at the
+ * same time.
+ *
+ * <p>Each phase runs a child process that uses a lot of CPU and up to childProcessRamMb of
+ * memory, so running too many at once makes every build slower or exhausts memory. Builds that
+ * are in other phases are not affected by the limit.
+ */
+final class PhaseLimiter {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(PhaseLimiter.class.getName());
+
+  private final String phaseName;
+  private final int maxActive;
+  private final Semaphore permits;
+  private final AtomicInteger waitingCount = new AtomicInteger(0);
+  private final AtomicInteger maximumActiveCount = new AtomicInteger(0);
+  private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+  /**
+   * Creates a PhaseLimiter.
+   *
+   * @param phaseName  the name of the phase, used for logging
+   * @param maxActive  the maximum number of builds in the phase at the same time
+   */
+  PhaseLimiter(String phaseName, int maxActive) {
+    this.phaseName = phaseName;
+    this.maxActive = maxActive;
+    this.permits = new Semaphore(maxActive, true);
+  }
+
+  /**
+   * Returns a default limit based on the number of processors and on how many child processes
+   * of the given size fit in the physical memory that this JVM is not using.
+   *
+   * @param childProcessRamMb  maximum ram that can be used by a child process, in MB
+   */
+  static int defaultLimit(int childProcessRamMb) {
+    int limit = Runtime.getRuntime().availableProcessors();
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean && childProcessRamMb > 0) {
+      long physicalMemory =
+          ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize();
+      long availableMb = (physicalMemory - Runtime.getRuntime().maxMemory()) / (1024 * 1024);
+      limit = (int) Math.min(limit, availableMb / childProcessRamMb);
+    }
+    return Math.max(1, limit);
+  }
+
+  /**
+   * Waits until the phase can be entered.
+   */
+  void enter() throws InterruptedException {
+    if (permits.tryAcquire()) {
+      waitTimes.record(0);
+    } else {
+      waitingCount.incrementAndGet();
+      long start = System.currentTimeMillis();
+      try {
+        permits.acquire();
+      } finally {
+        waitingCount.decrementAndGet();
+      }
+      long waitMillis = System.currentTimeMillis() - start;
+      waitTimes.record(waitMillis);
+      LOG.info("Waited " + (waitMillis / 1000.0) + " seconds to start " + phaseName);
+    }
+    int active = getActiveCount();
+    int max;
+    do {
+      max = maximumActiveCount.get();
+    } while (active > max && !maximumActiveCount.compareAndSet(max, active));
+  }
+
+  /**
+   * Leaves the phase. Must be called once for each successful call to {@link #enter}.
+   */
+  void exit() {
+    permits.release();
+  }
+
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  public int getActiveCount() {
+    return maxActive - permits.availablePermits();
+  }
+
+  public int getMaximumActiveCount() {
+    return maximumActiveCount.get();
+  }
+
+  public int getWaitingCount() {
+    return waitingCount.get();
+  }
+
+  /**
+   * Returns the histogram of how long builds waited to enter the phase.
+   */
+  LatencyHistogram getWaitTimes() {
+    return waitTimes;
+  }
+}
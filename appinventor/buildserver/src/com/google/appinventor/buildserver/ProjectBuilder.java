@@ -7,33 +7,51 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.utils.StringUtils;
+import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 
@@ -47,12 +65,45 @@ public final class ProjectBuilder {
   private File outputApk;
   private File outputKeystore;
   private boolean saveKeystore;
+  // The directory in which project directories are created.
+  private final File tempDir;
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(ProjectBuilder.class.getName());
 
+  // Extracts project files and generates YAIL for all builds.
+  private static final ExecutorService projectFileExecutor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ProjectFileWorker-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Each YAIL generation runs a child process with a 1024 MB heap, so this limits how many can run
+  // at the same time across all builds, whatever the size of projectFileExecutor. Until
+  // setYailLimit is called, only one YAIL generator runs at a time.
+  private static volatile PhaseLimiter yailLimiter = new PhaseLimiter("YAIL generation", 1);
+
   private static final int MAX_COMPILER_MESSAGE_LENGTH = 160;
 
+  // Entries of a result cache entry, besides the APK.
+  private static final String RESULT_OUTPUT_ENTRY = "build-output.txt";
+  private static final String RESULT_ERROR_ENTRY = "build-errors.txt";
+
+  // Results of previous builds, or null if every project is built.
+  private static volatile FileCache resultCache = null;
+
+  // Unsigned APKs of previous companion builds, or null if every companion is built.
+  private static volatile FileCache companionCache = null;
+
+  // Creates the keystores of projects that do not have one.
+  private static volatile KeystorePool keystorePool = new KeystorePool(0);
+
   // Project folder prefixes
   // TODO(user): These constants are (or should be) also defined in
   // appengine/src/com/google/appinventor/server/project/youngandroid/YoungAndroidProjectService
@@ -72,6 +123,8 @@ public final class ProjectBuilder {
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
+  static final String YAIL_GENERATOR = Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar";
+
   public File getOutputApk() {
     return outputApk;
   }
@@ -81,8 +134,23 @@ public final class ProjectBuilder {
   }
 
   /**
-   * Creates a new directory beneath the system's temporary directory (as
-   * defined by the {@code java.io.tmpdir} system property), and returns its
+   * Creates a ProjectBuilder that extracts projects beneath the system's temporary directory.
+   */
+  public ProjectBuilder() {
+    this(new File(System.getProperty("java.io.tmpdir")));
+  }
+
+  /**
+   * Creates a ProjectBuilder that extracts projects beneath the given directory.
+   *
+   * @param tempDir  the directory in which project directories are created
+   */
+  public ProjectBuilder(File tempDir) {
+    this.tempDir = tempDir;
+  }
+
+  /**
+   * Creates a new directory beneath the given directory, and returns its
    * name. The name of the directory will contain the current time (in millis),
    * and a random number.
    *
@@ -93,8 +161,7 @@ public final class ProjectBuilder {
    * @return the newly-created directory
    * @throws IllegalStateException if the directory could not be created
    */
-  private static File createNewTempDir() {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+  private static File createNewTempDir(File baseDir) {
     String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
 
     final int TEMP_DIR_ATTEMPTS = 10000;
@@ -112,23 +179,61 @@ public final class ProjectBuilder {
         + baseNamePrefix + "0 to " + baseNamePrefix + (TEMP_DIR_ATTEMPTS - 1) + ')');
   }
 
-  Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
-               int childProcessRam, String dexCachePath) {
+  Result build(String userName, NioZipFile inputZip, File outputDir, boolean isForCompanion,
+               int childProcessRam, String dexCachePath, BuildTimings timings,
+               BuildProgress progress) {
     try {
+      // Return the result of an earlier build of exactly the same project, if there is one.
+      FileCache cache = resultCache;
+      String resultCacheKey = null;
+      if (cache != null) {
+        resultCacheKey = getResultCacheKey(inputZip, isForCompanion);
+        if (resultCacheKey != null) {
+          File cachedResult = cache.getIfPresent(resultCacheKey);
+          if (cachedResult != null) {
+            LOG.info("Using cached build result " + cachedResult.getName());
+            return extractCachedResult(cachedResult, outputDir);
+          }
+        }
+      }
+
+      // Companion builds of the same project differ only in their signature. Sign the APK of an
+      // earlier build, if there is one, instead of building it again.
+      FileCache companions = companionCache;
+      String companionCacheKey = null;
+      if (isForCompanion && companions != null) {
+        companionCacheKey = getCompanionCacheKey(inputZip);
+        File cachedCompanion = companions.getIfPresent(companionCacheKey);
+        if (cachedCompanion != null) {
+          LOG.info("Using cached companion " + cachedCompanion.getName());
+          Result result = signCachedCompanion(cachedCompanion, userName, inputZip, outputDir,
+              timings);
+          if (result != null) {
+            if (progress != null) {
+              progress.set(100);
+            }
+            return result;
+          }
+        }
+      }
+
       // Download project files into a temporary directory
-      File projectRoot = createNewTempDir();
+      File projectRoot = createNewTempDir(tempDir);
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
-        List<String> sourceFiles;
+        ExtractedProject extractedProject;
+        long phaseStart = System.nanoTime();
         try {
-          sourceFiles = extractProjectFiles(inputZip, projectRoot);
+          extractedProject = extractProjectFiles(inputZip, projectRoot);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
         }
+        timings.record(BuildTimings.Phase.EXTRACT, phaseStart);
 
+        phaseStart = System.nanoTime();
         try {
-          genYailFilesIfNecessary(sourceFiles);
+          genYailFilesIfNecessary(extractedProject.files);
         } catch (YailGenerationException e) {
           // Note that we're using a special result code here for the case of a Yail gen error.
           return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
@@ -137,11 +242,14 @@ public final class ProjectBuilder {
           e.printStackTrace();
           return Result.createFailingResult("", "Unexpected problems generating YAIL.");
         }
+        timings.record(BuildTimings.Phase.YAIL_GENERATION, phaseStart);
 
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
+          phaseStart = System.nanoTime();
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
+          timings.record(BuildTimings.Phase.KEYSTORE, phaseStart);
           saveKeystore = true;
         }
 
@@ -158,12 +266,14 @@ public final class ProjectBuilder {
         PrintStream userErrors = new PrintStream(errors);
 
         Set<String> componentTypes =
-          isForCompanion ? getAllComponentTypes() : getComponentTypes(sourceFiles);
+          isForCompanion ? getAllComponentTypes()
+          : getComponentTypes(extractedProject.formSources.values());
 
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             companionCacheKey != null, keyStorePath, childProcessRam,
+                             dexCachePath, timings, progress);
         console.close();
         userErrors.close();
 
@@ -180,14 +290,26 @@ public final class ProjectBuilder {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
             outputApk = new File(outputDir, outputFile.getName());
-            Files.copy(outputFile, outputApk);
+            // The project directory is deleted below, so the APK can be moved rather than copied.
+            Files.move(outputFile, outputApk);
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
               Files.copy(keyStoreFile, outputKeystore);
             }
           }
         }
-        return new Result(success, messages, errors.toString(PathUtil.DEFAULT_CHARSET));
+        String errorMessages = errors.toString(PathUtil.DEFAULT_CHARSET);
+        if (success && outputApk != null && resultCacheKey != null) {
+          cache.put(resultCacheKey,
+              new ResultWriter(outputApk, outputApk.getName(), messages, errorMessages));
+        }
+        if (success && outputApk != null && companionCacheKey != null) {
+          File unsignedApk = Compiler.getUnsignedApk(new File(projectRoot, "build/deploy"),
+              project.getProjectName());
+          companions.put(companionCacheKey,
+              new ResultWriter(unsignedApk, outputApk.getName(), messages, errorMessages));
+        }
+        return new Result(success, messages, errorMessages);
       } finally {
         // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
         // canonical path here so that Files.deleteRecursively will work.
@@ -202,29 +324,289 @@ public final class ProjectBuilder {
     }
   }
 
+  /**
+   * Sets the cache of build results used by all subsequent builds.
+   *
+   * @param cache  the cache, or {@code null} to build every project
+   */
+  static void setResultCache(FileCache cache) {
+    resultCache = cache;
+  }
+
+  static FileCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Sets the cache of unsigned companion APKs used by all subsequent builds.
+   *
+   * @param cache  the cache, or {@code null} to build every companion
+   */
+  static void setCompanionCache(FileCache cache) {
+    companionCache = cache;
+  }
+
+  static FileCache getCompanionCache() {
+    return companionCache;
+  }
+
+  /**
+   * Sets the pool that creates keystores for all subsequent builds.
+   */
+  static void setKeystorePool(KeystorePool pool) {
+    KeystorePool previous = keystorePool;
+    keystorePool = pool;
+    previous.shutdown();
+  }
+
+  static KeystorePool getKeystorePool() {
+    return keystorePool;
+  }
+
+  /**
+   * Sets how many YAIL generations can happen at the same time across all builds.
+   *
+   * @param maxYail  maximum number of simultaneous YAIL generations
+   */
+  static void setYailLimit(int maxYail) {
+    yailLimiter = new PhaseLimiter("YAIL generation", maxYail);
+  }
+
+  static PhaseLimiter getYailLimiter() {
+    return yailLimiter;
+  }
+
+  /*
+   * Returns the result cache key for the given project, or null if the result of the build can not
+   * be cached because the project has no keystore (a new keystore is created for each build).
+   *
+   * The key is a hash of the names and contents of the files in the zip, the keystore,
+   * isForCompanion and the build server version. It does not depend on the order of the entries
+   * in the zip or on their time stamps.
+   */
+  @VisibleForTesting
+  static String getResultCacheKey(NioZipFile inputZip, boolean isForCompanion)
+      throws IOException {
+    NioZipFile.Entry keystoreEntry = inputZip.getEntry(KEYSTORE_FILE_NAME);
+    if (keystoreEntry == null) {
+      return null;
+    }
+    return Hashing.sha1().newHasher()
+        .putBytes(hashContents(inputZip).asBytes())
+        .putBytes(hashZipEntry(inputZip, keystoreEntry).asBytes())
+        .putBoolean(isForCompanion)
+        .putString(GitBuildId.getVersion(), Charsets.UTF_8).putByte((byte) 0)
+        .putString(GitBuildId.getFingerprint(), Charsets.UTF_8)
+        .hash().toString();
+  }
+
+  /*
+   * Returns the companion cache key for the given companion project: a hash of the names and
+   * contents of the files in the zip, except the keystore, and the build server version.
+   */
+  @VisibleForTesting
+  static String getCompanionCacheKey(NioZipFile inputZip) throws IOException {
+    return Hashing.sha1().newHasher()
+        .putBytes(hashContents(inputZip).asBytes())
+        .putString(GitBuildId.getVersion(), Charsets.UTF_8).putByte((byte) 0)
+        .putString(GitBuildId.getFingerprint(), Charsets.UTF_8)
+        .hash().toString();
+  }
+
+  /*
+   * Returns a hash of the names and contents of the files in the zip, except the keystore, that
+   * does not depend on the order of the entries or on their time stamps.
+   */
+  private static HashCode hashContents(NioZipFile inputZip) throws IOException {
+    List<NioZipFile.Entry> entries = Lists.newArrayList(inputZip.getEntries());
+    Collections.sort(entries, new Comparator<NioZipFile.Entry>() {
+      @Override
+      public int compare(NioZipFile.Entry entry1, NioZipFile.Entry entry2) {
+        return entry1.getName().compareTo(entry2.getName());
+      }
+    });
+    Hasher contentsHasher = Hashing.sha1().newHasher();
+    for (NioZipFile.Entry entry : entries) {
+      if (entry.isDirectory() || entry.getName().equals(KEYSTORE_FILE_NAME)) {
+        continue;
+      }
+      contentsHasher.putString(entry.getName(), Charsets.UTF_8).putByte((byte) 0)
+          .putBytes(hashZipEntry(inputZip, entry).asBytes());
+    }
+    return contentsHasher.hash();
+  }
+
+  private static HashCode hashZipEntry(final NioZipFile zipFile, final NioZipFile.Entry entry)
+      throws IOException {
+    return ByteStreams.hash(new InputSupplier<InputStream>() {
+      @Override
+      public InputStream getInput() throws IOException {
+        return zipFile.getInputStream(entry);
+      }
+    }, Hashing.sha1());
+  }
+
+  /*
+   * Writes a result or companion cache entry: the APK, named apkName, and the output and error
+   * messages of the build.
+   */
+  private static class ResultWriter implements FileCache.EntryWriter {
+    private final File apk;
+    private final String apkName;
+    private final String messages;
+    private final String errorMessages;
+
+    ResultWriter(File apk, String apkName, String messages, String errorMessages) {
+      this.apk = apk;
+      this.apkName = apkName;
+      this.messages = messages;
+      this.errorMessages = errorMessages;
+    }
+
+    @Override
+    public boolean write(File output) throws IOException {
+      ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(output));
+      try {
+        zip.putNextEntry(new ZipEntry(RESULT_OUTPUT_ENTRY));
+        zip.write(messages.getBytes(PathUtil.DEFAULT_CHARSET));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry(RESULT_ERROR_ENTRY));
+        zip.write(errorMessages.getBytes(PathUtil.DEFAULT_CHARSET));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry(apkName));
+        Files.copy(apk, zip);
+        zip.closeEntry();
+      } finally {
+        zip.close();
+      }
+      return true;
+    }
+  }
+
+  /*
+   * Copies the APK in a result cache entry to outputDir and returns the cached result.
+   */
+  private Result extractCachedResult(File cachedResult, File outputDir) throws IOException {
+    ZipFile zipFile = new ZipFile(cachedResult);
+    try {
+      String messages = null;
+      String errorMessages = null;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+          if (entry.getName().equals(RESULT_OUTPUT_ENTRY)) {
+            messages = new String(ByteStreams.toByteArray(in), PathUtil.DEFAULT_CHARSET);
+          } else if (entry.getName().equals(RESULT_ERROR_ENTRY)) {
+            errorMessages = new String(ByteStreams.toByteArray(in), PathUtil.DEFAULT_CHARSET);
+          } else {
+            outputApk = new File(outputDir, entry.getName());
+            OutputStream out = new FileOutputStream(outputApk);
+            try {
+              ByteStreams.copy(in, out);
+            } finally {
+              out.close();
+            }
+          }
+        } finally {
+          in.close();
+        }
+      }
+      return Result.createSuccessfulResult(messages, errorMessages);
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /*
+   * Signs the unsigned APK in a companion cache entry with the keystore in the input zip, or a new
+   * keystore if it has none, into outputDir. Returns the cached result, or null if the APK could
+   * not be signed.
+   */
+  private Result signCachedCompanion(File cachedCompanion, String userName, NioZipFile inputZip,
+      File outputDir, BuildTimings timings) throws IOException {
+    File workDir = createNewTempDir(tempDir);
+    try {
+      File keyStoreFile = new File(workDir, KEYSTORE_FILE_NAME);
+      NioZipFile.Entry keystoreEntry = inputZip.getEntry(KEYSTORE_FILE_NAME);
+      if (keystoreEntry != null) {
+        InputStream in = inputZip.getInputStream(keystoreEntry);
+        try {
+          Files.asByteSink(keyStoreFile).writeFrom(in);
+        } finally {
+          in.close();
+        }
+      } else {
+        long phaseStart = System.nanoTime();
+        createKeyStore(userName, workDir, KEYSTORE_FILE_NAME);
+        timings.record(BuildTimings.Phase.KEYSTORE, phaseStart);
+      }
+
+      Result result = extractCachedResult(cachedCompanion, workDir);
+      File unsignedApk = outputApk;
+      File signedApk = new File(outputDir, unsignedApk.getName());
+      long phaseStart = System.nanoTime();
+      try {
+        ApkSigner.fromKeyStore(keyStoreFile, "AndroidKey", "android")
+            .signAndAlign(unsignedApk, signedApk);
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unable to sign cached companion " + cachedCompanion.getName(), e);
+        outputApk = null;
+        signedApk.delete();
+        return null;
+      }
+      timings.record(BuildTimings.Phase.SIGN_AND_ALIGN, phaseStart);
+      outputApk = signedApk;
+      if (keystoreEntry == null) {
+        saveKeystore = true;
+        outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
+        Files.copy(keyStoreFile, outputKeystore);
+      }
+      return result;
+    } finally {
+      FileUtils.deleteDirectory(workDir);
+    }
+  }
+
   private void genYailFilesIfNecessary(List<String> sourceFiles)
       throws IOException, YailGenerationException {
-    // Filter out the files that aren't really source files (i.e. that don't end in .scm or .yail)
-    Collection<String> formAndYailSourceFiles = Collections2.filter(
-        sourceFiles,
-        new Predicate<String>() {
-          @Override
-          public boolean apply(String input) {
-            return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
-          }
-        });
-    for (String sourceFile : formAndYailSourceFiles) {
+    Set<String> sourceFileSet = Sets.newHashSet(sourceFiles);
+    final List<String> rootPaths = Lists.newArrayList();
+    for (String sourceFile : sourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
                                                   - FORM_PROPERTIES_EXTENSION.length());
-        String yailFilePath = rootPath + YAIL_EXTENSION;
-        // Note: Famous last words: The following contains() makes this method O(n**2) but n should
-        // be pretty small.
-        if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+        if (!sourceFileSet.contains(rootPath + YAIL_EXTENSION)) {
+          rootPaths.add(rootPath);
         }
       }
     }
+    if (rootPaths.size() == 1) {
+      generateYail(rootPaths.get(0));
+      return;
+    }
+
+    // Generate the screens at the same time.
+    List<Callable<Void>> tasks = Lists.newArrayList();
+    for (final String rootPath : rootPaths) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException, YailGenerationException {
+          generateYail(rootPath);
+          return null;
+        }
+      });
+    }
+    try {
+      getAll(projectFileExecutor.invokeAll(tasks));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while generating YAIL", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, YailGenerationException.class);
+      throw new RuntimeException(e.getCause());
+    }
   }
 
   private static Set<String> getAllComponentTypes() throws IOException {
@@ -237,37 +619,120 @@ public final class ProjectBuilder {
     return compSet;
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
+  /**
+   * The files extracted from a project.
+   */
+  @VisibleForTesting
+  static class ExtractedProject {
+    // The paths of the files, in the order of the zip.
+    final List<String> files = Lists.newArrayList();
+    // The contents of the form (.scm) files, by path.
+    final Map<String, String> formSources = Maps.newLinkedHashMap();
+  }
+
+  /*
+   * Waits for all the given futures, then throws the exception of the first one that failed.
+   * Waiting for all of them makes sure none is still writing to the project directory when it
+   * is deleted.
+   */
+  private static <T> void getAll(List<Future<T>> futures) throws ExecutionException {
+    ExecutionException failure = null;
+    boolean interrupted = false;
+    for (Future<T> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e;
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /*
+   * Extracts the entries of the zip in parallel. The form files are kept in memory as well, so
+   * that they are only read once. Uncompressed entries, which are usually media files, are copied
+   * from channel to channel without passing through the Java heap.
+   */
+  @VisibleForTesting
+  static ExtractedProject extractProjectFiles(final NioZipFile inputZip, File projectRoot)
       throws IOException {
-    ArrayList<String> projectFileNames = Lists.newArrayList();
-    Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
-    while (inputZipEnumeration.hasMoreElements()) {
-      ZipEntry zipEntry = inputZipEnumeration.nextElement();
-      final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
-      File extractedFile = new File(projectRoot, zipEntry.getName());
-      LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
-      Files.createParentDirs(extractedFile); // Do I need this?
-      Files.copy(
-          new InputSupplier<InputStream>() {
-            public InputStream getInput() throws IOException {
-              return extractedInputStream;
+    ExtractedProject extractedProject = new ExtractedProject();
+    List<NioZipFile.Entry> zipEntries = inputZip.getEntries();
+    List<Callable<String>> tasks = Lists.newArrayListWithCapacity(zipEntries.size());
+    for (final NioZipFile.Entry zipEntry : zipEntries) {
+      final File extractedFile = new File(projectRoot, zipEntry.getName());
+      extractedProject.files.add(extractedFile.getPath());
+      tasks.add(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
+          Files.createParentDirs(extractedFile);
+          if (zipEntry.getName().endsWith(FORM_PROPERTIES_EXTENSION)) {
+            InputStream in = inputZip.getInputStream(zipEntry);
+            try {
+              byte[] contents = ByteStreams.toByteArray(in);
+              Files.write(contents, extractedFile);
+              return new String(contents, PathUtil.DEFAULT_CHARSET);
+            } finally {
+              in.close();
             }
-          },
-          extractedFile);
-      projectFileNames.add(extractedFile.getPath());
+          }
+          FileOutputStream out = new FileOutputStream(extractedFile);
+          try {
+            if (zipEntry.getMethod() == ZipEntry.STORED) {
+              inputZip.transferRawData(zipEntry, out.getChannel());
+            } else {
+              InputStream in = inputZip.getInputStream(zipEntry);
+              try {
+                ByteStreams.copy(in, out);
+              } finally {
+                in.close();
+              }
+            }
+          } finally {
+            out.close();
+          }
+          return null;
+        }
+      });
+    }
+    List<Future<String>> futures;
+    try {
+      futures = projectFileExecutor.invokeAll(tasks);
+      getAll(futures);
+      for (int i = 0; i < futures.size(); i++) {
+        String formSource = futures.get(i).get();
+        if (formSource != null) {
+          extractedProject.formSources.put(extractedProject.files.get(i), formSource);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting project files", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
     }
-    return projectFileNames;
+    return extractedProject;
   }
 
-  private static Set<String> getComponentTypes(List<String> files)
-      throws IOException {
+  private static Set<String> getComponentTypes(Collection<String> formSources) {
     Set<String> componentTypes = Sets.newHashSet();
-    for (String f : files) {
-      if (f.endsWith(".scm")) {
-        File scmFile = new File(f);
-        String scmContent = new String(Files.toByteArray(scmFile), PathUtil.DEFAULT_CHARSET);
-        componentTypes.addAll(getTypesFromScm(scmContent));
-      }
+    for (String formSource : formSources) {
+      componentTypes.addAll(getTypesFromScm(formSource));
     }
     return componentTypes;
   }
@@ -275,12 +740,20 @@ public final class ProjectBuilder {
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
+    // For DNAME, US may not the right country to assign it to.
+    String distinguishedName =
+        "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US";
+
+    try {
+      keystorePool.createKeyStore(distinguishedName, keyStoreFile);
+      return keyStoreFile.getAbsolutePath();
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Unable to create keystore in process. Running keytool.", e);
+    }
 
     /* Note: must expire after October 22, 2033, to be in the Android
     * marketplace.  Android docs recommend "10000" as the expiration # of
     * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
     */
     String[] keytoolCommandline = {
         System.getProperty("java.home") + "/bin/keytool",
@@ -288,7 +761,7 @@ public final class ProjectBuilder {
         "-keystore", keyStoreFile.getAbsolutePath(),
         "-alias", "AndroidKey",
         "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
+        "-dname", distinguishedName,
         "-validity", "10000",
         "-storepass", "android",
         "-keypass", "android"
@@ -422,14 +895,26 @@ public final class ProjectBuilder {
       System.getProperty("java.home") + "/bin/java",
       "-mx1024M",
       "-jar",
-      Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
+      Compiler.getResource(YAIL_GENERATOR),
       new File(formPropertiesPath).getAbsolutePath(),
       new File(codeblocksSourcePath).getAbsolutePath(),
       yailPath
     };
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    PhaseLimiter limiter = yailLimiter;
+    try {
+      limiter.enter();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to generate YAIL", e);
+    }
+    int exitValue;
+    try {
+      exitValue = Execution.execute(null, commandLine, out, err);
+    } finally {
+      limiter.exit();
+    }
     if (exitValue == 0) {
       String generatedYailString = out.toString();
       File generatedYailFile = new File(yailPath);
@@ -469,8 +954,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
@@ -0,0 +1,199 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for executing tasks using a fixed pool of reusable worker threads.
+ *
+ * <p>This Executor allows only a certain number of simultaneous tasks. Additional tasks wait in
+ * a bounded FIFO queue until a worker becomes free. Once the queue is full, further tasks are
+ * rejected with a {@link RejectedExecutionException}. A queue capacity of 0 means that tasks are
+ * rejected, not queued, when all workers are busy.</p>
+ *
+ * <p>The time tasks spend waiting in the queue and the time they spend running are recorded so
+ * that they can be reported on the build server's status page.</p>
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+final class QueuingExecutor implements Executor {
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of tasks waiting for a worker. 0 means tasks are never queued.
+  private final int maxQueuedTasks;
+
+  private final ThreadPoolExecutor threadPool;
+
+  private final AtomicInteger activeTaskCount = new AtomicInteger(0);
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger maximumQueuedTaskCount = new AtomicInteger(0);
+
+  // Accumulated times, in milliseconds, for the tasks that have started or completed.
+  private final AtomicInteger startedTaskCount = new AtomicInteger(0);
+  private final AtomicLong totalQueueWaitMillis = new AtomicLong(0);
+  private final AtomicLong maximumQueueWaitMillis = new AtomicLong(0);
+  private final AtomicLong totalServiceMillis = new AtomicLong(0);
+  private final AtomicLong maximumServiceMillis = new AtomicLong(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(QueuingExecutor.class.getName());
+
+  /**
+   * Creates a QueuingExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks, 0 means unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for a worker
+   */
+  QueuingExecutor(int maxActiveTasks, int maxQueuedTasks) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = (maxActiveTasks == 0) ? 0 : maxQueuedTasks;
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "BuildWorker-" + threadCount.incrementAndGet());
+      }
+    };
+    if (maxActiveTasks == 0) {
+      // Unlimited: start a new worker whenever all existing workers are busy.
+      threadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), threadFactory);
+    } else {
+      BlockingQueue<Runnable> queue = (this.maxQueuedTasks == 0)
+          ? new SynchronousQueue<Runnable>()
+          : new LinkedBlockingQueue<Runnable>(this.maxQueuedTasks);
+      threadPool = new ThreadPoolExecutor(maxActiveTasks, maxActiveTasks, 0L,
+          TimeUnit.MILLISECONDS, queue, threadFactory);
+    }
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    executeAndGetQueuePosition(runnable);
+  }
+
+  /**
+   * Executes the given task, queueing it if all workers are busy.
+   *
+   * @param runnable the task to execute
+   * @return the (approximate) number of tasks waiting for a worker, including the given task;
+   *     0 means that the task was handed directly to a worker
+   * @throws RejectedExecutionException if all workers are busy and the queue is full
+   */
+  int executeAndGetQueuePosition(final Runnable runnable) {
+    final long enqueueTime = System.currentTimeMillis();
+    threadPool.execute(new Runnable() {
+      @Override
+      public void run() {
+        long startTime = System.currentTimeMillis();
+        activeTaskCount.incrementAndGet();
+        startedTaskCount.incrementAndGet();
+        recordTime(startTime - enqueueTime, totalQueueWaitMillis, maximumQueueWaitMillis);
+        try {
+          runnable.run();
+        } finally {
+          recordTime(System.currentTimeMillis() - startTime, totalServiceMillis,
+              maximumServiceMillis);
+          activeTaskCount.decrementAndGet();
+          completedTaskCount.incrementAndGet();
+        }
+      }
+    });
+    int queued = getQueuedTaskCount();
+    int max;
+    do {
+      max = maximumQueuedTaskCount.get();
+    } while (queued > max && !maximumQueuedTaskCount.compareAndSet(max, queued));
+    if (queued > 0) {
+      LOG.info("Build task queued at position " + queued);
+    }
+    return queued;
+  }
+
+  private static void recordTime(long millis, AtomicLong total, AtomicLong maximum) {
+    total.addAndGet(millis);
+    long max;
+    do {
+      max = maximum.get();
+    } while (millis > max && !maximum.compareAndSet(max, millis));
+  }
+
+  /**
+   * Returns an estimate, in seconds, of how long a rejected caller should wait before retrying.
+   */
+  int getRetryAfterSeconds() {
+    long averageService = getAverageServiceMillis();
+    if (averageService == 0) {
+      // Nothing has completed yet, so we have no better estimate than a minute.
+      return 60;
+    }
+    int workers = (maxActiveTasks == 0) ? 1 : maxActiveTasks;
+    long waitMillis = averageService * (getQueuedTaskCount() + 1) / workers;
+    return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(waitMillis));
+  }
+
+  /**
+   * Stops accepting tasks. Tasks that are already running or queued are allowed to finish.
+   */
+  void shutdown() {
+    threadPool.shutdown();
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public int getActiveTaskCount() {
+    return activeTaskCount.get();
+  }
+
+  public int getQueuedTaskCount() {
+    return threadPool.getQueue().size();
+  }
+
+  public int getMaximumQueuedTaskCount() {
+    return maximumQueuedTaskCount.get();
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public long getAverageQueueWaitMillis() {
+    int started = startedTaskCount.get();
+    return (started == 0) ? 0 : totalQueueWaitMillis.get() / started;
+  }
+
+  public long getMaximumQueueWaitMillis() {
+    return maximumQueueWaitMillis.get();
+  }
+
+  public long getAverageServiceMillis() {
+    int completed = completedTaskCount.get();
+    return (completed == 0) ? 0 : totalServiceMillis.get() / completed;
+  }
+
+  public long getMaximumServiceMillis() {
+    return maximumServiceMillis.get();
+  }
+}
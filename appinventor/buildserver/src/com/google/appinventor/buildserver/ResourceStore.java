@@ -0,0 +1,186 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of the resource files that builds use: the tools and libraries that
+ * builds run, and the native libraries and assets of components that builds package into APKs.
+ *
+ * <p>Each resource is written to the store directory once, in a file named after the SHA-1 hash
+ * of its contents and the extension of the resource, which tools such as dx look at. Builds run
+ * that file, or hard link it into their build directories, instead of copying it. The first time
+ * a resource is used, it is hashed. It is only written if the store has no file with that hash
+ * yet, or if the file the store has does not have that hash (for example, because it was
+ * modified). So a new version of the build server only writes the resources that changed, and
+ * never uses a corrupt file. A file is written to a temporary file and then renamed into place,
+ * so several build servers can share the same directory.
+ *
+ * <p>After the first use of a resource, looking it up does not take a lock.
+ *
+ * <p>Store files are read-only. Builds must not modify the files they use.
+ */
+final class ResourceStore {
+  private static final String TEMP_PREFIX = "tmp-";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResourceStore.class.getName());
+
+  private final File directory;
+  // The store file of each resource that has been used.
+  private final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>();
+  private final Striped<Lock> locks = Striped.lock(16);
+  private final AtomicLong writtenCount = new AtomicLong(0);
+  private final AtomicLong linkedCount = new AtomicLong(0);
+  private final AtomicLong copiedCount = new AtomicLong(0);
+
+  /**
+   * Creates a store in the given directory. The directory is created when the first resource is
+   * written to it.
+   */
+  ResourceStore(File directory) {
+    this.directory = directory;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the store file that has the contents of the given resource, writing it if the store
+   * does not have it yet.
+   *
+   * @param resourcePath  the path of the resource, as given to {@link Class#getResource}
+   * @throws IOException  if there is no such resource, or it can not be written
+   */
+  File get(String resourcePath) throws IOException {
+    File file = files.get(resourcePath);
+    if (file != null) {
+      return file;
+    }
+    Lock lock = locks.get(resourcePath);
+    lock.lock();
+    try {
+      file = files.get(resourcePath);
+      if (file == null) {
+        file = store(resourcePath);
+        files.put(resourcePath, file);
+      }
+      return file;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private File store(String resourcePath) throws IOException {
+    URL url = ResourceStore.class.getResource(resourcePath);
+    if (url == null) {
+      throw new IOException("No resource " + resourcePath);
+    }
+    InputSupplier<InputStream> resource = Resources.newInputStreamSupplier(url);
+    HashCode hash = ByteStreams.hash(resource, Hashing.sha1());
+    String name = PathUtil.basename(resourcePath);
+    int lastDot = name.lastIndexOf('.');
+    File file = new File(directory, hash + (lastDot == -1 ? "" : name.substring(lastDot)));
+    if (file.isFile()) {
+      if (com.google.common.io.Files.hash(file, Hashing.sha1()).equals(hash)) {
+        return file;
+      }
+      LOG.warning("Replacing " + file + ", whose contents do not match " + resourcePath);
+    }
+
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    File temp = File.createTempFile(TEMP_PREFIX, null, directory);
+    try {
+      InputStream in = resource.getInput();
+      try {
+        Files.copy(in, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        in.close();
+      }
+      temp.setExecutable(true, false);
+      temp.setReadOnly();
+      try {
+        // Replaces a file with the wrong contents.
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      writtenCount.incrementAndGet();
+      LOG.info("Stored " + resourcePath + " as " + file.getName());
+    } finally {
+      temp.delete();
+    }
+    return file;
+  }
+
+  /**
+   * Makes the given file a hard link to the store file of the given resource. If the file can
+   * not be linked, for example because it is on another file system, the resource is copied.
+   *
+   * @param resourcePath  the path of the resource, as given to {@link Class#getResource}
+   * @param target  the file to create, which must not exist
+   */
+  void link(String resourcePath, File target) throws IOException {
+    File file = get(resourcePath);
+    try {
+      Files.createLink(target.toPath(), file.toPath());
+      linkedCount.incrementAndGet();
+      return;
+    } catch (FileAlreadyExistsException e) {
+      throw e;
+    } catch (IOException e) {
+      // Fall through and copy.
+    } catch (UnsupportedOperationException e) {
+      // Fall through and copy.
+    }
+    Files.copy(file.toPath(), target.toPath());
+    copiedCount.incrementAndGet();
+  }
+
+  /**
+   * Returns how many resources this store has written.
+   */
+  long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  /**
+   * Returns how many files were linked to store files.
+   */
+  long getLinkedCount() {
+    return linkedCount.get();
+  }
+
+  /**
+   * Returns how many files were copied from store files because they could not be linked.
+   */
+  long getCopiedCount() {
+    return copiedCount.get();
+  }
+}
@@ -0,0 +1,313 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Removes the classes of the App Inventor runtime that a project can not use, so that they are
+ * not dexed and packaged into its APK.
+ *
+ * <p>The runtime jar is read once per process, into an immutable graph of the runtime classes
+ * that each runtime class refers to. A class refers to another if its constant pool names it, as
+ * a class, in a type descriptor or signature, or in a string constant, such as the argument of
+ * Class.forName. The classes of the components that the project uses, the classes of the project
+ * and the classes named in its manifest are the roots, and the runtime classes that they refer
+ * to, directly or not, are kept.
+ *
+ * <p>Only classes in the components runtime package and its subpackages are ever removed. Other
+ * classes and the other files in the runtime jar are always kept.
+ */
+final class RuntimeShrinker {
+  // The package of the component classes, whose classes can be removed.
+  @VisibleForTesting
+  static final String RUNTIME_PACKAGE = "com/google/appinventor/components/runtime/";
+
+  private static final String CLASS_SUFFIX = ".class";
+  private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(RuntimeShrinker.class.getName());
+
+  private static volatile RuntimeShrinker instance;
+
+  private final File runtimeJar;
+  // The runtime classes, by internal name, that each runtime class refers to.
+  private final ImmutableMap<String, ImmutableSet<String>> references;
+
+  private RuntimeShrinker(File runtimeJar) throws IOException {
+    this.runtimeJar = runtimeJar;
+    ImmutableMap.Builder<String, byte[]> classFiles = ImmutableMap.builder();
+    ZipFile zip = new ZipFile(runtimeJar);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        String className = getClassName(entry.getName());
+        if (className != null) {
+          InputStream in = zip.getInputStream(entry);
+          try {
+            classFiles.put(className, ByteStreams.toByteArray(in));
+          } finally {
+            in.close();
+          }
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    ImmutableMap<String, byte[]> classes = classFiles.build();
+    ImmutableMap.Builder<String, ImmutableSet<String>> builder = ImmutableMap.builder();
+    for (String className : classes.keySet()) {
+      builder.put(className, ImmutableSet.copyOf(
+          getReferences(classes.get(className), classes.keySet())));
+    }
+    references = builder.build();
+  }
+
+  /**
+   * Returns the shrinker for the given runtime jar, reading the jar if it is not the one that was
+   * read last.
+   *
+   * @throws IOException  if the jar can not be read, or has a class that can not be parsed
+   */
+  static RuntimeShrinker getInstance(File runtimeJar) throws IOException {
+    RuntimeShrinker shrinker = instance;
+    if (shrinker == null || !shrinker.runtimeJar.equals(runtimeJar)) {
+      synchronized (RuntimeShrinker.class) {
+        shrinker = instance;
+        if (shrinker == null || !shrinker.runtimeJar.equals(runtimeJar)) {
+          long start = System.currentTimeMillis();
+          shrinker = new RuntimeShrinker(runtimeJar);
+          LOG.info("Read " + shrinker.references.size() + " runtime classes in " +
+              ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+          instance = shrinker;
+        }
+      }
+    }
+    return shrinker;
+  }
+
+  /**
+   * Returns the internal name of the component class of the given component type.
+   */
+  static String getComponentClassName(String componentType) {
+    return RUNTIME_PACKAGE + componentType;
+  }
+
+  /**
+   * Returns the runtime classes, by internal name, that are reachable from the given component
+   * types, the class files in the given directory and the class names in the given text files.
+   */
+  Set<String> getReachableClasses(Collection<String> componentTypes, File classesDir,
+      Collection<File> textFiles) throws IOException {
+    Set<String> roots = Sets.newHashSet();
+    for (String componentType : componentTypes) {
+      roots.add(getComponentClassName(componentType));
+    }
+    for (String className : references.keySet()) {
+      if (!className.startsWith(RUNTIME_PACKAGE)) {
+        roots.add(className);
+      }
+    }
+    if (classesDir != null) {
+      addClassFileReferences(classesDir, roots);
+    }
+    for (File textFile : textFiles) {
+      addNames(Files.toString(textFile, Charsets.UTF_8), references.keySet(), roots);
+    }
+
+    Set<String> reachable = Sets.newHashSet();
+    Deque<String> pending = new ArrayDeque<String>();
+    for (String root : roots) {
+      if (references.containsKey(root) && reachable.add(root)) {
+        pending.add(root);
+      }
+    }
+    while (!pending.isEmpty()) {
+      for (String className : references.get(pending.remove())) {
+        if (reachable.add(className)) {
+          pending.add(className);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  /**
+   * Writes a copy of the runtime jar that only has the given classes, and every file that is not
+   * a class, to the given file. The copy of a jar only depends on the classes it has, so that it
+   * is dexed once by the dex cache no matter how many projects need the same classes.
+   *
+   * @return  the number of classes removed
+   */
+  int writeJar(Set<String> classesToKeep, File outputJar) throws IOException {
+    int removed = 0;
+    ZipFile zip = new ZipFile(runtimeJar);
+    try {
+      ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outputJar));
+      try {
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+          ZipEntry entry = e.nextElement();
+          String className = getClassName(entry.getName());
+          if (className != null && !classesToKeep.contains(className)) {
+            removed++;
+            continue;
+          }
+          ZipEntry copy = new ZipEntry(entry.getName());
+          copy.setTime(entry.getTime());
+          out.putNextEntry(copy);
+          InputStream in = zip.getInputStream(entry);
+          try {
+            ByteStreams.copy(in, out);
+          } finally {
+            in.close();
+          }
+          out.closeEntry();
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      zip.close();
+    }
+    return removed;
+  }
+
+  /*
+   * Returns the internal name of the class in the given jar entry, or null if it is not a class.
+   */
+  private static String getClassName(String entryName) {
+    return entryName.endsWith(CLASS_SUFFIX)
+        ? entryName.substring(0, entryName.length() - CLASS_SUFFIX.length())
+        : null;
+  }
+
+  /*
+   * Adds the runtime classes that the class files in the given directory, and its
+   * subdirectories, refer to.
+   */
+  private void addClassFileReferences(File directory, Set<String> names) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addClassFileReferences(file, names);
+      } else if (file.getName().endsWith(CLASS_SUFFIX)) {
+        names.addAll(getReferences(Files.toByteArray(file), references.keySet()));
+      }
+    }
+  }
+
+  /**
+   * Returns the names of the given classes that the constant pool of the given class file names.
+   *
+   * @throws IOException  if the class file can not be parsed
+   */
+  @VisibleForTesting
+  static Set<String> getReferences(byte[] classFile, Set<String> classNames) throws IOException {
+    Set<String> names = Sets.newHashSet();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (in.readInt() != CLASS_FILE_MAGIC) {
+      throw new IOException("Not a class file");
+    }
+    in.readUnsignedShort();  // minor_version
+    in.readUnsignedShort();  // major_version
+    int constantPoolCount = in.readUnsignedShort();
+    // Class names, descriptors, signatures and string constants are all Utf8 constants, so the
+    // other constants are skipped.
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1:  // Utf8
+          addNames(in.readUTF(), classNames, names);
+          break;
+        case 7:  // Class
+        case 8:  // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          in.skipBytes(2);
+          break;
+        case 15:  // MethodHandle
+          in.skipBytes(3);
+          break;
+        case 3:  // Integer
+        case 4:  // Float
+        case 9:  // Fieldref
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          in.skipBytes(4);
+          break;
+        case 5:  // Long
+        case 6:  // Double
+          in.skipBytes(8);
+          i++;  // Takes two entries
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    return names;
+  }
+
+  /*
+   * Adds the names of the given classes that appear in the given text, either as internal names
+   * (com/x/Y), in type descriptors (Lcom/x/Y;) or as binary names (com.x.Y).
+   */
+  private static void addNames(String text, Set<String> classNames, Set<String> names) {
+    int length = text.length();
+    int start = 0;
+    while (start < length) {
+      while (start < length && !isNameChar(text.charAt(start))) {
+        start++;
+      }
+      int end = start;
+      while (end < length && isNameChar(text.charAt(end))) {
+        end++;
+      }
+      if (end > start) {
+        String name = text.substring(start, end).replace('.', '/');
+        if (classNames.contains(name)) {
+          names.add(name);
+        } else if (name.charAt(0) == 'L' && classNames.contains(name.substring(1))) {
+          names.add(name.substring(1));
+        }
+      }
+      start = end;
+    }
+  }
+
+  private static boolean isNameChar(char c) {
+    return Character.isJavaIdentifierPart(c) || c == '/' || c == '.';
+  }
+}
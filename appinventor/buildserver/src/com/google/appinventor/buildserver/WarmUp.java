@@ -0,0 +1,145 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Prepares a newly started build server, so that its first builds are as fast as later ones.
+ *
+ * <p>Warming up extracts every resource that builds use, pre-dexes the runtime libraries into the
+ * dex cache and then builds a small sample project, which loads and runs every phase of a build
+ * once. The build server reports that it is not healthy until the warm-up is over, so that a load
+ * balancer does not send it builds during a rolling restart. It still accepts the builds it is
+ * sent, which wait for whatever they need.
+ */
+final class WarmUp {
+  // The user name of the sample builds, which names the keystore that is created for them.
+  private static final String USER_NAME = "warmup";
+
+  // The sample project, as entry name and contents pairs: one screen with a button.
+  @VisibleForTesting
+  static final String[] SAMPLE_PROJECT = {
+    "youngandroidproject/project.properties",
+    "main=appinventor.ai_warmup.WarmUp.Screen1\n"
+        + "name=WarmUp\n"
+        + "assets=../assets\n"
+        + "source=../src\n"
+        + "build=../build\n"
+        + "versioncode=1\n"
+        + "versionname=1.0\n"
+        + "useslocation=False\n",
+    "src/appinventor/ai_warmup/WarmUp/Screen1.scm",
+    "#|\n$JSON\n"
+        + "{\"YaVersion\":\"76\",\"Source\":\"Form\",\"Properties\":{\"$Name\":\"Screen1\","
+        + "\"$Type\":\"Form\",\"$Version\":\"10\",\"Uuid\":\"0\",\"Title\":\"Screen1\","
+        + "\"$Components\":[{\"$Name\":\"Button1\",\"$Type\":\"Button\",\"$Version\":\"6\","
+        + "\"Uuid\":\"1\",\"Text\":\"Warm up\"}]}}\n|#\n",
+    "src/appinventor/ai_warmup/WarmUp/Screen1.bky",
+    "<xml xmlns=\"http://www.w3.org/1999/xhtml\"></xml>\n",
+  };
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(WarmUp.class.getName());
+
+  private WarmUp() {
+  }
+
+  /**
+   * Warms up the build server. Failures are logged, and do not stop the rest of the warm-up.
+   *
+   * @param sampleBuilds  how many times to build the sample project
+   * @param childProcessRamMb  maximum ram that can be used by a child process, in MB
+   * @param dexCacheDir  the directory of the dex cache, or {@code null}
+   * @return  {@code true} if every step succeeded
+   */
+  static boolean run(int sampleBuilds, int childProcessRamMb, String dexCacheDir) {
+    long start = System.currentTimeMillis();
+    boolean succeeded = true;
+
+    try {
+      int resourceCount = Compiler.warmUpResources();
+      LOG.info("Warm-up: extracted " + resourceCount + " resources");
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Warm-up: unable to extract resources", e);
+      succeeded = false;
+    }
+
+    if (dexCacheDir != null) {
+      try {
+        if (Compiler.preDexRuntimeLibraries(dexCacheDir, childProcessRamMb)) {
+          LOG.info("Warm-up: pre-dexed runtime libraries");
+        } else {
+          LOG.warning("Warm-up: unable to pre-dex some runtime libraries");
+          succeeded = false;
+        }
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Warm-up: unable to pre-dex runtime libraries", e);
+        succeeded = false;
+      }
+    }
+
+    for (int i = 0; i < sampleBuilds; i++) {
+      if (!buildSampleProject(childProcessRamMb, dexCacheDir)) {
+        succeeded = false;
+      }
+    }
+
+    LOG.info("Warm-up " + (succeeded ? "finished" : "finished with errors") + " in "
+        + (System.currentTimeMillis() - start) + " ms");
+    return succeeded;
+  }
+
+  private static boolean buildSampleProject(int childProcessRamMb, String dexCacheDir) {
+    BuildJob job = null;
+    try {
+      File inputZip = File.createTempFile("warmup", ".zip");
+      writeSampleProject(inputZip);
+      job = new BuildJob(inputZip);
+      Result result = job.build(USER_NAME, false, childProcessRamMb, dexCacheDir);
+      if (!result.succeeded()) {
+        LOG.warning("Warm-up: the sample build failed: " + result.getOutput() + " "
+            + result.getError());
+        return false;
+      }
+      LOG.info("Warm-up: built the sample project: " + job.getTimings());
+      return true;
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Warm-up: unable to build the sample project", e);
+      return false;
+    } finally {
+      if (job != null) {
+        job.cleanUp();
+      }
+    }
+  }
+
+  /**
+   * Writes the sample project to the given zip file, as the App Inventor server sends projects.
+   */
+  @VisibleForTesting
+  static void writeSampleProject(File zipFile) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      for (int i = 0; i < SAMPLE_PROJECT.length; i += 2) {
+        zip.putNextEntry(new ZipEntry(SAMPLE_PROJECT[i]));
+        zip.write(SAMPLE_PROJECT[i + 1].getBytes(Charsets.UTF_8));
+        zip.closeEntry();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+}
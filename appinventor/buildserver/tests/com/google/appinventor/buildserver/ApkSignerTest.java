@@ -0,0 +1,247 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkSigner class.
+ *
+ */
+public class ApkSignerTest extends TestCase {
+  private File directory;
+  private File keystoreFile;
+  private File unsignedApk;
+  private File signedApk;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    keystoreFile = new File(directory, "android.keystore");
+    new KeystorePool(0).createKeyStore("CN=\"user\", O=AppInventor for Android, C=US",
+        keystoreFile);
+    unsignedApk = new File(directory, "unsigned.apk");
+    signedApk = new File(directory, "signed.apk");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private void writeUnsignedApk() throws Exception {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(unsignedApk));
+    try {
+      addEntry(zip, "AndroidManifest.xml", "manifest", ZipEntry.DEFLATED);
+      addEntry(zip, "res/", "", ZipEntry.STORED);
+      // Uncompressed entries whose names put their data at every offset modulo 4.
+      addEntry(zip, "res/a.png", "png1", ZipEntry.STORED);
+      addEntry(zip, "res/ab.png", "png22", ZipEntry.STORED);
+      addEntry(zip, "res/abc.png", "png333", ZipEntry.STORED);
+      addEntry(zip, "res/abcd.png", "png4444", ZipEntry.STORED);
+      addEntry(zip, "assets/a file with a name that is too long for one line of a manifest.txt",
+          "long name", ZipEntry.DEFLATED);
+      addEntry(zip, "classes.dex", "dex", ZipEntry.DEFLATED);
+      // An old signature, which is replaced.
+      addEntry(zip, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n", ZipEntry.DEFLATED);
+      addEntry(zip, "META-INF/CERT.SF", "old", ZipEntry.DEFLATED);
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static void addEntry(ZipOutputStream zip, String name, String contents, int method)
+      throws Exception {
+    byte[] bytes = contents.getBytes(Charsets.UTF_8);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      entry.setSize(bytes.length);
+      entry.setCompressedSize(bytes.length);
+      entry.setCrc(crc.getValue());
+    }
+    zip.putNextEntry(entry);
+    zip.write(bytes);
+    zip.closeEntry();
+  }
+
+  private static byte[] read(ZipFile zip, String name) throws Exception {
+    return ByteStreams.toByteArray(zip.getInputStream(zip.getEntry(name)));
+  }
+
+  private static String digest(byte[] bytes) throws Exception {
+    return BaseEncoding.base64().encode(MessageDigest.getInstance("SHA1").digest(bytes));
+  }
+
+  public void testSignatureVerifies() throws Exception {
+    writeUnsignedApk();
+    ApkSigner.fromKeyStore(keystoreFile, "AndroidKey", "android")
+        .signAndAlign(unsignedApk, signedApk);
+
+    ZipFile zip = new ZipFile(signedApk);
+    try {
+      assertNull(zip.getEntry("META-INF/CERT.SF"));
+      byte[] manifestBytes = read(zip, "META-INF/MANIFEST.MF");
+      byte[] signatureFileBytes = read(zip, "META-INF/ANDROIDK.SF");
+      byte[] signatureBlockBytes = read(zip, "META-INF/ANDROIDK.RSA");
+
+      // The manifest has the digest of every file.
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      assertEquals(7, manifest.getEntries().size());
+      for (ZipEntry entry : Collections.list(zip.entries())) {
+        if (!entry.isDirectory() && !entry.getName().startsWith("META-INF/")) {
+          Attributes attributes = manifest.getAttributes(entry.getName());
+          assertNotNull(entry.getName(), attributes);
+          assertEquals(digest(read(zip, entry.getName())), attributes.getValue("SHA1-Digest"));
+        }
+      }
+
+      // The signature file has the digest of the manifest and of each of its sections.
+      Manifest signatureFile = new Manifest(new ByteArrayInputStream(signatureFileBytes));
+      assertEquals(digest(manifestBytes),
+          signatureFile.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+      String manifestText = new String(manifestBytes, Charsets.UTF_8);
+      List<String> sections = Arrays.asList(manifestText.split("(?<=\r\n\r\n)"));
+      assertEquals(8, sections.size());
+      for (String section : sections.subList(1, sections.size())) {
+        String name = new Manifest(new ByteArrayInputStream(
+            ("Manifest-Version: 1.0\r\n\r\n" + section).getBytes(Charsets.UTF_8)))
+            .getEntries().keySet().iterator().next();
+        assertEquals(digest(section.getBytes(Charsets.UTF_8)),
+            signatureFile.getAttributes(name).getValue("SHA1-Digest"));
+      }
+
+      // The signature block is a valid signature of the signature file.
+      KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      keyStore.load(new FileInputStream(keystoreFile), "android".toCharArray());
+      X509Certificate certificate = (X509Certificate) keyStore.getCertificate("AndroidKey");
+      CMSSignedData signedData =
+          new CMSSignedData(new CMSProcessableByteArray(signatureFileBytes), signatureBlockBytes);
+      SignerInformation signer =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testSignatureFilesComeFirst() throws Exception {
+    writeUnsignedApk();
+    ApkSigner.fromKeyStore(keystoreFile, "AndroidKey", "android")
+        .signAndAlign(unsignedApk, signedApk);
+
+    // As in jarsigner, the manifest is the first entry, followed by the signature files, so that
+    // readers that stream the APK find them.
+    ZipInputStream zip = new ZipInputStream(new FileInputStream(signedApk));
+    try {
+      assertEquals("META-INF/MANIFEST.MF", zip.getNextEntry().getName());
+      assertEquals("META-INF/ANDROIDK.SF", zip.getNextEntry().getName());
+      assertEquals("META-INF/ANDROIDK.RSA", zip.getNextEntry().getName());
+      assertEquals("AndroidManifest.xml", zip.getNextEntry().getName());
+    } finally {
+      zip.close();
+    }
+    JarInputStream jar = new JarInputStream(new FileInputStream(signedApk));
+    try {
+      assertNotNull(jar.getManifest());
+    } finally {
+      jar.close();
+    }
+  }
+
+  public void testUncompressedEntriesAreAligned() throws Exception {
+    writeUnsignedApk();
+    ApkSigner.fromKeyStore(keystoreFile, "AndroidKey", "android")
+        .signAndAlign(unsignedApk, signedApk);
+
+    RandomAccessFile file = new RandomAccessFile(signedApk, "r");
+    try {
+      // Find the central directory from the end of central directory record, which has no
+      // comment.
+      file.seek(file.length() - 22);
+      assertEquals(0x06054b50, readInt(file));
+      file.seek(file.length() - 22 + 10);
+      int entryCount = readShort(file);
+      file.seek(file.length() - 22 + 16);
+      long centralDirectory = readInt(file);
+      int storedCount = 0;
+      for (int i = 0; i < entryCount; i++) {
+        file.seek(centralDirectory);
+        assertEquals(0x02014b50, readInt(file));
+        file.seek(centralDirectory + 10);
+        int method = readShort(file);
+        file.seek(centralDirectory + 28);
+        int nameLength = readShort(file);
+        int extraLength = readShort(file);
+        int commentLength = readShort(file);
+        file.seek(centralDirectory + 42);
+        long localHeader = readInt(file);
+        file.seek(localHeader + 26);
+        long dataOffset = localHeader + 30 + readShort(file) + readShort(file);
+        if (method == ZipEntry.STORED) {
+          assertEquals(0, dataOffset % 4);
+          storedCount++;
+        }
+        centralDirectory += 46 + nameLength + extraLength + commentLength;
+      }
+      assertEquals(5, storedCount);
+    } finally {
+      file.close();
+    }
+
+    // The contents are unchanged.
+    ZipFile zip = new ZipFile(signedApk);
+    try {
+      assertEquals("png333", new String(read(zip, "res/abc.png"), Charsets.UTF_8));
+      assertEquals("dex", new String(read(zip, "classes.dex"), Charsets.UTF_8));
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static int readShort(RandomAccessFile file) throws Exception {
+    return file.read() | (file.read() << 8);
+  }
+
+  private static long readInt(RandomAccessFile file) throws Exception {
+    return readShort(file) | ((long) readShort(file) << 16);
+  }
+}
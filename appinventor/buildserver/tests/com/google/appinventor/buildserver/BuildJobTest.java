@@ -0,0 +1,74 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildJob class.
+ *
+ */
+public class BuildJobTest extends TestCase {
+  private File savedWorkDirectory;
+  private File workDirectory;
+
+  @Override
+  protected void setUp() throws Exception {
+    savedWorkDirectory = BuildJob.getWorkDirectory();
+    workDirectory = Files.createTempDir();
+    BuildJob.setWorkDirectory(workDirectory);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildJob.setWorkDirectory(savedWorkDirectory);
+    FileUtils.deleteDirectory(workDirectory);
+  }
+
+  private static File createInputZip() throws Exception {
+    File inputZip = File.createTempFile("input", ".zip");
+    Files.write("zip", inputZip, Charsets.UTF_8);
+    return inputZip;
+  }
+
+  public void testCleanUpDeletesJobFiles() throws Exception {
+    File inputZip = createInputZip();
+    BuildJob job = new BuildJob(inputZip);
+    File output = new File(job.getOutputDirectory(), "output.apk");
+    Files.write("apk", output, Charsets.UTF_8);
+
+    File detached = job.detach(output);
+    job.cleanUp();
+    assertFalse(inputZip.exists());
+    assertFalse(output.exists());
+    assertEquals(0, workDirectory.listFiles().length);
+    assertTrue(detached.exists());
+    detached.delete();
+  }
+
+  public void testReaperOnlyDeletesOrphanedJobDirectories() throws Exception {
+    BuildJob job = new BuildJob(createInputZip());
+    File orphan = new File(workDirectory, "job-orphan");
+    orphan.mkdirs();
+    Files.write("leftover", new File(orphan, "leftover"), Charsets.UTF_8);
+    File other = new File(workDirectory, "other");
+    other.mkdirs();
+
+    assertEquals(0, BuildJob.reapOrphanedJobDirectories(60 * 60 * 1000));
+    assertEquals(1, BuildJob.reapOrphanedJobDirectories(0));
+    assertFalse(orphan.exists());
+    assertTrue(other.exists());
+    assertTrue(job.getOutputDirectory().exists());
+    job.cleanUp();
+  }
+}
@@ -0,0 +1,124 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildProgress class.
+ *
+ */
+public class BuildProgressTest extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    BuildProgress.setMaxWaiters(Integer.MAX_VALUE);
+  }
+
+  public void testRegisteredBuildsAreFoundById() {
+    BuildProgress first = new BuildProgress();
+    BuildProgress second = new BuildProgress();
+    assertFalse(first.getId().equals(second.getId()));
+    assertNull(BuildProgress.get(first.getId()));
+
+    BuildProgress.register(first);
+    BuildProgress.register(second);
+    assertSame(first, BuildProgress.get(first.getId()));
+    assertSame(second, BuildProgress.get(second.getId()));
+    assertSame(second, BuildProgress.getLatest());
+  }
+
+  public void testUnregisteredBuildsAreForgotten() {
+    BuildProgress progress = new BuildProgress();
+    BuildProgress.register(progress);
+    BuildProgress.unregister(progress);
+    assertNull(BuildProgress.get(progress.getId()));
+    assertNull(BuildProgress.getLatest());
+  }
+
+  public void testEachBuildHasItsOwnProgress() {
+    BuildProgress first = new BuildProgress();
+    BuildProgress second = new BuildProgress();
+    assertEquals(BuildProgress.INITIAL_PERCENT, first.get());
+    first.set(50);
+    second.set(90);
+    assertEquals(50, first.get());
+    assertEquals(90, second.get());
+  }
+
+  public void testAwaitChangeTimesOut() throws Exception {
+    BuildProgress progress = new BuildProgress();
+    long start = System.currentTimeMillis();
+    assertFalse(progress.awaitChange(BuildProgress.INITIAL_PERCENT, 50));
+    assertTrue(System.currentTimeMillis() - start >= 50);
+    // A client that has not seen the current progress does not wait.
+    assertTrue(progress.awaitChange(0, 60000));
+  }
+
+  public void testAwaitChangeWakesUpOnProgressAndFinish() throws Exception {
+    final BuildProgress progress = new BuildProgress();
+    Thread builder = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+          progress.set(35);
+          Thread.sleep(50);
+          progress.finish();
+        } catch (InterruptedException e) {
+          // Ends the test early.
+        }
+      }
+    };
+    builder.start();
+    assertTrue(progress.awaitChange(BuildProgress.INITIAL_PERCENT, 60000));
+    assertEquals(35, progress.get());
+    assertTrue(progress.awaitChange(35, 60000));
+    assertTrue(progress.isFinished());
+    builder.join();
+  }
+
+  public void testWaitersPastTheLimitDoNotWait() throws Exception {
+    BuildProgress.setMaxWaiters(1);
+    final BuildProgress progress = new BuildProgress();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          progress.awaitChange(BuildProgress.INITIAL_PERCENT, 60000);
+        } catch (InterruptedException e) {
+          // Ends the test early.
+        }
+      }
+    };
+    waiter.start();
+    while (BuildProgress.getWaiterCount() == 0) {
+      Thread.sleep(10);
+    }
+
+    // The only waiter slot is taken, so this client is answered right away.
+    long start = System.currentTimeMillis();
+    assertFalse(progress.awaitChange(BuildProgress.INITIAL_PERCENT, 60000));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertEquals(1, BuildProgress.getWaiterCount());
+
+    progress.set(50);
+    waiter.join();
+    assertEquals(0, BuildProgress.getWaiterCount());
+    // The slot is free again.
+    assertFalse(progress.awaitChange(50, 50));
+  }
+
+  public void testFinishedBuildsAreRemoved() {
+    BuildProgress running = new BuildProgress();
+    BuildProgress finished = new BuildProgress();
+    BuildProgress.register(running);
+    BuildProgress.register(finished);
+    finished.finish();
+    BuildProgress.removeFinished(0);
+    assertSame(running, BuildProgress.get(running.getId()));
+    assertNull(BuildProgress.get(finished.getId()));
+  }
+}
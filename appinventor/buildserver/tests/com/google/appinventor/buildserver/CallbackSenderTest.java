@@ -0,0 +1,131 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests CallbackSender class.
+ *
+ */
+public class CallbackSenderTest extends TestCase {
+  // A response code that makes the callback server close the connection without responding.
+  private static final int NO_RESPONSE = -1;
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+  private HttpServer callbackServer;
+  // The response codes that the callback server sends, in order. The last one is repeated.
+  private List<Integer> responseCodes;
+  // The bodies that the callback server received.
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+  private final CallbackSender.Body body = new CallbackSender.Body() {
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      out.write("results".getBytes(Charsets.UTF_8));
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    callbackServer = HttpServer.create(new InetSocketAddress(0), 0);
+    callbackServer.createContext("/callback", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        bodies.add(new String(ByteStreams.toByteArray(exchange.getRequestBody()),
+            Charsets.UTF_8));
+        int responseCode = responseCodes.get(Math.min(bodies.size(), responseCodes.size()) - 1);
+        if (responseCode != NO_RESPONSE) {
+          exchange.sendResponseHeaders(responseCode, -1);
+        }
+        exchange.close();
+      }
+    });
+    callbackServer.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    callbackServer.stop(0);
+  }
+
+  private URL getCallbackUrl() throws IOException {
+    return new URL("http://localhost:" + callbackServer.getAddress().getPort() + "/callback");
+  }
+
+  public void testSuccess() throws Exception {
+    responseCodes = Arrays.asList(HttpURLConnection.HTTP_OK);
+    CallbackSender sender = new CallbackSender(4, INITIAL_BACKOFF_MILLIS);
+    assertEquals(HttpURLConnection.HTTP_OK, sender.post(getCallbackUrl(), body));
+    assertEquals(Arrays.asList("results"), bodies);
+  }
+
+  public void testRetriesServerErrorsWithBackoff() throws Exception {
+    responseCodes = Arrays.asList(HttpURLConnection.HTTP_INTERNAL_ERROR,
+        HttpURLConnection.HTTP_UNAVAILABLE, HttpURLConnection.HTTP_BAD_GATEWAY,
+        HttpURLConnection.HTTP_OK);
+    CallbackSender sender = new CallbackSender(4, INITIAL_BACKOFF_MILLIS);
+    long start = System.currentTimeMillis();
+    assertEquals(HttpURLConnection.HTTP_OK, sender.post(getCallbackUrl(), body));
+    // The waits double: 100, 200 and 400 ms.
+    assertTrue(System.currentTimeMillis() - start >= 700);
+    // The body is sent again with each attempt.
+    assertEquals(Arrays.asList("results", "results", "results", "results"), bodies);
+  }
+
+  public void testRetriesIOErrors() throws Exception {
+    responseCodes = Arrays.asList(NO_RESPONSE, HttpURLConnection.HTTP_OK);
+    CallbackSender sender = new CallbackSender(4, INITIAL_BACKOFF_MILLIS);
+    assertEquals(HttpURLConnection.HTTP_OK, sender.post(getCallbackUrl(), body));
+    assertEquals(2, bodies.size());
+  }
+
+  public void testDoesNotRetryClientErrors() throws Exception {
+    responseCodes = Arrays.asList(HttpURLConnection.HTTP_NOT_FOUND, HttpURLConnection.HTTP_OK);
+    CallbackSender sender = new CallbackSender(4, INITIAL_BACKOFF_MILLIS);
+    assertEquals(HttpURLConnection.HTTP_NOT_FOUND, sender.post(getCallbackUrl(), body));
+    assertEquals(1, bodies.size());
+  }
+
+  public void testStopsAfterLastAttempt() throws Exception {
+    responseCodes = Arrays.asList(HttpURLConnection.HTTP_INTERNAL_ERROR);
+    CallbackSender sender = new CallbackSender(3, INITIAL_BACKOFF_MILLIS);
+    assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, sender.post(getCallbackUrl(), body));
+    assertEquals(3, bodies.size());
+  }
+
+  public void testThrowsLastIOError() throws Exception {
+    // Nothing listens on a port that was just freed.
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    CallbackSender sender = new CallbackSender(2, INITIAL_BACKOFF_MILLIS);
+    try {
+      sender.post(new URL("http://localhost:" + port + "/callback"), body);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,49 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ComponentBuildInfo class.
+ *
+ */
+public class ComponentBuildInfoTest extends TestCase {
+  private static final String BUILD_INFO = "["
+      + "{\"name\":\"Twitter\",\"permissions\":[\"android.permission.INTERNET\"],"
+      + "\"libraries\":[\"twitter4j.jar\",\"twitter4jmedia.jar\"],\"native\":[],\"assets\":[]},"
+      + "{\"name\":\"Ev3Motors\",\"permissions\":[\"android.permission.BLUETOOTH\"],"
+      + "\"libraries\":[],\"native\":[\"libev3.so\",\"libev3.so-v7a\"],"
+      + "\"assets\":[\"ev3.png\"]},"
+      + "{\"name\":\"Web\",\"permissions\":[\"android.permission.INTERNET\"],"
+      + "\"libraries\":[\"httpcore-4.3.2.jar\",\"twitter4j.jar\"],\"native\":[],\"assets\":[]}"
+      + "]";
+
+  public void testPerComponentInfo() throws Exception {
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.parse(BUILD_INFO);
+    assertEquals(ImmutableSet.of("android.permission.INTERNET"),
+        buildInfo.getPermissions("Twitter"));
+    assertEquals(ImmutableSet.of("twitter4j.jar", "twitter4jmedia.jar"),
+        buildInfo.getLibraries("Twitter"));
+    assertEquals(ImmutableSet.of("libev3.so", "libev3.so-v7a"),
+        buildInfo.getNativeLibraries("Ev3Motors"));
+    assertEquals(ImmutableSet.of("ev3.png"), buildInfo.getAssets("Ev3Motors"));
+    assertTrue(buildInfo.getAssets("Twitter").isEmpty());
+    assertTrue(buildInfo.getPermissions("NoSuchComponent").isEmpty());
+  }
+
+  public void testAllInfoIsSortedWithoutDuplicates() throws Exception {
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.parse(BUILD_INFO);
+    assertEquals(ImmutableList.of("httpcore-4.3.2.jar", "twitter4j.jar", "twitter4jmedia.jar"),
+        ImmutableList.copyOf(buildInfo.getAllLibraries()));
+    assertEquals(ImmutableList.of("libev3.so", "libev3.so-v7a"),
+        ImmutableList.copyOf(buildInfo.getAllNativeLibraries()));
+    assertEquals(ImmutableList.of("ev3.png"), ImmutableList.copyOf(buildInfo.getAllAssets()));
+  }
+}
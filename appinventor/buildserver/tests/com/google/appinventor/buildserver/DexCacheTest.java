@@ -0,0 +1,162 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests DexCache class.
+ *
+ */
+public class DexCacheTest extends TestCase {
+  private File directory;
+
+  /*
+   * Writes a jar containing an empty classes.dex, counting how many times it is called.
+   */
+  private static class FakeDexer implements DexCache.Dexer {
+    final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public boolean dex(File input, File output) {
+      count.incrementAndGet();
+      try {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(output));
+        try {
+          zip.putNextEntry(new ZipEntry("classes.dex"));
+          zip.write(new byte[1024]);
+          zip.closeEntry();
+        } finally {
+          zip.close();
+        }
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private File createLibrary(String name, String contents) throws IOException {
+    File library = File.createTempFile(name, ".jar");
+    library.deleteOnExit();
+    Files.write(contents, library, Charsets.UTF_8);
+    return library;
+  }
+
+  public void testSameContentsIsDexedOnce() throws Exception {
+    DexCache cache = new DexCache(directory);
+    FakeDexer dexer = new FakeDexer();
+    File library1 = createLibrary("library1", "contents");
+    File library2 = createLibrary("library2", "contents");
+
+    File entry1 = cache.get(library1, dexer);
+    File entry2 = cache.get(library2, dexer);
+    assertNotNull(entry1);
+    assertEquals(entry1, entry2);
+    assertEquals(1, dexer.count.get());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(entry1.length(), cache.getBytesWritten());
+
+    // Only the entry is left in the directory.
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  public void testFailedDexIsNotCached() throws Exception {
+    DexCache cache = new DexCache(directory);
+    File library = createLibrary("library", "contents");
+
+    assertNull(cache.get(library, new DexCache.Dexer() {
+      @Override
+      public boolean dex(File input, File output) {
+        return false;
+      }
+    }));
+    assertEquals(1, cache.getFailureCount());
+    assertEquals(0, directory.listFiles().length);
+
+    FakeDexer dexer = new FakeDexer();
+    assertNotNull(cache.get(library, dexer));
+    assertEquals(1, dexer.count.get());
+  }
+
+  public void testInvalidEntryIsReplaced() throws Exception {
+    File library = createLibrary("library", "contents");
+    File entry = new DexCache(directory).get(library, new FakeDexer());
+    Files.write("not a jar", entry, Charsets.UTF_8);
+
+    // A new cache, as in another build server, checks the entry before using it.
+    FakeDexer dexer = new FakeDexer();
+    DexCache cache = new DexCache(directory);
+    assertEquals(entry, cache.get(library, dexer));
+    assertEquals(1, dexer.count.get());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testInputHashesAreBounded() throws Exception {
+    DexCache cache = new DexCache(directory, 2);
+    FakeDexer dexer = new FakeDexer();
+    // Like the shrunk runtime of each build, the same library at a new path each time.
+    for (int i = 0; i < 5; i++) {
+      assertNotNull(cache.get(createLibrary("runtime" + i, "runtime"), dexer));
+    }
+    assertEquals(2, cache.getInputHashCount());
+    assertEquals(1, dexer.count.get());
+    assertEquals(4, cache.getHitCount());
+  }
+
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    DexCache cache = new DexCache(directory);
+    FakeDexer dexer = new FakeDexer();
+    File old = cache.get(createLibrary("old", "old"), dexer);
+    File recent = cache.get(createLibrary("recent", "recent"), dexer);
+    long now = System.currentTimeMillis();
+    old.setLastModified(now - 2 * FileCache.MIN_EVICTION_AGE_MILLIS);
+    recent.setLastModified(now - FileCache.MIN_EVICTION_AGE_MILLIS - 1000);
+
+    cache.setMaxBytes(old.length() + recent.length());
+    File newest = cache.get(createLibrary("newest", "newest"), dexer);
+    assertFalse(old.exists());
+    assertTrue(recent.exists());
+    assertTrue(newest.exists());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getEntryCount());
+  }
+
+  public void testRecentlyUsedEntriesAreNotEvicted() throws Exception {
+    DexCache cache = new DexCache(directory);
+    FakeDexer dexer = new FakeDexer();
+    cache.setMaxBytes(1);
+    File entry1 = cache.get(createLibrary("library1", "library1"), dexer);
+    File entry2 = cache.get(createLibrary("library2", "library2"), dexer);
+    assertTrue(entry1.exists());
+    assertTrue(entry2.exists());
+    assertEquals(0, cache.getEvictionCount());
+  }
+}
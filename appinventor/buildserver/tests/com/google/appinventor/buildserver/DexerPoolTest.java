@@ -0,0 +1,145 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests DexerPool class.
+ *
+ */
+public class DexerPoolTest extends TestCase {
+  private ExecutorService executor;
+  private final AtomicInteger createdCount = new AtomicInteger(0);
+  // Released to let a dexer that was asked to dex "fail" fail.
+  private final CountDownLatch failLatch = new CountDownLatch(1);
+  // Released to let a dexer that was asked to dex "hang" return.
+  private final CountDownLatch hangLatch = new CountDownLatch(1);
+  private volatile String[] lastDexerArgs;
+
+  /*
+   * Creates dexers that fail when the last argument is "fail", do not return until hangLatch is
+   * released when it is "hang", and succeed otherwise.
+   */
+  private final Callable<DexerPool.Dexer> dexerFactory = new Callable<DexerPool.Dexer>() {
+    @Override
+    public DexerPool.Dexer call() {
+      createdCount.incrementAndGet();
+      return new DexerPool.Dexer() {
+        @Override
+        public boolean dex(String[] dexerArgs) throws Exception {
+          lastDexerArgs = dexerArgs;
+          if (dexerArgs[dexerArgs.length - 1].equals("fail")) {
+            failLatch.await();
+            return false;
+          }
+          if (dexerArgs[dexerArgs.length - 1].equals("hang")) {
+            // Like a runaway dx run, this does not stop when interrupted.
+            Uninterruptibles.awaitUninterruptibly(hangLatch);
+          }
+          return true;
+        }
+      };
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Execution.setTimeoutMillis(0);
+    hangLatch.countDown();
+    executor.shutdownNow();
+  }
+
+  private Future<Boolean> dexLater(final DexerPool pool, final String input) {
+    return executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return pool.dex(Arrays.asList("--dex", "--output=classes.dex", input));
+      }
+    });
+  }
+
+  public void testReusesDexer() {
+    DexerPool pool = new DexerPool(1, dexerFactory);
+    List<String> dxArgs = Arrays.asList("--dex", "--output=classes.dex", "classes.jar");
+    assertTrue(pool.dex(dxArgs));
+    assertTrue(pool.dex(dxArgs));
+    assertEquals(1, createdCount.get());
+    // The dexer itself does not accept --dex.
+    assertEquals(Arrays.asList("--output=classes.dex", "classes.jar"),
+        Arrays.asList(lastDexerArgs));
+  }
+
+  public void testFailedDexWakesWaitingBuild() throws Exception {
+    DexerPool pool = new DexerPool(1, dexerFactory);
+    Future<Boolean> failing = dexLater(pool, "fail");
+    // Give the first build time to take the only dexer.
+    while (createdCount.get() == 0) {
+      Thread.sleep(10);
+    }
+    Future<Boolean> waiting = dexLater(pool, "classes.jar");
+    Thread.sleep(200);
+    assertFalse(waiting.isDone());
+
+    failLatch.countDown();
+    assertFalse(failing.get(10, TimeUnit.SECONDS));
+    // The failed dexer was dropped; the waiting build gets a new one.
+    assertTrue(waiting.get(10, TimeUnit.SECONDS));
+    assertEquals(2, createdCount.get());
+  }
+
+  public void testUnableToLoadDx() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger(0);
+    DexerPool pool = new DexerPool(1, new Callable<DexerPool.Dexer>() {
+      @Override
+      public DexerPool.Dexer call() throws Exception {
+        if (attempts.incrementAndGet() == 1) {
+          throw new ClassNotFoundException("com.android.dx.command.dexer.Main");
+        }
+        return dexerFactory.call();
+      }
+    });
+    List<String> dxArgs = Arrays.asList("--dex", "--output=classes.dex", "classes.jar");
+    assertFalse(pool.dex(dxArgs));
+    // The failed build gave its permit back, so the next build does not wait forever.
+    assertTrue(pool.dex(dxArgs));
+  }
+
+  public void testTimeout() throws Exception {
+    Execution.setTimeoutMillis(200);
+    DexerPool pool = new DexerPool(1, dexerFactory);
+    long start = System.currentTimeMillis();
+    assertFalse(pool.dex(Arrays.asList("--dex", "--output=classes.dex", "hang")));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+
+    // The abandoned run still holds the only permit, so the next build waits for it to end.
+    assertEquals(0, pool.getAvailablePermits());
+    Future<Boolean> waiting = dexLater(pool, "classes.jar");
+    Thread.sleep(200);
+    assertFalse(waiting.isDone());
+
+    hangLatch.countDown();
+    assertTrue(waiting.get(10, TimeUnit.SECONDS));
+    assertEquals(1, pool.getAvailablePermits());
+  }
+}
@@ -0,0 +1,84 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests Execution class.
+ *
+ */
+public class ExecutionTest extends TestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    Execution.setTimeoutMillis(0);
+  }
+
+  private static String[] sh(String script) {
+    return new String[] { "/bin/sh", "-c", script };
+  }
+
+  public void testCapturesOutputAndExitCode() throws Exception {
+    StringBuffer out = new StringBuffer();
+    StringBuffer err = new StringBuffer();
+    assertEquals(3, Execution.execute(null, sh("echo out; echo err >&2; exit 3"), out, err));
+    assertEquals("out\n", out.toString());
+    assertEquals("err\n", err.toString());
+
+    Execution.ToolStats stats = Execution.getToolStats().get("sh");
+    assertTrue(stats.getRuns() >= 1);
+    assertTrue(stats.getFailures() >= 1);
+    assertEquals(0, Execution.getRunningCount());
+  }
+
+  public void testRedirectsToPrintStreams() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertTrue(Execution.execute(null, sh("echo line1; echo line2"), new PrintStream(out),
+        new PrintStream(err)));
+    assertEquals("line1\nline2\n", out.toString());
+    assertFalse(Execution.execute(null, sh("exit 1"), new PrintStream(out),
+        new PrintStream(err)));
+  }
+
+  public void testKeepsTheEndOfLongErrorOutput() throws Exception {
+    StringBuffer out = new StringBuffer();
+    StringBuffer err = new StringBuffer();
+    assertEquals(0, Execution.execute(null,
+        sh("i=0; while [ $i -lt 20000 ]; do echo line $i; i=$((i+1)); done >&2; echo last >&2"),
+        out, err));
+    assertTrue(err.toString().startsWith("["));
+    assertTrue(err.toString().endsWith("line 19999\nlast\n"));
+    assertTrue(err.length() < Execution.MAX_CAPTURED_ERROR_CHARS + 100);
+  }
+
+  public void testTimeoutKillsProcessTree() throws Exception {
+    Execution.setTimeoutMillis(500);
+    StringBuffer out = new StringBuffer();
+    StringBuffer err = new StringBuffer();
+    long start = System.currentTimeMillis();
+    // The background sleep keeps the output open, so the command only returns this soon if it is
+    // killed too.
+    int exitCode = Execution.execute(null, sh("sleep 30 & sleep 30"), out, err);
+    assertTrue(System.currentTimeMillis() - start < 4000);
+    assertFalse(exitCode == 0);
+    assertTrue(err.toString().contains("sh timed out after"));
+    assertTrue(Execution.getToolStats().get("sh").getTimeouts() >= 1);
+  }
+
+  public void testGetToolName() {
+    assertEquals("aapt", Execution.getToolName(new String[] { "/sdk/tools/linux/aapt", "p" }));
+    assertEquals("zipalign", Execution.getToolName(new String[] { "C:\\sdk\\zipalign.exe" }));
+    assertEquals("dx", Execution.getToolName(
+        new String[] { "/jre/bin/java", "-mx1024M", "-jar", "/tmp/dx.jar", "--dex" }));
+    assertEquals("kawa-repl", Execution.getToolName(
+        new String[] { "/jre/bin/java", "-cp", "a.jar:b.jar", "-mx1024M", "kawa.repl", "-C" }));
+  }
+}
@@ -0,0 +1,93 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests FileCache class.
+ *
+ */
+public class FileCacheTest extends TestCase {
+  private File directory;
+
+  /*
+   * Writes a zip file containing one entry with the given name.
+   */
+  private static class ZipWriter implements FileCache.EntryWriter {
+    private final String entryName;
+
+    ZipWriter(String entryName) {
+      this.entryName = entryName;
+    }
+
+    @Override
+    public boolean write(File output) throws IOException {
+      ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(output));
+      try {
+        zip.putNextEntry(new ZipEntry(entryName));
+        zip.write(entryName.getBytes(Charsets.UTF_8));
+        zip.closeEntry();
+      } finally {
+        zip.close();
+      }
+      return true;
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testGetIfPresentAndPut() throws Exception {
+    FileCache cache = new FileCache(directory, "test-", ".zip", null);
+    assertNull(cache.getIfPresent("key"));
+    assertEquals(1, cache.getMissCount());
+
+    File entry = cache.put("key", new ZipWriter("a"));
+    assertEquals(new File(directory, "test-key.zip"), entry);
+    assertEquals(entry, cache.getIfPresent("key"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getEntryCount());
+  }
+
+  public void testEntryMustContainRequiredZipEntry() throws Exception {
+    FileCache cache = new FileCache(directory, "test-", ".zip", "required");
+    assertNull(cache.put("key", new ZipWriter("other")));
+    assertEquals(1, cache.getFailureCount());
+    assertNull(cache.getIfPresent("key"));
+
+    assertNotNull(cache.put("key", new ZipWriter("required")));
+    assertNotNull(cache.getIfPresent("key"));
+  }
+
+  public void testOtherFilesAreIgnored() throws Exception {
+    Files.write("other", new File(directory, "other.txt"), Charsets.UTF_8);
+    FileCache cache = new FileCache(directory, "test-", ".zip", null);
+    cache.setMaxBytes(1);
+    cache.put("key", new ZipWriter("a"));
+    assertEquals(1, cache.getEntryCount());
+    assertTrue(new File(directory, "other.txt").exists());
+  }
+}
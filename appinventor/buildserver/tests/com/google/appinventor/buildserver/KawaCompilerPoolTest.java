@@ -0,0 +1,192 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KawaCompilerPool class.
+ *
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  // Large enough for the fake daemon, which the pool starts with 200 MB less.
+  private static final int CHILD_PROCESS_RAM_MB = 328;
+
+  /**
+   * Stands in for {@link KawaCompilerDaemon}, speaking the same protocol. A request whose first
+   * source file is named "fail-N" fails after N ms, after which the daemon exits, and one named
+   * "hang" never gets a reply. Other requests succeed. The output of each request tells how many
+   * requests the daemon has handled.
+   */
+  public static final class FakeDaemon {
+    public static void main(String[] args) throws Exception {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+      out.writeBoolean(true);
+      out.flush();
+      boolean success = true;
+      for (int requests = 1; success; requests++) {
+        try {
+          in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        in.readUTF();
+        String[] sourceFileNames = new String[in.readInt()];
+        for (int i = 0; i < sourceFileNames.length; i++) {
+          sourceFileNames[i] = in.readUTF();
+        }
+        if (sourceFileNames[0].equals("hang")) {
+          Thread.sleep(Long.MAX_VALUE);
+        }
+        if (sourceFileNames[0].startsWith("fail-")) {
+          Thread.sleep(Long.parseLong(sourceFileNames[0].substring("fail-".length())));
+          success = false;
+        }
+        out.writeBoolean(success);
+        writeString(out, "request " + requests);
+        writeString(out, "");
+        out.flush();
+      }
+      System.exit(0);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+      byte[] bytes = string.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private File directory;
+  private String classpath;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    classpath = System.getProperty("java.class.path");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Execution.setTimeoutMillis(0);
+    executor.shutdownNow();
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /*
+   * The result of a compilation and what it wrote to standard output and standard error.
+   */
+  private static class Compilation {
+    Boolean success;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+  }
+
+  private Compilation compile(KawaCompilerPool pool, String sourceFileName) {
+    Compilation compilation = new Compilation();
+    compilation.success = pool.compile(classpath, "runtime.scm", directory, "com.example",
+        Arrays.asList(sourceFileName), new PrintStream(compilation.out, true),
+        new PrintStream(compilation.err, true));
+    return compilation;
+  }
+
+  private Future<Compilation> compileLater(final KawaCompilerPool pool,
+      final String sourceFileName) {
+    return executor.submit(new Callable<Compilation>() {
+      @Override
+      public Compilation call() {
+        return compile(pool, sourceFileName);
+      }
+    });
+  }
+
+  public void testRecycle() throws Exception {
+    KawaCompilerPool pool =
+        new KawaCompilerPool(1, CHILD_PROCESS_RAM_MB, FakeDaemon.class, 2);
+    assertEquals("request 1", compile(pool, "Screen1.yail").out.toString("UTF-8"));
+    assertEquals("request 2", compile(pool, "Screen1.yail").out.toString("UTF-8"));
+    // The daemon has compiled as many projects as it may, so a new one is started.
+    Compilation compilation = compile(pool, "Screen1.yail");
+    assertEquals(Boolean.TRUE, compilation.success);
+    assertEquals("request 1", compilation.out.toString("UTF-8"));
+    assertEquals(2, pool.getStartedCount());
+  }
+
+  public void testFailedCompilationWakesWaitingBuild() throws Exception {
+    KawaCompilerPool pool =
+        new KawaCompilerPool(1, CHILD_PROCESS_RAM_MB, FakeDaemon.class, 100);
+    Future<Compilation> failing = compileLater(pool, "fail-1000");
+    // Give the first build time to take the only daemon.
+    Thread.sleep(300);
+    Future<Compilation> waiting = compileLater(pool, "Screen1.yail");
+
+    assertEquals(Boolean.FALSE, failing.get(30, TimeUnit.SECONDS).success);
+    // The failed daemon exits; the waiting build gets a new one.
+    Compilation compilation = waiting.get(30, TimeUnit.SECONDS);
+    assertEquals(Boolean.TRUE, compilation.success);
+    assertEquals("request 1", compilation.out.toString("UTF-8"));
+    assertEquals(2, pool.getStartedCount());
+  }
+
+  public void testTimeout() throws Exception {
+    Execution.setTimeoutMillis(3000);
+    KawaCompilerPool pool =
+        new KawaCompilerPool(1, CHILD_PROCESS_RAM_MB, FakeDaemon.class, 100);
+    Compilation compilation = compile(pool, "hang");
+    assertEquals(Boolean.FALSE, compilation.success);
+    assertTrue(compilation.err.toString("UTF-8").contains("timed out"));
+
+    // The hung daemon was killed and is replaced.
+    assertEquals(Boolean.TRUE, compile(pool, "Screen1.yail").success);
+    assertEquals(2, pool.getStartedCount());
+  }
+
+  public void testDaemonCapturesOutputOfEachCompilation() throws Exception {
+    File runtime = new File(directory, "runtime.scm");
+    Files.write("(define (runtime-ready) #t)\n", runtime, Charsets.UTF_8);
+    File source = new File(directory, "Screen1.scm");
+    Files.write("(define (f) undefined-var)\n", source, Charsets.UTF_8);
+    KawaCompilerPool pool =
+        new KawaCompilerPool(1, CHILD_PROCESS_RAM_MB, KawaCompilerDaemon.class, 100);
+    // Kawa keeps its output ports between compilations, so check that the second compilation
+    // is captured as well as the first.
+    for (int i = 0; i < 2; i++) {
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      assertEquals(Boolean.TRUE, pool.compile(classpath, runtime.getAbsolutePath(), directory,
+          "com.example", Arrays.asList(source.getAbsolutePath()),
+          new PrintStream(new ByteArrayOutputStream(), true), new PrintStream(err, true)));
+      assertTrue(err.toString("UTF-8").contains("no declaration seen for undefined-var"));
+    }
+    assertEquals(1, pool.getStartedCount());
+  }
+}
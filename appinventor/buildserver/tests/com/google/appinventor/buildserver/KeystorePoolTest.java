@@ -0,0 +1,82 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KeystorePool class.
+ *
+ */
+public class KeystorePoolTest extends TestCase {
+  private File keystoreFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    keystoreFile = File.createTempFile("android", ".keystore");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    keystoreFile.delete();
+  }
+
+  private KeyStore loadKeyStore() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, KeystorePool.PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+
+  public void testKeystoreMatchesKeytool() throws Exception {
+    KeystorePool pool = new KeystorePool(0);
+    pool.createKeyStore("CN=\"Jo \\\"Smith\\\", Jr.\", O=AppInventor for Android, C=US",
+        keystoreFile);
+    assertEquals(1, pool.getOnDemandKeyCount());
+
+    KeyStore keyStore = loadKeyStore();
+    assertTrue(keyStore.isKeyEntry(KeystorePool.KEY_ALIAS));
+    PrivateKey key = (PrivateKey) keyStore.getKey(KeystorePool.KEY_ALIAS,
+        KeystorePool.PASSWORD.toCharArray());
+    assertEquals("RSA", key.getAlgorithm());
+    X509Certificate certificate =
+        (X509Certificate) keyStore.getCertificate(KeystorePool.KEY_ALIAS);
+    assertEquals(2048, ((RSAPublicKey) certificate.getPublicKey()).getModulus().bitLength());
+    assertEquals("CN=Jo \\\"Smith\\\"\\, Jr.,O=AppInventor for Android,C=US",
+        certificate.getSubjectX500Principal().getName());
+    assertEquals(certificate.getSubjectX500Principal(), certificate.getIssuerX500Principal());
+    certificate.verify(certificate.getPublicKey());
+    // Android Market requires certificates to expire after October 22, 2033.
+    assertTrue(certificate.getNotAfter().getTime() - System.currentTimeMillis()
+        > 9999L * 24 * 60 * 60 * 1000);
+  }
+
+  public void testKeysComeFromPool() throws Exception {
+    KeystorePool pool = new KeystorePool(1);
+    try {
+      assertTrue(pool.awaitFull(60, TimeUnit.SECONDS));
+      pool.createKeyStore("CN=\"user\", O=AppInventor for Android, C=US", keystoreFile);
+      assertEquals(1, pool.getPooledKeyCount());
+      assertEquals(0, pool.getOnDemandKeyCount());
+      assertTrue(loadKeyStore().isKeyEntry(KeystorePool.KEY_ALIAS));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests LatencyHistogram class.
+ *
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  public void testEmptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0.0, histogram.getAverageMillis());
+    assertEquals(0.0, histogram.getPercentileMillis(50));
+  }
+
+  public void testCountsAndBuckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(3);
+    histogram.record(5);
+    histogram.record(7);
+    histogram.record(10000000);
+    assertEquals(4, histogram.getCount());
+    assertEquals(10000015, histogram.getSumMillis());
+    assertEquals(10000000, histogram.getMaxMillis());
+    assertEquals(2, histogram.getBucketValue(0));
+    assertEquals(1, histogram.getBucketValue(1));
+    int last = LatencyHistogram.getBucketCount() - 1;
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketBoundMillis(last));
+    assertEquals(1, histogram.getBucketValue(last));
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 90; i++) {
+      histogram.record(80);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(4000);
+    }
+    // 80 ms falls in the (50, 100] bucket, 4000 ms in the (2500, 5000] bucket.
+    double p50 = histogram.getPercentileMillis(50);
+    assertTrue(p50 > 50 && p50 <= 100);
+    double p99 = histogram.getPercentileMillis(99);
+    assertTrue(p99 > 2500 && p99 <= 4000);
+    // Percentiles are never more than the maximum.
+    assertEquals(4000.0, histogram.getPercentileMillis(100));
+  }
+}
@@ -0,0 +1,186 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests LoadGenerator class.
+ *
+ */
+public class LoadGeneratorTest extends TestCase {
+  private File directory;
+  private HttpServer buildServer;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (buildServer != null) {
+      buildServer.stop(0);
+    }
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static byte[] createResultZip(String buildOutput) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(bytes);
+    zip.putNextEntry(new ZipEntry("MyApp.apk"));
+    zip.write(new byte[100]);
+    if (buildOutput != null) {
+      zip.putNextEntry(new ZipEntry("build.out"));
+      zip.write(buildOutput.getBytes(Charsets.UTF_8));
+    }
+    zip.close();
+    return bytes.toByteArray();
+  }
+
+  /*
+   * Starts a build server that rejects every other build with 503 and sends a successful result
+   * for the others.
+   */
+  private void startBuildServer() throws IOException {
+    final AtomicInteger requests = new AtomicInteger(0);
+    final byte[] result = createResultZip("{\"result\":0,\"error\":\"\",\"output\":\"\"}");
+    buildServer = HttpServer.create(new InetSocketAddress(0), 0);
+    buildServer.createContext("/buildserver/build-all-from-zip-async", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteStreams.copy(exchange.getRequestBody(), ByteStreams.nullOutputStream());
+        if (requests.incrementAndGet() % 2 == 0) {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+          exchange.close();
+          return;
+        }
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        exchange.close();
+        String query = exchange.getRequestURI().getRawQuery();
+        String callback = URLDecoder.decode(query.substring(query.indexOf("callback=")
+            + "callback=".length()), "UTF-8");
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL(callback).openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write(result);
+        outputStream.close();
+        connection.getResponseCode();
+        connection.disconnect();
+      }
+    });
+    buildServer.createContext("/buildserver/vars.json", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] vars = ("{\"used-heap\":" + (requests.get() + 1) * 1024 * 1024
+            + ",\"total-memory\":268435456,\"resident-memory-in-kb\":"
+            + (requests.get() + 100) * 1024 + ",\"active-build-tasks\":0}")
+            .getBytes(Charsets.UTF_8);
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, vars.length);
+        exchange.getResponseBody().write(vars);
+        exchange.close();
+      }
+    });
+    buildServer.setExecutor(Executors.newCachedThreadPool());
+    buildServer.start();
+  }
+
+  public void testListProjects() throws IOException {
+    Files.write(new byte[0], new File(directory, "b.aia"));
+    Files.write(new byte[0], new File(directory, "a.zip"));
+    Files.write(new byte[0], new File(directory, "notes.txt"));
+    List<File> projects = LoadGenerator.listProjects(directory);
+    assertEquals(2, projects.size());
+    assertEquals("a.zip", projects.get(0).getName());
+    assertEquals("b.aia", projects.get(1).getName());
+
+    try {
+      LoadGenerator.listProjects(new File(directory, "missing"));
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testGetNextDelayNanosAveragesToRate() {
+    Random random = new Random(0);
+    long totalNanos = 0;
+    int count = 10000;
+    for (int i = 0; i < count; i++) {
+      long delayNanos = LoadGenerator.getNextDelayNanos(random, 120);
+      assertTrue(delayNanos >= 0);
+      totalNanos += delayNanos;
+    }
+    // 120 builds per minute is one every half a second.
+    double averageMillis = totalNanos / 1000000.0 / count;
+    assertEquals(500, averageMillis, 25);
+  }
+
+  public void testGetBuildResult() throws IOException {
+    assertEquals(0, LoadGenerator.getBuildResult(new ByteArrayInputStream(
+        createResultZip("{\"result\":0,\"error\":\"\",\"output\":\"\"}"))));
+    assertEquals(1, LoadGenerator.getBuildResult(new ByteArrayInputStream(
+        createResultZip("{\"result\":1,\"error\":\"Failed\",\"output\":\"\"}"))));
+    assertEquals(-1, LoadGenerator.getBuildResult(new ByteArrayInputStream(
+        createResultZip(null))));
+  }
+
+  public void testRun() throws Exception {
+    startBuildServer();
+    Files.write(new byte[] {1, 2, 3}, new File(directory, "Project1.aia"));
+    Files.write(new byte[] {4, 5, 6}, new File(directory, "Project2.aia"));
+
+    LoadGenerator.CommandLineOptions options = new LoadGenerator.CommandLineOptions();
+    options.projectsDir = directory;
+    options.buildServer = "http://localhost:" + buildServer.getAddress().getPort();
+    options.buildsPerMinute = 6000;
+    options.builds = 6;
+    options.drainTimeoutSec = 30;
+    options.callbackPort = 0;
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    LoadGenerator loadGenerator = new LoadGenerator(options, new PrintStream(report, true));
+    loadGenerator.run();
+
+    assertEquals(3, loadGenerator.getAcceptedCount());
+    assertEquals(3, loadGenerator.getRejectedCount());
+    assertEquals(3, loadGenerator.getSucceededCount());
+    assertEquals(0, loadGenerator.getFailedCount());
+    assertEquals(3, loadGenerator.getBuildTimes().getCount());
+    String text = report.toString("UTF-8");
+    assertTrue(text, text.contains("rejected with 503 3 (50.0%)"));
+    assertTrue(text, text.contains("Completed 3 (3 succeeded, 0 failed), 0 without a result"));
+    assertTrue(text, text.contains("Build server resident memory: 100 MB -> 106 MB"));
+  }
+}
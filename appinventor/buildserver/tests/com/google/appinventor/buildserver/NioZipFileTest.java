@@ -0,0 +1,157 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests NioZipFile class.
+ *
+ */
+public class NioZipFileTest extends TestCase {
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("nio", ".zip");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  private void writeZip(String comment) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      addEntry(zip, "assets/", new byte[0], ZipEntry.STORED);
+      addEntry(zip, "assets/kitty.png", "png".getBytes(Charsets.UTF_8), ZipEntry.STORED);
+      // Big enough to be read in more than one piece.
+      byte[] big = new byte[200000];
+      for (int i = 0; i < big.length; i++) {
+        big[i] = (byte) (i % 251);
+      }
+      addEntry(zip, "assets/big.bin", big, ZipEntry.STORED);
+      addEntry(zip, "src/Screen1.scm", big, ZipEntry.DEFLATED);
+      addEntry(zip, "src/\u00e9t\u00e9.bky", "blocks".getBytes(Charsets.UTF_8),
+          ZipEntry.DEFLATED);
+      if (comment != null) {
+        zip.setComment(comment);
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static void addEntry(ZipOutputStream zip, String name, byte[] contents, int method)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      entry.setSize(contents.length);
+      entry.setCompressedSize(contents.length);
+      entry.setCrc(crc.getValue());
+    }
+    zip.putNextEntry(entry);
+    zip.write(contents);
+    zip.closeEntry();
+  }
+
+  private static byte[] read(NioZipFile zip, String name) throws IOException {
+    return ByteStreams.toByteArray(zip.getInputStream(zip.getEntry(name)));
+  }
+
+  public void testEntries() throws Exception {
+    writeZip("a comment");
+    NioZipFile zip = new NioZipFile(file);
+    try {
+      assertEquals(5, zip.getEntries().size());
+      assertEquals("assets/", zip.getEntries().get(0).getName());
+      assertTrue(zip.getEntries().get(0).isDirectory());
+      assertNull(zip.getEntry("missing"));
+
+      NioZipFile.Entry png = zip.getEntry("assets/kitty.png");
+      assertEquals(ZipEntry.STORED, png.getMethod());
+      assertEquals(3, png.getSize());
+      assertEquals("png", new String(read(zip, "assets/kitty.png"), Charsets.UTF_8));
+
+      NioZipFile.Entry form = zip.getEntry("src/Screen1.scm");
+      assertEquals(ZipEntry.DEFLATED, form.getMethod());
+      assertTrue(form.getCompressedSize() < form.getSize());
+      assertTrue(Arrays.equals(read(zip, "assets/big.bin"), read(zip, "src/Screen1.scm")));
+      assertEquals("blocks", new String(read(zip, "src/\u00e9t\u00e9.bky"), Charsets.UTF_8));
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testDigest() throws Exception {
+    writeZip(null);
+    NioZipFile zip = new NioZipFile(file);
+    try {
+      for (String name : new String[] { "assets/big.bin", "src/Screen1.scm" }) {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        zip.digest(zip.getEntry(name), digest);
+        assertTrue(name, Arrays.equals(MessageDigest.getInstance("SHA1").digest(read(zip, name)),
+            digest.digest()));
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testTransferRawData() throws Exception {
+    writeZip(null);
+    File copy = File.createTempFile("nio", ".bin");
+    NioZipFile zip = new NioZipFile(file);
+    try {
+      NioZipFile.Entry form = zip.getEntry("src/Screen1.scm");
+      FileOutputStream out = new FileOutputStream(copy);
+      try {
+        zip.transferRawData(form, out.getChannel());
+      } finally {
+        out.close();
+      }
+      // The data is copied as it is stored, still deflated.
+      byte[] raw = Files.toByteArray(copy);
+      assertEquals(form.getCompressedSize(), raw.length);
+      Inflater inflater = new Inflater(true);
+      inflater.setInput(Arrays.copyOf(raw, raw.length + 1));
+      byte[] inflated = new byte[(int) form.getSize()];
+      assertEquals(inflated.length, inflater.inflate(inflated));
+      inflater.end();
+      assertTrue(Arrays.equals(read(zip, "assets/big.bin"), inflated));
+    } finally {
+      zip.close();
+      copy.delete();
+    }
+  }
+
+  public void testNotAZipFile() throws Exception {
+    Files.write("not a zip file", file, Charsets.UTF_8);
+    try {
+      new NioZipFile(file).close();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
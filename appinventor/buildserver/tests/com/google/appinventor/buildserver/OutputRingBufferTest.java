@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Strings;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests OutputRingBuffer class.
+ *
+ */
+public class OutputRingBufferTest extends TestCase {
+
+  public void testKeepsEverythingWithinCapacity() {
+    OutputRingBuffer buffer = new OutputRingBuffer(10);
+    buffer.append("hello").append(' ').append("world", 0, 3);
+    assertEquals("hello wor", buffer.toString());
+    assertEquals(0, buffer.getDroppedCount());
+  }
+
+  public void testKeepsTheEnd() {
+    OutputRingBuffer buffer = new OutputRingBuffer(5);
+    buffer.append("abc").append("defg").append("hi");
+    assertEquals(4, buffer.getDroppedCount());
+    assertEquals("[4 characters omitted]\nefghi", buffer.toString());
+  }
+
+  public void testGrowsToCapacity() {
+    OutputRingBuffer buffer = new OutputRingBuffer(5000);
+    String text = Strings.repeat("0123456789", 450);
+    buffer.append(text);
+    assertEquals(text, buffer.toString());
+    buffer.append(text);
+    assertEquals(4000, buffer.getDroppedCount());
+    assertEquals("[4000 characters omitted]\n" + (text + text).substring(4000), buffer.toString());
+  }
+
+  public void testZeroCapacity() {
+    OutputRingBuffer buffer = new OutputRingBuffer(0);
+    buffer.append("abc");
+    assertEquals(3, buffer.getDroppedCount());
+    assertEquals("[3 characters omitted]\n", buffer.toString());
+  }
+}
@@ -0,0 +1,54 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests PhaseLimiter class.
+ */
+public class PhaseLimiterTest extends TestCase {
+  public void testAdditionalBuildWaits() throws Exception {
+    final PhaseLimiter limiter = new PhaseLimiter("test", 2);
+    limiter.enter();
+    limiter.enter();
+    assertEquals(2, limiter.getActiveCount());
+
+    // A third build has to wait until one of the others leaves the phase.
+    final CountDownLatch entered = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.enter();
+          entered.countDown();
+          limiter.exit();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    };
+    thread.start();
+    assertFalse(entered.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, limiter.getWaitingCount());
+
+    limiter.exit();
+    assertTrue(entered.await(10, TimeUnit.SECONDS));
+    thread.join();
+    limiter.exit();
+    assertEquals(0, limiter.getActiveCount());
+    assertEquals(0, limiter.getWaitingCount());
+    assertEquals(2, limiter.getMaximumActiveCount());
+  }
+
+  public void testDefaultLimitIsPositive() {
+    assertTrue(PhaseLimiter.defaultLimit(2048) >= 1);
+    assertTrue(PhaseLimiter.defaultLimit(Integer.MAX_VALUE) >= 1);
+  }
+}
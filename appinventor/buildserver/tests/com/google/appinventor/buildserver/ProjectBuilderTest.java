@@ -0,0 +1,110 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ProjectBuilder class.
+ *
+ */
+public class ProjectBuilderTest extends TestCase {
+
+  /*
+   * Creates a zip file with the given entries, given as name, contents pairs.
+   */
+  private static NioZipFile createZip(long time, String... namesAndContents) throws IOException {
+    File file = File.createTempFile("project", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        ZipEntry entry = new ZipEntry(namesAndContents[i]);
+        entry.setTime(time);
+        zip.putNextEntry(entry);
+        zip.write(namesAndContents[i + 1].getBytes(Charsets.UTF_8));
+        zip.closeEntry();
+      }
+    } finally {
+      zip.close();
+    }
+    return new NioZipFile(file);
+  }
+
+  public void testResultCacheKeyIgnoresOrderAndTimes() throws Exception {
+    String key1 = ProjectBuilder.getResultCacheKey(createZip(1000000000000L,
+        "src/Screen1.scm", "form", "src/Screen1.bky", "blocks", "android.keystore", "key"), false);
+    String key2 = ProjectBuilder.getResultCacheKey(createZip(1400000000000L,
+        "android.keystore", "key", "src/Screen1.bky", "blocks", "src/Screen1.scm", "form"), false);
+    assertNotNull(key1);
+    assertEquals(key1, key2);
+  }
+
+  public void testResultCacheKeyDependsOnInputs() throws Exception {
+    String key = ProjectBuilder.getResultCacheKey(createZip(0,
+        "src/Screen1.scm", "form", "android.keystore", "key"), false);
+    assertFalse(key.equals(ProjectBuilder.getResultCacheKey(createZip(0,
+        "src/Screen1.scm", "form", "android.keystore", "key"), true)));
+    assertFalse(key.equals(ProjectBuilder.getResultCacheKey(createZip(0,
+        "src/Screen1.scm", "changed", "android.keystore", "key"), false)));
+    assertFalse(key.equals(ProjectBuilder.getResultCacheKey(createZip(0,
+        "src/Screen1.scm", "form", "android.keystore", "other key"), false)));
+    assertFalse(key.equals(ProjectBuilder.getResultCacheKey(createZip(0,
+        "src/Screen2.scm", "form", "android.keystore", "key"), false)));
+  }
+
+  public void testNoResultCacheKeyWithoutKeystore() throws Exception {
+    assertNull(ProjectBuilder.getResultCacheKey(createZip(0, "src/Screen1.scm", "form"), false));
+  }
+
+  public void testCompanionCacheKeyIgnoresKeystoreAndTimes() throws Exception {
+    String key1 = ProjectBuilder.getCompanionCacheKey(createZip(1000000000000L,
+        "src/Screen1.scm", "form", "src/Screen1.bky", "blocks", "android.keystore", "key"));
+    String key2 = ProjectBuilder.getCompanionCacheKey(createZip(1400000000000L,
+        "src/Screen1.bky", "blocks", "src/Screen1.scm", "form", "android.keystore", "other key"));
+    String key3 = ProjectBuilder.getCompanionCacheKey(createZip(0,
+        "src/Screen1.scm", "form", "src/Screen1.bky", "blocks"));
+    assertEquals(key1, key2);
+    assertEquals(key1, key3);
+    assertFalse(key1.equals(ProjectBuilder.getCompanionCacheKey(createZip(0,
+        "src/Screen1.scm", "form", "src/Screen1.bky", "changed"))));
+  }
+
+  public void testExtractProjectFiles() throws Exception {
+    File projectRoot = Files.createTempDir();
+    try {
+      ProjectBuilder.ExtractedProject project = ProjectBuilder.extractProjectFiles(createZip(0,
+          "src/com/x/Screen1.scm", "form1", "src/com/x/Screen1.bky", "blocks",
+          "assets/kitty.png", "png", "src/com/x/Screen2.scm", "form2"), projectRoot);
+      assertEquals(Arrays.asList(
+          new File(projectRoot, "src/com/x/Screen1.scm").getPath(),
+          new File(projectRoot, "src/com/x/Screen1.bky").getPath(),
+          new File(projectRoot, "assets/kitty.png").getPath(),
+          new File(projectRoot, "src/com/x/Screen2.scm").getPath()), project.files);
+      assertEquals(Arrays.asList("form1", "form2"),
+          Lists.newArrayList(project.formSources.values()));
+      assertEquals("png", Files.toString(new File(projectRoot, "assets/kitty.png"),
+          Charsets.UTF_8));
+      assertEquals("form2", Files.toString(new File(projectRoot, "src/com/x/Screen2.scm"),
+          Charsets.UTF_8));
+    } finally {
+      FileUtils.deleteDirectory(projectRoot);
+    }
+  }
+}
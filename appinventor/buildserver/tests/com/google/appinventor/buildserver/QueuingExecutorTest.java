@@ -0,0 +1,139 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingExecutor class.
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+public class QueuingExecutorTest extends TestCase {
+  public void testAdditionalTaskIsRejected() throws Exception {
+    // Create the QueuingExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    QueuingExecutor executor = new QueuingExecutor(maxCapacity, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I count down the signal.
+    CountDownLatch started = new CountDownLatch(maxCapacity);
+    CountDownLatch signal = new CountDownLatch(1);
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(started, signal));
+    }
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Count down the signal so the active tasks can complete.
+    signal.countDown();
+    executor.shutdown();
+  }
+
+  public void testAdditionalTasksAreQueued() throws Exception {
+    // Create the QueuingExecutor with capacity 2 and room for 3 waiting tasks.
+    QueuingExecutor executor = new QueuingExecutor(2, 3);
+
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch signal = new CountDownLatch(1);
+    assertEquals(0, executor.executeAndGetQueuePosition(
+        new TaskThatWaitsForSignal(started, signal)));
+    assertEquals(0, executor.executeAndGetQueuePosition(
+        new TaskThatWaitsForSignal(started, signal)));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // The next three tasks wait in the queue, in order.
+    CountDownLatch finished = new CountDownLatch(3);
+    for (int i = 1; i <= 3; i++) {
+      assertEquals(i, executor.executeAndGetQueuePosition(new TaskThatCountsDown(finished)));
+    }
+    assertEquals(2, executor.getActiveTaskCount());
+    assertEquals(3, executor.getQueuedTaskCount());
+    assertEquals(3, executor.getMaximumQueuedTaskCount());
+
+    // The queue is full, so the next task is rejected.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Once the running tasks complete, the queued tasks run on the same workers.
+    signal.countDown();
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testUnlimitedNeverQueues() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(0, 5);
+    assertEquals(0, executor.getMaxQueuedTasks());
+
+    int taskCount = 20;
+    CountDownLatch started = new CountDownLatch(taskCount);
+    CountDownLatch signal = new CountDownLatch(1);
+    for (int i = 0; i < taskCount; i++) {
+      assertEquals(0, executor.executeAndGetQueuePosition(
+          new TaskThatWaitsForSignal(started, signal)));
+    }
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertEquals(taskCount, executor.getActiveTaskCount());
+    signal.countDown();
+    executor.shutdown();
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final CountDownLatch started;
+    private final CountDownLatch signal;
+    private TaskThatWaitsForSignal(CountDownLatch started, CountDownLatch signal) {
+      this.started = started;
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      started.countDown();
+      try {
+        // Wait for the signal.
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatCountsDown implements Runnable {
+    private final CountDownLatch latch;
+    private TaskThatCountsDown(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      latch.countDown();
+    }
+  }
+
+  private static class TaskThatDoesNothing implements Runnable {
+    @Override
+    public void run() {
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ResourceStore class.
+ *
+ */
+public class ResourceStoreTest extends TestCase {
+  private static final String RESOURCE = "/com/google/appinventor/buildserver/Result.class";
+
+  private File directory;
+  private File storeDirectory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    storeDirectory = new File(directory, "store");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  public void testResourceIsStoredOnceByContents() throws Exception {
+    ResourceStore store = new ResourceStore(storeDirectory);
+    File file = store.get(RESOURCE);
+    assertSame(file, store.get(RESOURCE));
+    assertEquals(storeDirectory, file.getParentFile());
+    byte[] contents = Resources.toByteArray(ResourceStore.class.getResource(RESOURCE));
+    // The file keeps the extension of the resource.
+    assertEquals(Hashing.sha1().hashBytes(contents) + ".class", file.getName());
+    assertTrue(Arrays.equals(contents, Files.toByteArray(file)));
+    assertEquals(1, store.getWrittenCount());
+
+    // Another store in the same directory, such as the store of the next build server, finds the
+    // file rather than writing it again.
+    ResourceStore nextStore = new ResourceStore(storeDirectory);
+    assertEquals(file, nextStore.get(RESOURCE));
+    assertEquals(0, nextStore.getWrittenCount());
+    assertEquals(1, storeDirectory.list().length);
+  }
+
+  public void testModifiedFileIsReplaced() throws Exception {
+    File file = new ResourceStore(storeDirectory).get(RESOURCE);
+    file.setWritable(true);
+    Files.write(new byte[] { 1, 2, 3 }, file);
+
+    ResourceStore store = new ResourceStore(storeDirectory);
+    assertEquals(file, store.get(RESOURCE));
+    assertEquals(1, store.getWrittenCount());
+    assertTrue(Arrays.equals(Resources.toByteArray(ResourceStore.class.getResource(RESOURCE)),
+        Files.toByteArray(file)));
+  }
+
+  public void testLink() throws Exception {
+    ResourceStore store = new ResourceStore(storeDirectory);
+    File target = new File(directory, "Result.class");
+    store.link(RESOURCE, target);
+    assertTrue(java.nio.file.Files.isSameFile(store.get(RESOURCE).toPath(), target.toPath()));
+    assertEquals(1, store.getLinkedCount());
+    assertEquals(0, store.getCopiedCount());
+
+    // Deleting the build's file leaves the store file.
+    assertTrue(target.delete());
+    assertTrue(store.get(RESOURCE).isFile());
+  }
+
+  public void testMissingResource() throws Exception {
+    ResourceStore store = new ResourceStore(storeDirectory);
+    try {
+      store.get("/no/such/resource");
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests RuntimeShrinker class.
+ *
+ */
+public class RuntimeShrinkerTest extends TestCase {
+  private static final String RUNTIME = RuntimeShrinker.RUNTIME_PACKAGE;
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  /*
+   * Returns a class file with the given internal name, whose constant pool has the given Utf8
+   * constants. Only the constant pool is filled in.
+   */
+  private static byte[] classFile(String name, String... utf8Constants) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(50);
+    out.writeShort(utf8Constants.length + 6);
+    out.writeByte(1);  // #1 Utf8
+    out.writeUTF(name);
+    out.writeByte(7);  // #2 Class #1
+    out.writeShort(1);
+    out.writeByte(5);  // #3 Long, which takes two entries
+    out.writeLong(42);
+    out.writeByte(12);  // #5 NameAndType
+    out.writeShort(1);
+    out.writeShort(1);
+    for (String constant : utf8Constants) {
+      out.writeByte(1);
+      out.writeUTF(constant);
+    }
+    out.writeShort(0x0021);  // access_flags
+    out.writeShort(2);  // this_class
+    out.writeShort(0);  // super_class
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private File createRuntimeJar() throws IOException {
+    File jar = new File(dir, "AndroidRuntime.jar");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      addEntry(zip, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(Charsets.UTF_8));
+      addClass(zip, RUNTIME + "Form", "L" + RUNTIME + "Component;");
+      addClass(zip, RUNTIME + "Component");
+      addClass(zip, RUNTIME + "Button", "(L" + RUNTIME + "util/Icons;)V");
+      addClass(zip, RUNTIME + "util/Icons", "java/lang/Object");
+      addClass(zip, RUNTIME + "Texting",
+          "Ljava/util/List<L" + RUNTIME + "util/SmsBroadcastReceiver;>;");
+      addClass(zip, RUNTIME + "util/SmsBroadcastReceiver");
+      addClass(zip, RUNTIME + "Clock", "com.google.appinventor.components.runtime.util.Timer");
+      addClass(zip, RUNTIME + "util/Timer");
+      addClass(zip, RUNTIME + "util/Receiver");
+      addClass(zip, "com/google/appinventor/components/common/Constants");
+    } finally {
+      zip.close();
+    }
+    return jar;
+  }
+
+  private static void addClass(ZipOutputStream zip, String name, String... utf8Constants)
+      throws IOException {
+    addEntry(zip, name + ".class", classFile(name, utf8Constants));
+  }
+
+  private static void addEntry(ZipOutputStream zip, String name, byte[] contents)
+      throws IOException {
+    zip.putNextEntry(new ZipEntry(name));
+    zip.write(contents);
+    zip.closeEntry();
+  }
+
+  public void testGetReferences() throws Exception {
+    Set<String> classNames = ImmutableSet.of("a/B", "a/C", "a/D", "a/E", "a/F");
+    assertEquals(ImmutableSet.of("a/B", "a/C", "a/D", "a/E"), RuntimeShrinker.getReferences(
+        classFile("a/A", "a/B", "([La/C;I)V", "a.D", "Ljava/util/Map<La/E;Ljava/lang/String;>;"),
+        classNames));
+  }
+
+  public void testGetReferencesRejectsNonClassFile() throws Exception {
+    try {
+      RuntimeShrinker.getReferences(new byte[] { 1, 2, 3, 4 }, ImmutableSet.<String>of());
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testShrink() throws Exception {
+    RuntimeShrinker shrinker = RuntimeShrinker.getInstance(createRuntimeJar());
+
+    File classesDir = new File(dir, "classes");
+    File screenDir = new File(classesDir, "appinventor/ai_test/Test");
+    assertTrue(screenDir.mkdirs());
+    Files.write(classFile("appinventor/ai_test/Test/Screen1", "L" + RUNTIME + "Form;"),
+        new File(screenDir, "Screen1.class"));
+    File manifest = new File(dir, "AndroidManifest.xml");
+    Files.write("<receiver android:name=\"com.google.appinventor.components.runtime.util.Receiver\""
+        + " />", manifest, Charsets.UTF_8);
+
+    Set<String> classes = shrinker.getReachableClasses(ImmutableList.of("Button", "Texting"),
+        classesDir, ImmutableList.of(manifest));
+    assertEquals(ImmutableSet.of(
+        RUNTIME + "Form", RUNTIME + "Component", RUNTIME + "Button", RUNTIME + "util/Icons",
+        RUNTIME + "Texting", RUNTIME + "util/SmsBroadcastReceiver", RUNTIME + "util/Receiver",
+        "com/google/appinventor/components/common/Constants"), classes);
+
+    File shrunkJar = new File(dir, "shrunk.jar");
+    assertEquals(2, shrinker.writeJar(classes, shrunkJar));
+    Set<String> entries = Sets.newHashSet();
+    ZipFile zip = new ZipFile(shrunkJar);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        entries.add(e.nextElement().getName());
+      }
+    } finally {
+      zip.close();
+    }
+    assertTrue(entries.contains("META-INF/MANIFEST.MF"));
+    assertTrue(entries.contains(RUNTIME + "Button.class"));
+    assertFalse(entries.contains(RUNTIME + "Clock.class"));
+    assertFalse(entries.contains(RUNTIME + "util/Timer.class"));
+    assertEquals(9, entries.size());
+
+    // The same classes give the same jar, so that the dex cache dexes it once.
+    File otherJar = new File(dir, "other.jar");
+    shrinker.writeJar(classes, otherJar);
+    assertTrue(Files.equal(shrunkJar, otherJar));
+  }
+}
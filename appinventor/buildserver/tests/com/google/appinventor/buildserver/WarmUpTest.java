@@ -0,0 +1,47 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2016 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests WarmUp class.
+ *
+ */
+public class WarmUpTest extends TestCase {
+
+  public void testSampleProjectHasMainScreen() throws Exception {
+    File directory = Files.createTempDir();
+    try {
+      File zipFile = new File(directory, "warmup.zip");
+      WarmUp.writeSampleProject(zipFile);
+      File projectRoot = new File(directory, "project");
+      NioZipFile zip = new NioZipFile(zipFile);
+      try {
+        ProjectBuilder.ExtractedProject extractedProject =
+            ProjectBuilder.extractProjectFiles(zip, projectRoot);
+        assertEquals(1, extractedProject.formSources.size());
+        assertTrue(extractedProject.formSources.values().iterator().next().contains("Button"));
+      } finally {
+        zip.close();
+      }
+
+      // The main screen is the screen of the project.
+      Project project =
+          new Project(new File(projectRoot, "youngandroidproject/project.properties"));
+      assertTrue(new File(projectRoot,
+          "src/" + project.getMainClass().replace('.', '/') + ".scm").isFile());
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+}